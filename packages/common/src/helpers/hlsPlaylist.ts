@@ -0,0 +1,50 @@
+import { HomebaseFile } from '@homebase-id/js-lib/core';
+import { tryJsonParse } from '@homebase-id/js-lib/helpers';
+
+// HLS videos normally keep all their segments in the one payload that carries the playlist. Videos that the
+// Android sync uploaded while segmenting them (its pipelined mode) store every segment as a payload of its
+// own instead, and their playlist lists each segment by that payload key.
+
+export const getHlsPlaylist = (
+  file: HomebaseFile | null | undefined,
+  payloadKey: string | undefined
+): string | undefined => {
+  const descriptor = file?.fileMetadata.payloads?.find(
+    (payload) => payload.key === payloadKey
+  )?.descriptorContent;
+  if (!descriptor) return;
+
+  return tryJsonParse<{ hlsPlaylist?: string }>(descriptor)?.hlsPlaylist;
+};
+
+export const getHlsSegmentLines = (playlist: string) =>
+  playlist
+    .split('\n')
+    .map((line) => line.trim())
+    .filter((line) => line !== '' && !line.startsWith('#'));
+
+export const hasPayloadSegments = (file: HomebaseFile, playlist: string) => {
+  const segments = getHlsSegmentLines(playlist);
+  return (
+    segments.length > 0 &&
+    segments.every((segment) =>
+      file.fileMetadata.payloads?.some((payload) => payload.key === segment)
+    )
+  );
+};
+
+// The payload a playlist line refers to: its own payload for a separately stored segment, otherwise the
+// payload with the playlist
+export const getSegmentPayloadKey = (
+  file: HomebaseFile,
+  segment: string,
+  playlistPayloadKey: string
+) => {
+  const isOwnPayload = file.fileMetadata.payloads?.some((payload) => payload.key === segment);
+  return isOwnPayload ? segment : playlistPayloadKey;
+};
+
+// The main payload of a video is the video stream, or the playlist when its segments are stored separately
+export const isVideoContentType = (contentType: string | undefined) =>
+  !!contentType &&
+  (contentType.startsWith('video/') || contentType === 'application/vnd.apple.mpegurl');
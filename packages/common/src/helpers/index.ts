@@ -2,3 +2,5 @@ export * from './common';
 export * from './timeago';
 export * from './i18n/dictionary';
 export * from './richTextHelper';
+export * from './thumbHash';
+export * from './hlsPlaylist';
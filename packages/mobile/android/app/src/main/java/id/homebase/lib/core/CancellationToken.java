@@ -0,0 +1,90 @@
+package id.homebase.lib.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+// Cooperative cancellation of a unit of work, e.g. a sync run. Loops poll it with throwIfCancelled(), and
+// blocking work that can be aborted from the outside (an FFmpeg session, an OkHttp call, a wait for a slot)
+// registers a callback that aborts it the moment the token is cancelled.
+//
+// The token of the work at hand is entered on a thread, and executors that take work from that thread enter
+// it on theirs (see MediaJobExecutor and ImageDecodeExecutor). The crypto loops and the uploads find it with
+// current(), so it doesn't have to be passed through every signature in between.
+public class CancellationToken {
+    // Current token of threads that entered none; it's never cancelled
+    public static final CancellationToken NONE = new CancellationToken();
+    private static final ThreadLocal<CancellationToken> current = new ThreadLocal<>();
+
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        if (this == NONE) {
+            return;
+        }
+        List<Runnable> pending;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            pending = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        for (Runnable callback : pending) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                Log.e(null, "[CancellationToken] Cancel callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Cancelled");
+        }
+    }
+
+    // Runs onCancel when the token is cancelled, right away when it is already. Close the registration once the
+    // work it aborts is done.
+    public Registration register(Runnable onCancel) {
+        synchronized (this) {
+            if (!cancelled) {
+                callbacks.add(onCancel);
+                return () -> {
+                    synchronized (this) {
+                        callbacks.remove(onCancel);
+                    }
+                };
+            }
+        }
+        onCancel.run();
+        return () -> {
+        };
+    }
+
+    public static CancellationToken current() {
+        CancellationToken token = current.get();
+        return token != null ? token : NONE;
+    }
+
+    // Makes the token the current one of the calling thread, until the registration is closed
+    public static Registration enter(CancellationToken token) {
+        CancellationToken previous = current.get();
+        current.set(token);
+        return () -> current.set(previous);
+    }
+
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -2,11 +2,11 @@ package id.homebase.lib.core.crypto;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Base64;
@@ -16,12 +16,19 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import id.homebase.lib.core.CancellationToken;
 import id.homebase.lib.core.DotYouClient;
 import id.homebase.lib.core.file.types.EncryptedKeyHeader;
 import id.homebase.lib.core.file.types.KeyHeader;
+import id.homebase.lib.core.file.types.SpillableBuffer;
 import id.homebase.lib.core.file.types.UploadFileMetadata;
+import id.homebase.lib.core.metrics.Metrics;
+import id.homebase.lib.core.metrics.Throughput;
+import id.homebase.lib.core.trace.Span;
+import id.homebase.lib.core.trace.Tracer;
 
 public class CryptoUtil {
+    private static final Throughput ENCRYPT = Metrics.throughput("crypto.encrypt");
 
     public static SecretKey importKey(byte[] keyBytes) {
         return new SecretKeySpec(keyBytes, "AES");
@@ -49,40 +56,63 @@ public class CryptoUtil {
         return innerEncrypt(iv, secretKey, data);
     }
 
-    public static ByteArrayOutputStream cbcEncryptStream(InputStream inputStream, byte[] iv, byte[] key) throws Exception {
+    // Encrypts into a SpillableBuffer, so large payloads end up in a temporary file instead of on the heap
+    public static SpillableBuffer cbcEncryptStream(InputStream inputStream, byte[] iv, byte[] key) throws Exception {
+        SpillableBuffer outputStream = new SpillableBuffer();
+        try {
+            cbcEncryptStream(inputStream, outputStream, iv, key);
+            outputStream.close();
+
+            return outputStream;
+
+        } catch (IOException e) {
+            outputStream.release();
+            Log.e(null, "Error reading file: " + Arrays.toString(e.getStackTrace()));
+            throw new RuntimeException("Error reading file", e);
+        } catch (Exception e) {
+            outputStream.release();
+            throw e;
+        }
+    }
+
+    // Encrypts straight into the given stream, e.g. a file of a staged upload
+    public static void cbcEncryptStream(InputStream inputStream, OutputStream outputStream, byte[] iv, byte[] key) throws Exception {
         SecretKeySpec secretKey = new SecretKeySpec(key, "AES");
         Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
         IvParameterSpec ivSpec = new IvParameterSpec(iv);
         cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
 
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-            byte[] buffer = new byte[16]; // Block size for AES
+        byte[] buffer = new byte[SpillableBuffer.CHUNK_SIZE];
+        // Multi-GB files take a while; stop as soon as the work is cancelled
+        CancellationToken cancellation = CancellationToken.current();
+        long start = System.nanoTime();
+        long totalBytes = 0;
 
+        try (Span span = Tracer.start("encrypt")) {
             while (true) {
+                cancellation.throwIfCancelled();
                 int bytesRead = inputStream.read(buffer);
                 if (bytesRead == -1) {
                     break; // End of file
                 }
+                totalBytes += bytesRead;
 
                 byte[] encryptedBytes = cipher.update(buffer, 0, bytesRead);
-                outputStream.write(encryptedBytes);
+                if (encryptedBytes != null) {
+                    outputStream.write(encryptedBytes);
+                }
             }
 
             // Write the last block of encrypted data (with padding)
             byte[] finalEncryptedBytes = cipher.doFinal();
             outputStream.write(finalEncryptedBytes);
-
-            return outputStream;
-
-        } catch (IOException e) {
-            Log.e(null, "Error reading file: " + Arrays.toString(e.getStackTrace()));
-            throw new RuntimeException("Error reading file", e);
+            // Includes reading the input and writing the output, which is what the pipeline waits for
+            ENCRYPT.recordSince(totalBytes, start);
+            span.attr("bytes", totalBytes);
         }
     }
 
-    public static ByteArrayOutputStream cbcEncryptFile(File inputFile, byte[] iv, byte[] key) throws Exception {
+    public static SpillableBuffer cbcEncryptFile(File inputFile, byte[] iv, byte[] key) throws Exception {
         try (FileInputStream fis = new FileInputStream(inputFile);) {
             return cbcEncryptStream(fis, iv, key);
         } catch (IOException e) {
@@ -124,7 +154,7 @@ public class CryptoUtil {
         return cbcEncrypt(contentBytes, keyHeader.iv(), keyHeader.aesKey());
     }
 
-    public static ByteArrayOutputStream encryptWithKeyheader(File contentBytes, KeyHeader keyHeader) throws Exception {
+    public static SpillableBuffer encryptWithKeyheader(File contentBytes, KeyHeader keyHeader) throws Exception {
         try {
             return cbcEncryptFile(contentBytes, keyHeader.iv(), keyHeader.aesKey());
         } catch (Exception e) {
@@ -133,7 +163,7 @@ public class CryptoUtil {
         }
     }
 
-    public static ByteArrayOutputStream encryptWithKeyheader(InputStream outputStream, KeyHeader keyHeader) throws Exception {
+    public static SpillableBuffer encryptWithKeyheader(InputStream outputStream, KeyHeader keyHeader) throws Exception {
         try {
             return cbcEncryptStream(outputStream, keyHeader.iv(), keyHeader.aesKey());
         } catch (Exception e) {
@@ -164,4 +194,14 @@ public class CryptoUtil {
         byte[] encryptedAesKey = cbcEncrypt(combined, transferIv, ss);
         return new EncryptedKeyHeader(1, 11, transferIv, encryptedAesKey);
     }
+
+    public static KeyHeader decryptKeyHeader(DotYouClient dotYouClient, EncryptedKeyHeader encryptedKeyHeader) throws Exception {
+        byte[] ss = dotYouClient.getSharedSecret();
+        if (ss == null) {
+            throw new IllegalStateException("Attempting to decrypt but missing the shared secret");
+        }
+
+        byte[] combined = cbcDecrypt(encryptedKeyHeader.encryptedAesKey(), encryptedKeyHeader.iv(), ss);
+        return new KeyHeader(Arrays.copyOfRange(combined, 0, 16), Arrays.copyOfRange(combined, 16, combined.length));
+    }
 }
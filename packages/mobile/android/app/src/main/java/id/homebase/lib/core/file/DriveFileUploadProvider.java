@@ -9,30 +9,52 @@ import static id.homebase.lib.core.file.types.KeyHeaderGenerator.getRandom16Byte
 
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import id.homebase.lib.core.CancellationToken;
 import id.homebase.lib.core.DotYouClient;
 import id.homebase.lib.core.HttpClientOptions;
 import id.homebase.lib.core.crypto.CryptoUtil;
 import id.homebase.lib.core.file.types.BadRequestUploadResult;
+import id.homebase.lib.core.file.types.BundleBody;
+import id.homebase.lib.core.file.types.ChunkedUploadSession;
 import id.homebase.lib.core.file.types.EncryptedKeyHeader;
+import id.homebase.lib.core.file.types.FailedUploadResult;
 import id.homebase.lib.core.file.types.KeyHeader;
+import id.homebase.lib.core.file.types.SpillableBuffer;
 import id.homebase.lib.core.file.types.StreamRequestBody;
 import id.homebase.lib.core.file.types.SuccessfullUploadResult;
+import id.homebase.lib.core.file.types.UploadBundle;
 import id.homebase.lib.core.file.types.UploadFileMetadata;
 import id.homebase.lib.core.file.types.UploadInstructionSet;
 import id.homebase.lib.core.file.types.UploadManifest;
+import id.homebase.lib.core.file.types.UploadPayloadInstructionSet;
+import id.homebase.lib.core.file.types.UploadPayloadResult;
 import id.homebase.lib.core.file.types.UploadPayloadDescriptor;
 import id.homebase.lib.core.file.types.UploadResult;
 import id.homebase.lib.core.file.types.UploadThumbnailDescriptor;
@@ -41,15 +63,44 @@ import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadOrThumbnail
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadOrThumbnailFile;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadOrThumbnailStream;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailBase;
+import id.homebase.lib.core.metrics.Counter;
+import id.homebase.lib.core.metrics.Histogram;
+import id.homebase.lib.core.metrics.Metrics;
+import id.homebase.lib.core.metrics.Throughput;
+import id.homebase.lib.core.trace.Span;
+import id.homebase.lib.core.trace.Tracer;
 import kotlin.NotImplementedError;
+import okhttp3.Call;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.BufferedSink;
 
 public class DriveFileUploadProvider {
+    private static final Histogram DESCRIPTOR = Metrics.histogram("upload.descriptor", TimeUnit.MICROSECONDS);
+    private static final Histogram UPLOAD_LATENCY = Metrics.histogram("upload.latency", TimeUnit.MILLISECONDS);
+    private static final Throughput UPLOAD_SENT = Metrics.throughput("upload.sent");
+    private static final Counter UPLOAD_SUCCEEDED = Metrics.counter("upload.succeeded");
+    private static final Counter UPLOAD_BAD_REQUEST = Metrics.counter("upload.badRequest");
+    // By FailedUploadResult.Reason ordinal
+    private static final Counter[] UPLOAD_FAILED = new Counter[FailedUploadResult.Reason.values().length];
+
+    // Bundles this large go up in chunks of UPLOAD_CHUNK_SIZE
+    static final long CHUNKED_UPLOAD_THRESHOLD = 16L * 1024 * 1024;
+    static final int UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final String CHUNKED_UPLOAD_PATH = "/drive/files/upload/chunked";
+    // Set once the host turned out not to know chunked uploads
+    private static volatile boolean chunkedUploadUnsupported = false;
+
+    static {
+        for (FailedUploadResult.Reason reason : FailedUploadResult.Reason.values()) {
+            UPLOAD_FAILED[reason.ordinal()] = Metrics.counter("upload.failed." + reason.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
     public static UploadResult uploadFile(
             DotYouClient dotYouClient,
             UploadInstructionSet instructions,
@@ -96,12 +147,310 @@ public class DriveFileUploadProvider {
                 dotYouClient, keyHeader, instructions, metadata
         );
 
-        // Upload
-        MultipartBody data = buildFormData(
-                instructions, encryptedDescriptor, payloads, thumbnails, keyHeader, manifest
+        // Upload; the encrypted copies only live for the duration of the request
+        List<SpillableBuffer> encryptedBuffers = new ArrayList<>();
+        try {
+            MultipartBody data = buildFormData(
+                    instructions.toJsonString(), encryptedDescriptor, payloads, thumbnails, keyHeader, manifest, encryptedBuffers
+            );
+
+            return pureUpload(dotYouClient, "/drive/files/upload", data, SuccessfullUploadResult::new);
+        } finally {
+            for (SpillableBuffer buffer : encryptedBuffers) {
+                buffer.release();
+            }
+        }
+    }
+
+    // Adds (or replaces) payloads and their thumbnails on an existing file. The aesKey has to be the key of
+    // that file; each payload gets its own iv in the manifest, as with a full upload.
+    public static UploadResult uploadPayloads(
+            DotYouClient dotYouClient,
+            UploadPayloadInstructionSet instructions,
+            List<PayloadBase> payloads,
+            List<ThumbnailBase> thumbnails,
+            byte[] aesKey
+    ) throws Exception {
+        if (isDebug()) {
+            Log.v(null, "request: " + dotYouClient.getEndpoint() + "/drive/files/uploadpayload" +
+                    " versionTag: " + instructions.getVersionTag() +
+                    " payloads: " + payloads +
+                    " thumbnails: " + thumbnails);
+        }
+
+        boolean encrypt = aesKey != null;
+        KeyHeader keyHeader = encrypt ? generateKeyHeader(aesKey) : null;
+
+        UploadManifest manifest = buildManifest(payloads, thumbnails, encrypt);
+        instructions.setManifest(manifest);
+
+        List<SpillableBuffer> encryptedBuffers = new ArrayList<>();
+        try {
+            MultipartBody data = buildFormData(
+                    instructions.toJsonString(), null, payloads, thumbnails, keyHeader, manifest, encryptedBuffers
+            );
+
+            return pureUpload(dotYouClient, "/drive/files/uploadpayload", data, UploadPayloadResult::new);
+        } finally {
+            for (SpillableBuffer buffer : encryptedBuffers) {
+                buffer.release();
+            }
+        }
+    }
+
+    public static UploadBundle prepareUpload(
+            DotYouClient dotYouClient,
+            UploadInstructionSet instructions,
+            UploadFileMetadata<String> metadata,
+            List<PayloadBase> payloads,
+            List<ThumbnailBase> thumbnails,
+            boolean encrypt,
+            File directory,
+            boolean takeFiles
+    ) throws Exception {
+        byte[] aesKey = encrypt ? getRandom16ByteArray() : null;
+        return prepareUpload(dotYouClient, instructions, metadata, payloads, thumbnails, aesKey, directory, takeFiles);
+    }
+
+    // Does all the work of uploadFile except sending: the payloads and thumbnails are encrypted into files in
+    // the given directory, which then holds an UploadBundle for uploadBundle. With takeFiles, file payloads that
+    // go up unencrypted are moved into the bundle instead of referred to; for temporary files of the caller.
+    public static UploadBundle prepareUpload(
+            DotYouClient dotYouClient,
+            UploadInstructionSet instructions,
+            UploadFileMetadata<String> metadata,
+            List<PayloadBase> payloads,
+            List<ThumbnailBase> thumbnails,
+            byte[] aesKey,
+            File directory,
+            boolean takeFiles
+    ) throws Exception {
+        boolean encrypt = aesKey != null;
+
+        // Force isEncrypted on the metadata to match the encrypt flag
+        metadata.setIsEncrypted(encrypt);
+
+        KeyHeader keyHeader = encrypt ? generateKeyHeader(aesKey) : null;
+
+        UploadManifest manifest = buildManifest(payloads, thumbnails, encrypt);
+        instructions.setManifest(manifest);
+        instructions.setTransferIv(instructions.getTransferIv() != null ?
+                instructions.getTransferIv() : getRandom16ByteArray());
+
+        byte[] encryptedDescriptor = buildDescriptor(
+                dotYouClient, keyHeader, instructions, metadata
         );
 
-        return pureUpload(dotYouClient, data);
+        List<UploadBundle.Part> parts = new ArrayList<>();
+        Files.write(new File(directory, "descriptor").toPath(), encryptedDescriptor);
+        parts.add(new UploadBundle.Part("metaData", null, "application/octet-stream", "descriptor"));
+
+        for (int i = 0; i < payloads.size(); i++) {
+            PayloadBase payload = payloads.get(i);
+            KeyHeader partKeyHeader = keyHeader == null || payload.getSkipEncryption() ? null : getUpdatedKeyHeader(keyHeader, manifest, payload.getKey());
+            String path = writeBundlePart(payload, partKeyHeader, directory, "payload-" + i, takeFiles);
+            parts.add(new UploadBundle.Part("payload", payload.getKey(), payload.getContentType(), path));
+        }
+
+        for (int i = 0; i < thumbnails.size(); i++) {
+            ThumbnailBase thumb = thumbnails.get(i);
+            KeyHeader partKeyHeader = keyHeader == null ? null : getUpdatedKeyHeader(keyHeader, manifest, thumb.getKey());
+            String path = writeBundlePart(thumb, partKeyHeader, directory, "thumbnail-" + i, takeFiles);
+            parts.add(new UploadBundle.Part("thumbnail", thumb.getKey() + thumb.getPixelWidth(), thumb.getContentType(), path));
+        }
+
+        UploadBundle bundle = new UploadBundle(directory, instructions.toJsonString(), parts);
+        bundle.write();
+        return bundle;
+    }
+
+    // Sends a bundle made by prepareUpload; the request is the same as the one uploadFile builds. Large bundles
+    // go up in chunks, so a failed attempt or a process death costs at most the chunk that was being sent.
+    public static UploadResult uploadBundle(DotYouClient dotYouClient, UploadBundle bundle) throws Exception {
+        if (!chunkedUploadUnsupported && bundle.getSizeBytes() >= CHUNKED_UPLOAD_THRESHOLD) {
+            return uploadBundleChunked(dotYouClient, bundle, UPLOAD_CHUNK_SIZE);
+        }
+        return uploadBundleAtOnce(dotYouClient, bundle);
+    }
+
+    private static UploadResult uploadBundleAtOnce(DotYouClient dotYouClient, UploadBundle bundle) throws Exception {
+        if (isDebug()) {
+            Log.v(null, "request: " + dotYouClient.getEndpoint() + "/drive/files/upload" +
+                    " bundle: " + bundle.getDirectory().getName() +
+                    " size: " + bundle.getSizeBytes());
+        }
+
+        MultipartBody.Builder builder = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM);
+
+        builder.addFormDataPart("instructions", null, RequestBody.create(stringToByteArray(bundle.getInstructionsJson()), MediaType.parse("application/octet-stream")));
+        for (UploadBundle.Part part : bundle.getParts()) {
+            builder.addFormDataPart(part.name(), part.fileName(), RequestBody.create(bundle.getFile(part), MediaType.parse(part.contentType())));
+        }
+
+        return pureUpload(dotYouClient, "/drive/files/upload", builder.build(), SuccessfullUploadResult::new);
+    }
+
+    // Sends the body of the upload request in chunks of chunkSize bytes; the server puts them back together and
+    // handles the result like a /drive/files/upload request:
+    //   POST /drive/files/upload/chunked {contentType, totalBytes} -> {sessionId}
+    //   GET  /drive/files/upload/chunked/{sessionId} -> {receivedBytes}
+    //   PUT  /drive/files/upload/chunked/{sessionId} with Content-Range: bytes first-last/total -> {receivedBytes}
+    //   POST /drive/files/upload/chunked/{sessionId}/complete -> the upload result
+    // The session and the acknowledged offset are kept in the bundle directory after every chunk. The next attempt
+    // asks the server where it stands and only sends what it doesn't have yet.
+    static UploadResult uploadBundleChunked(DotYouClient dotYouClient, UploadBundle bundle, int chunkSize) throws Exception {
+        File directory = bundle.getDirectory();
+        ChunkedUploadSession session = ChunkedUploadSession.read(directory);
+        BundleBody body = new BundleBody(bundle, session != null ? session.boundary() : UUID.randomUUID().toString());
+
+        if (session != null && session.totalBytes() != body.getLength()) {
+            Log.w(null, "[DriveFileUploadProvider] Bundle " + directory.getName() + " changed since its chunked upload started");
+            session = null;
+        }
+
+        if (session != null) {
+            UploadResult status = queryChunkedUpload(dotYouClient, session);
+            if (status instanceof ChunkAcknowledgement) {
+                session = session.withAcknowledgedBytes(((ChunkAcknowledgement) status).receivedBytes);
+                session.write(directory);
+            } else if (status.getStatus() == 404) {
+                // The server dropped the session (e.g. it expired); the upload starts over
+                session = null;
+            } else {
+                return status;
+            }
+        }
+
+        if (session == null) {
+            JSONObject start = new JSONObject()
+                    .put("contentType", body.getContentType())
+                    .put("totalBytes", body.getLength());
+            Request request = new Request.Builder()
+                    .url(dotYouClient.getEndpoint() + CHUNKED_UPLOAD_PATH)
+                    .post(RequestBody.create(start.toString(), MediaType.parse("application/json")))
+                    .build();
+            UploadResult started = send(dotYouClient, request, CHUNKED_UPLOAD_PATH, 0, json -> new ChunkedUploadStarted(json.getString("sessionId")));
+            if (!(started instanceof ChunkedUploadStarted)) {
+                if (started.getStatus() == 404 || started.getStatus() == 405) {
+                    Log.w(null, "[DriveFileUploadProvider] Host doesn't support chunked uploads; uploading bundles at once");
+                    chunkedUploadUnsupported = true;
+                    return uploadBundleAtOnce(dotYouClient, bundle);
+                }
+                return started;
+            }
+            session = new ChunkedUploadSession(((ChunkedUploadStarted) started).sessionId, body.getBoundary(), body.getLength(), 0);
+            session.write(directory);
+        }
+
+        if (isDebug()) {
+            Log.v(null, "request: " + dotYouClient.getEndpoint() + CHUNKED_UPLOAD_PATH +
+                    " bundle: " + directory.getName() +
+                    " session: " + session.sessionId() +
+                    " acknowledged: " + session.acknowledgedBytes() + "/" + session.totalBytes());
+        }
+
+        while (!session.isComplete()) {
+            long offset = session.acknowledgedBytes();
+            long length = Math.min(chunkSize, session.totalBytes() - offset);
+            Request request = new Request.Builder()
+                    .url(dotYouClient.getEndpoint() + CHUNKED_UPLOAD_PATH + "/" + session.sessionId())
+                    .header("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + session.totalBytes())
+                    .put(new RequestBody() {
+                        @Override
+                        public MediaType contentType() {
+                            return MediaType.parse("application/octet-stream");
+                        }
+
+                        @Override
+                        public long contentLength() {
+                            return length;
+                        }
+
+                        @Override
+                        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+                            body.writeRange(offset, length, sink);
+                        }
+                    })
+                    .build();
+            UploadResult acknowledged = send(dotYouClient, request, CHUNKED_UPLOAD_PATH, length, ChunkAcknowledgement::new);
+            if (acknowledged.getStatus() == 409) {
+                // The server has a different offset, e.g. it got a chunk whose acknowledgement was lost
+                acknowledged = queryChunkedUpload(dotYouClient, session);
+                long receivedBytes = acknowledged instanceof ChunkAcknowledgement ? ((ChunkAcknowledgement) acknowledged).receivedBytes : offset;
+                if (receivedBytes != offset && receivedBytes <= session.totalBytes()) {
+                    session = session.withAcknowledgedBytes(receivedBytes);
+                    session.write(directory);
+                    continue;
+                }
+            }
+            if (!(acknowledged instanceof ChunkAcknowledgement)) {
+                if (acknowledged.getStatus() == 404) {
+                    ChunkedUploadSession.delete(directory);
+                }
+                return acknowledged;
+            }
+            long receivedBytes = ((ChunkAcknowledgement) acknowledged).receivedBytes;
+            if (receivedBytes <= offset) {
+                return new FailedUploadResult(FailedUploadResult.Reason.UNEXPECTED_RESPONSE, acknowledged.getStatus(), 0,
+                        "Chunk at " + offset + " not acknowledged; server has " + receivedBytes + " bytes");
+            }
+            session = session.withAcknowledgedBytes(receivedBytes);
+            session.write(directory);
+        }
+
+        Request request = new Request.Builder()
+                .url(dotYouClient.getEndpoint() + CHUNKED_UPLOAD_PATH + "/" + session.sessionId() + "/complete")
+                .post(RequestBody.create(new byte[0], null))
+                .build();
+        UploadResult result = send(dotYouClient, request, CHUNKED_UPLOAD_PATH, 0, SuccessfullUploadResult::new);
+        if (!(result instanceof FailedUploadResult) || result.getStatus() == 404) {
+            ChunkedUploadSession.delete(directory);
+        }
+        return result;
+    }
+
+    // Asks the server how many bytes of a chunked upload it has
+    private static UploadResult queryChunkedUpload(DotYouClient dotYouClient, ChunkedUploadSession session) throws Exception {
+        Request request = new Request.Builder()
+                .url(dotYouClient.getEndpoint() + CHUNKED_UPLOAD_PATH + "/" + session.sessionId())
+                .get()
+                .build();
+        return send(dotYouClient, request, CHUNKED_UPLOAD_PATH, 0, ChunkAcknowledgement::new);
+    }
+
+    // Writes a payload or thumbnail into the bundle directory, encrypted when a key header is given.
+    // Returns the path for the bundle part.
+    private static String writeBundlePart(PayloadOrThumbnailBase part, KeyHeader keyHeader, File directory, String name, boolean takeFiles) throws Exception {
+        File target = new File(directory, name);
+
+        if (part instanceof PayloadOrThumbnailFile) {
+            File source = ((PayloadOrThumbnailFile) part).getPayload();
+            if (keyHeader == null) {
+                if (!takeFiles) {
+                    return source.getAbsolutePath();
+                }
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return name;
+            }
+            try (InputStream inputStream = new FileInputStream(source);
+                 OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(target), SpillableBuffer.CHUNK_SIZE)) {
+                CryptoUtil.cbcEncryptStream(inputStream, outputStream, keyHeader.iv(), keyHeader.aesKey());
+            }
+            return name;
+        }
+
+        PayloadOrThumbnailStream stream = (PayloadOrThumbnailStream) part;
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(target), SpillableBuffer.CHUNK_SIZE)) {
+            if (keyHeader == null) {
+                stream.getOutputStream().writeTo(outputStream);
+            } else {
+                try (InputStream inputStream = stream.getInputStream()) {
+                    CryptoUtil.cbcEncryptStream(inputStream, outputStream, keyHeader.iv(), keyHeader.aesKey());
+                }
+            }
+        }
+        return name;
     }
 
     public static boolean isDebug() {
@@ -150,9 +499,12 @@ public class DriveFileUploadProvider {
             throw new IllegalArgumentException("Transfer IV is required");
         }
 
-        return encryptWithSharedSecret(dotYouClient,
+        long start = System.nanoTime();
+        byte[] descriptor = encryptWithSharedSecret(dotYouClient,
                 new DescriptorData(encryptKeyHeader(dotYouClient, keyHeader, instructions.getTransferIv()), encryptMetaData(metadata, keyHeader)),
                 instructions.getTransferIv());
+        DESCRIPTOR.recordSince(start);
+        return descriptor;
     }
 
     private static byte[] encryptWithSharedSecret(
@@ -171,18 +523,19 @@ public class DriveFileUploadProvider {
     }
 
     private static MultipartBody buildFormData(
-            UploadInstructionSet instructions,
+            String instructionsJson,
             byte[] encryptedDescriptor,
             List<PayloadBase> payloads,
             List<ThumbnailBase> thumbnails,
             KeyHeader keyHeader,
-            UploadManifest manifest
+            UploadManifest manifest,
+            List<SpillableBuffer> encryptedBuffers
     )
             throws Exception {
         MultipartBody.Builder builder = new MultipartBody.Builder()
                 .setType(MultipartBody.FORM);
 
-        builder.addFormDataPart("instructions", null, RequestBody.create(stringToByteArray(instructions.toJsonString()), MediaType.parse("application/octet-stream")));
+        builder.addFormDataPart("instructions", null, RequestBody.create(stringToByteArray(instructionsJson), MediaType.parse("application/octet-stream")));
 
         if (encryptedDescriptor != null) {
             builder.addFormDataPart("metaData", null, RequestBody.create(encryptedDescriptor, MediaType.parse("application/octet-stream")));
@@ -196,9 +549,12 @@ public class DriveFileUploadProvider {
                     payloadBody = getFileOrStreamRequestBody(payload);
                 } else {
                     java.io.File payloadFile = payload instanceof PayloadOrThumbnailFile ? ((PayloadOrThumbnailFile) payload).getPayload() : null;
-                    InputStream payloadStream = payload instanceof PayloadOrThumbnailStream ? ((PayloadOrThumbnailStream) payload).getInputStream() : null;
-
-                    ByteArrayOutputStream encryptedPayload = payloadFile != null ? CryptoUtil.encryptWithKeyheader(payloadFile, getUpdatedKeyHeader(keyHeader, manifest, payload.getKey())) : CryptoUtil.encryptWithKeyheader(payloadStream, getUpdatedKeyHeader(keyHeader, manifest, payload.getKey()));
+                    SpillableBuffer encryptedPayload;
+                    // Closing the stream lets its buffer recycle the chunks it read
+                    try (InputStream payloadStream = payload instanceof PayloadOrThumbnailStream ? ((PayloadOrThumbnailStream) payload).getInputStream() : null) {
+                        encryptedPayload = payloadFile != null ? CryptoUtil.encryptWithKeyheader(payloadFile, getUpdatedKeyHeader(keyHeader, manifest, payload.getKey())) : CryptoUtil.encryptWithKeyheader(payloadStream, getUpdatedKeyHeader(keyHeader, manifest, payload.getKey()));
+                    }
+                    encryptedBuffers.add(encryptedPayload);
                     payloadBody = new StreamRequestBody(encryptedPayload, MediaType.parse(payload.getContentType()));
                 }
 
@@ -215,9 +571,12 @@ public class DriveFileUploadProvider {
                     payloadBody = getFileOrStreamRequestBody(thumb);
                 } else {
                     java.io.File thumbFile = thumb instanceof PayloadOrThumbnailFile ? ((PayloadOrThumbnailFile) thumb).getPayload() : null;
-                    InputStream thumbStream = thumb instanceof PayloadOrThumbnailStream ? ((PayloadOrThumbnailStream) thumb).getInputStream() : null;
-
-                    ByteArrayOutputStream encryptedPayload = thumbFile != null ? CryptoUtil.encryptWithKeyheader(thumbFile, getUpdatedKeyHeader(keyHeader, manifest, thumb.getKey())) : CryptoUtil.encryptWithKeyheader(thumbStream, getUpdatedKeyHeader(keyHeader, manifest, thumb.getKey()));
+                    SpillableBuffer encryptedPayload;
+                    // Closing the stream lets its buffer recycle the chunks it read
+                    try (InputStream thumbStream = thumb instanceof PayloadOrThumbnailStream ? ((PayloadOrThumbnailStream) thumb).getInputStream() : null) {
+                        encryptedPayload = thumbFile != null ? CryptoUtil.encryptWithKeyheader(thumbFile, getUpdatedKeyHeader(keyHeader, manifest, thumb.getKey())) : CryptoUtil.encryptWithKeyheader(thumbStream, getUpdatedKeyHeader(keyHeader, manifest, thumb.getKey()));
+                    }
+                    encryptedBuffers.add(encryptedPayload);
                     payloadBody = new StreamRequestBody(encryptedPayload, MediaType.parse(thumb.getContentType()));
                 }
 
@@ -252,44 +611,103 @@ public class DriveFileUploadProvider {
         return keyHeader;
     }
 
+    // Returns the success result, a BadRequestUploadResult, or a FailedUploadResult that says why the upload
+    // didn't go through. Only a cancellation is thrown.
     private static UploadResult pureUpload(
             DotYouClient dotYouClient,
-            MultipartBody data
+            String path,
+            MultipartBody data,
+            JsonResult successResult
     ) throws Exception {
         Request request = new Request.Builder()
-                .url(dotYouClient.getEndpoint() + "/drive/files/upload")
+                .url(dotYouClient.getEndpoint() + path)
                 .post(data)
                 .build();
 
-        try (
-                Response response = dotYouClient.createHttpClient(new HttpClientOptions(true)).newCall(request).execute();
-                ResponseBody body = response.body()) {
-
-            if (body != null) {
-                String jsonData = body.string();
-                JSONObject uploadResultObject = new JSONObject(jsonData);
+        return send(dotYouClient, request, path, data.contentLength(), successResult);
+    }
 
+    private static UploadResult send(
+            DotYouClient dotYouClient,
+            Request request,
+            String path,
+            long contentLength,
+            JsonResult successResult
+    ) throws Exception {
+        // Cancelling the work aborts the call, including a request body that is still being sent
+        CancellationToken cancellation = CancellationToken.current();
+        Call call = dotYouClient.createHttpClient(new HttpClientOptions(true)).newCall(request);
+        // Covers the wait for a permit too, which is where a throttled upload spends its time
+        long waitStart = System.nanoTime();
+        try (Span span = Tracer.start("upload").attr("path", path).attr("bytes", contentLength)) {
+            UploadConcurrencyLimiter.Permit permit = UploadConcurrencyLimiter.getInstance().acquire(contentLength);
+            long start = System.nanoTime();
+            span.attr("permitWaitMs", TimeUnit.NANOSECONDS.toMillis(start - waitStart));
+            UploadResult result = null;
+            try (
+                    CancellationToken.Registration ignored = cancellation.register(call::cancel);
+                    Response response = call.execute();
+                    ResponseBody body = response.body()) {
+
+                String jsonData = body != null ? body.string() : "";
                 if (response.isSuccessful()) {
-                    return new SuccessfullUploadResult(uploadResultObject);
+                    result = successResult.apply(new JSONObject(jsonData));
                 } else if (response.code() == 400) {
-                    return new BadRequestUploadResult(uploadResultObject);
+                    result = new BadRequestUploadResult(new JSONObject(jsonData));
+                } else {
+                    result = FailedUploadResult.fromResponse(response.code(), response.header("Retry-After"), jsonData);
                 }
+            } catch (SocketTimeoutException e) {
+                result = new FailedUploadResult(FailedUploadResult.Reason.TIMEOUT, 0, 0, e.getMessage());
+            } catch (IOException e) {
+                cancellation.throwIfCancelled();
+                result = new FailedUploadResult(FailedUploadResult.Reason.NETWORK, 0, 0, e.getMessage());
+            } catch (JSONException e) {
+                result = new FailedUploadResult(FailedUploadResult.Reason.UNEXPECTED_RESPONSE, 0, 0, e.getMessage());
+            } finally {
+                permit.release(result);
+            }
 
-                // TODO
-                Log.e(null, "Error: " + jsonData);
+            UPLOAD_LATENCY.recordSince(start);
+            span.attr("status", result.getStatus());
+            if (result instanceof FailedUploadResult) {
+                span.attr("reason", ((FailedUploadResult) result).getReason().name());
+                UPLOAD_FAILED[((FailedUploadResult) result).getReason().ordinal()].increment();
+                Log.e(null, "[DriveFileUploadProvider] Upload to " + path + " failed: " + result);
             } else {
-                Log.e(null, "Body is null" + response.code() + " " + response.message());
-                throw new IllegalStateException("Body is null");
-                // Do something if the body is `null`
+                // The steps of a chunked upload only count once it completes
+                if (!(result instanceof ChunkAcknowledgement) && !(result instanceof ChunkedUploadStarted)) {
+                    (result instanceof BadRequestUploadResult ? UPLOAD_BAD_REQUEST : UPLOAD_SUCCEEDED).increment();
+                }
+                if (contentLength > 0) {
+                    UPLOAD_SENT.recordSince(contentLength, start);
+                }
             }
+            return result;
+        }
+    }
+
+    // Like a Function, but the JSON of the response may lack what the result needs
+    private interface JsonResult {
+        UploadResult apply(JSONObject json) throws JSONException;
+    }
 
-        } catch (Exception e) {
-            // TODO
-            Log.e(null, "Error: " + e.getMessage() + Arrays.toString(e.getStackTrace()));
+    private static class ChunkedUploadStarted extends UploadResult {
+        private final String sessionId;
+
+        ChunkedUploadStarted(String sessionId) {
+            super(200);
+            this.sessionId = sessionId;
         }
+    }
 
-        Log.e(null, "Error: " + "Unknown error");
-        throw new Exception("Unknown error");
+    private static class ChunkAcknowledgement extends UploadResult {
+        private final long receivedBytes;
+
+        ChunkAcknowledgement(JSONObject json) throws JSONException {
+            super(200);
+            this.receivedBytes = json.getLong("receivedBytes");
+        }
     }
 
     private static class DescriptorData {
@@ -0,0 +1,181 @@
+package id.homebase.lib.core.file;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+import id.homebase.lib.core.CancellationToken;
+import id.homebase.lib.core.file.types.FailedUploadResult;
+import id.homebase.lib.core.file.types.UploadResult;
+import id.homebase.lib.core.metrics.Metrics;
+
+// Limits how many uploads to the identity host run at once, with AIMD (additive increase, multiplicative
+// decrease) as in TCP congestion control. An upload that completes with a latency in line with the baseline
+// raises the limit by 1/limit, so by about one per round of uploads. A throttled (429/503) or timed out
+// upload, a server error or a latency spike cuts it, once per congestion event: uploads that were already
+// running when the limit was cut don't cut it again. A Retry-After holds back every new upload until it has
+// passed.
+//
+// Latency is compared per MiB sent, so small and large uploads share one baseline.
+public class UploadConcurrencyLimiter {
+    private static final double INITIAL_LIMIT = 2;
+    private static final double MIN_LIMIT = 1;
+    private static final double MAX_LIMIT = 8;
+    // Applied on throttling and timeouts, which are explicit signs of overload
+    private static final double OVERLOAD_DECREASE = 0.5;
+    // Applied on server errors and latency spikes
+    private static final double SPIKE_DECREASE = 0.75;
+    // A sample this many times above the baseline counts as a spike
+    private static final double SPIKE_FACTOR = 2.0;
+    private static final double BASELINE_SMOOTHING = 0.1;
+    // Uploads smaller than this are mostly round trips, and are measured as if they were this large
+    private static final double MIN_SAMPLE_MIB = 0.25;
+    private static final long DEFAULT_THROTTLE_PAUSE_MS = 2000;
+    private static final long MAX_RETRY_AFTER_MS = 5 * 60 * 1000;
+    private static UploadConcurrencyLimiter instance;
+
+    private double limit = INITIAL_LIMIT;
+    private int inFlight = 0;
+    private long pausedUntil = 0;
+    private long lastDecreaseAt = 0;
+    private double baselineMsPerMiB = 0;
+
+    private long throttled = 0;
+    private long timeouts = 0;
+    private long spikes = 0;
+
+    public static synchronized UploadConcurrencyLimiter getInstance() {
+        if (instance == null) {
+            instance = new UploadConcurrencyLimiter();
+            Metrics.gauge("upload.limit", instance::getLimit);
+            Metrics.gauge("upload.inFlight", instance::getInFlight);
+        }
+        return instance;
+    }
+
+    // Blocks until the upload may start; contentLength is -1 when unknown
+    public Permit acquire(long contentLength) throws InterruptedException {
+        CancellationToken cancellation = CancellationToken.current();
+        synchronized (this) {
+            try (CancellationToken.Registration ignored = cancellation.register(this::wakeUp)) {
+                while (true) {
+                    cancellation.throwIfCancelled();
+                    long pause = pausedUntil - SystemClock.elapsedRealtime();
+                    if (pause > 0) {
+                        wait(pause);
+                    } else if (inFlight >= (int) limit) {
+                        wait();
+                    } else {
+                        break;
+                    }
+                }
+            }
+            inFlight++;
+        }
+        return new Permit(contentLength, SystemClock.elapsedRealtime());
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private synchronized void complete(Permit permit, UploadResult result) {
+        inFlight--;
+        long now = SystemClock.elapsedRealtime();
+
+        if (result instanceof FailedUploadResult) {
+            FailedUploadResult failed = (FailedUploadResult) result;
+            switch (failed.getReason()) {
+                case THROTTLED:
+                    throttled++;
+                    long pause = failed.getRetryAfterMs() > 0 ? Math.min(failed.getRetryAfterMs(), MAX_RETRY_AFTER_MS) : DEFAULT_THROTTLE_PAUSE_MS;
+                    pausedUntil = Math.max(pausedUntil, now + pause);
+                    decrease(permit, now, OVERLOAD_DECREASE, "throttled, pausing " + pause + "ms");
+                    break;
+                case TIMEOUT:
+                    timeouts++;
+                    decrease(permit, now, OVERLOAD_DECREASE, "timeout");
+                    break;
+                case SERVER_ERROR:
+                    decrease(permit, now, SPIKE_DECREASE, "server error " + failed.getStatus());
+                    break;
+                default:
+                    // Says nothing about the load of the host
+                    break;
+            }
+        } else if (result != null) {
+            if (permit.contentLength > 0) {
+                double msPerMiB = (now - permit.startedAt) / Math.max(MIN_SAMPLE_MIB, permit.contentLength / (1024.0 * 1024.0));
+                boolean spike = baselineMsPerMiB > 0 && msPerMiB > baselineMsPerMiB * SPIKE_FACTOR;
+                // Spikes move the baseline too, so a lasting change in latency becomes the new normal
+                baselineMsPerMiB = baselineMsPerMiB == 0 ? msPerMiB : BASELINE_SMOOTHING * msPerMiB + (1 - BASELINE_SMOOTHING) * baselineMsPerMiB;
+                if (spike) {
+                    spikes++;
+                    decrease(permit, now, SPIKE_DECREASE, "latency spike, " + Math.round(msPerMiB) + "ms/MiB");
+                } else {
+                    limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+                }
+            } else {
+                limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+            }
+        }
+        notifyAll();
+    }
+
+    private void decrease(Permit permit, long now, double factor, String reason) {
+        if (permit.startedAt <= lastDecreaseAt) {
+            // Started before the last cut, so it's part of the same congestion event
+            return;
+        }
+        limit = Math.max(MIN_LIMIT, limit * factor);
+        lastDecreaseAt = now;
+        Log.v(null, "[UploadConcurrencyLimiter] " + reason + ", limit: " + String.format(Locale.ROOT, "%.2f", limit));
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized double getBaselineMsPerMiB() {
+        return baselineMsPerMiB;
+    }
+
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getSpikes() {
+        return spikes;
+    }
+
+    public class Permit {
+        private final long contentLength;
+        private final long startedAt;
+        private boolean released = false;
+
+        private Permit(long contentLength, long startedAt) {
+            this.contentLength = contentLength;
+            this.startedAt = startedAt;
+        }
+
+        // Gives the slot back, and feeds the outcome into the limit; result is null when the upload was aborted
+        public void release(UploadResult result) {
+            synchronized (UploadConcurrencyLimiter.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            complete(this, result);
+        }
+    }
+}
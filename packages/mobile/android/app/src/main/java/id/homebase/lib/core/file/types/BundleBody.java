@@ -0,0 +1,105 @@
+package id.homebase.lib.core.file.types;
+
+import static id.homebase.lib.core.crypto.CryptoUtil.stringToByteArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+// An UploadBundle laid out as the multipart/form-data body of the upload request. With a fixed boundary the
+// same bytes come out every time, and any range of them can be written without reading what comes before it;
+// a chunked upload carries on from an offset that way.
+public class BundleBody {
+    private final String boundary;
+    private final List<Segment> segments = new ArrayList<>();
+    private final long length;
+
+    // Either bytes of the body itself or a file in the bundle
+    private record Segment(byte[] bytes, File file, long length) {
+    }
+
+    public BundleBody(UploadBundle bundle, String boundary) {
+        this.boundary = boundary;
+
+        addPart("instructions", null, "application/octet-stream", stringToByteArray(bundle.getInstructionsJson()));
+        for (UploadBundle.Part part : bundle.getParts()) {
+            File file = bundle.getFile(part);
+            addHeader(part.name(), part.fileName(), part.contentType(), file.length());
+            segments.add(new Segment(null, file, file.length()));
+            addBytes("\r\n");
+        }
+        addBytes("--" + boundary + "--\r\n");
+
+        long length = 0;
+        for (Segment segment : segments) {
+            length += segment.length();
+        }
+        this.length = length;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    // Writes byteCount bytes of the body, starting at offset
+    public void writeRange(long offset, long byteCount, BufferedSink sink) throws IOException {
+        if (offset < 0 || byteCount < 0 || offset + byteCount > length) {
+            throw new IllegalArgumentException("Range " + offset + "+" + byteCount + " outside of " + length + " bytes");
+        }
+
+        long segmentStart = 0;
+        for (Segment segment : segments) {
+            long segmentEnd = segmentStart + segment.length();
+            if (byteCount > 0 && offset < segmentEnd) {
+                long start = offset - segmentStart;
+                long count = Math.min(byteCount, segment.length() - start);
+                if (segment.bytes() != null) {
+                    sink.write(segment.bytes(), (int) start, (int) count);
+                } else {
+                    try (FileInputStream inputStream = new FileInputStream(segment.file())) {
+                        inputStream.getChannel().position(start);
+                        try (Source source = Okio.source(inputStream)) {
+                            sink.write(source, count);
+                        }
+                    }
+                }
+                offset += count;
+                byteCount -= count;
+            }
+            segmentStart = segmentEnd;
+        }
+    }
+
+    private void addPart(String name, String fileName, String contentType, byte[] content) {
+        addHeader(name, fileName, contentType, content.length);
+        segments.add(new Segment(content, null, content.length));
+        addBytes("\r\n");
+    }
+
+    private void addHeader(String name, String fileName, String contentType, long contentLength) {
+        addBytes("--" + boundary + "\r\n" +
+                "Content-Disposition: form-data; name=\"" + name + "\"" + (fileName != null ? "; filename=\"" + fileName + "\"" : "") + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                "\r\n");
+    }
+
+    private void addBytes(String text) {
+        byte[] bytes = stringToByteArray(text);
+        segments.add(new Segment(bytes, null, bytes.length));
+    }
+}
@@ -0,0 +1,58 @@
+package id.homebase.lib.core.file.types;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// A chunked upload of a bundle in progress: the server's session, the boundary the BundleBody was laid out with
+// and how many of its bytes the server acknowledged. It's kept in the bundle directory, so a later attempt -
+// also after the process died - carries on from the last acknowledged chunk instead of starting over.
+public record ChunkedUploadSession(String sessionId, String boundary, long totalBytes, long acknowledgedBytes) {
+    public static final String FILE_NAME = "chunked.json";
+
+    public ChunkedUploadSession withAcknowledgedBytes(long acknowledgedBytes) {
+        return new ChunkedUploadSession(sessionId, boundary, totalBytes, acknowledgedBytes);
+    }
+
+    public boolean isComplete() {
+        return acknowledgedBytes >= totalBytes;
+    }
+
+    public void write(File directory) throws IOException, JSONException {
+        JSONObject json = new JSONObject();
+        json.put("sessionId", sessionId);
+        json.put("boundary", boundary);
+        json.put("totalBytes", totalBytes);
+        json.put("acknowledgedBytes", acknowledgedBytes);
+
+        // Written under a temporary name first, so the file is either complete or absent
+        File tempFile = new File(directory, FILE_NAME + ".tmp");
+        Files.write(tempFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), new File(directory, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null when no chunked upload of the bundle in the directory was started
+    public static ChunkedUploadSession read(File directory) throws IOException, JSONException {
+        File file = new File(directory, FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        return new ChunkedUploadSession(json.getString("sessionId"), json.getString("boundary"), json.getLong("totalBytes"), json.getLong("acknowledgedBytes"));
+    }
+
+    public static void delete(File directory) {
+        File file = new File(directory, FILE_NAME);
+        if (!file.delete() && file.exists()) {
+            Log.w(null, "[ChunkedUploadSession] Failed to delete " + file.getAbsolutePath());
+        }
+    }
+}
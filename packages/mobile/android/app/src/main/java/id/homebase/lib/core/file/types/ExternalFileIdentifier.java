@@ -15,4 +15,17 @@ public class ExternalFileIdentifier {
         assert targetDrive != null;
         this.targetDrive = new TargetDrive(targetDrive.optString("alias"), targetDrive.optString("type"));
     }
+
+    public ExternalFileIdentifier(String fileId, TargetDrive targetDrive) {
+        this.fileId = fileId;
+        this.targetDrive = targetDrive;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public TargetDrive getTargetDrive() {
+        return targetDrive;
+    }
 }
@@ -0,0 +1,88 @@
+package id.homebase.lib.core.file.types;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+// An upload that didn't make it to the server, or that the server couldn't handle. Unlike a
+// BadRequestUploadResult the request itself isn't wrong, so the same upload can succeed later.
+public class FailedUploadResult extends UploadResult {
+    public enum Reason {
+        // 429 or 503: the host asks to slow down, possibly with a Retry-After
+        THROTTLED,
+        // Any other 5xx
+        SERVER_ERROR,
+        // 401 or 403: the app's token was rejected
+        UNAUTHORIZED,
+        // Connecting, sending or waiting for the response timed out
+        TIMEOUT,
+        // No connection, a reset or any other I/O failure
+        NETWORK,
+        // A status or body the client doesn't know what to do with
+        UNEXPECTED_RESPONSE
+    }
+
+    private final Reason reason;
+    private final long retryAfterMs;
+    private final String message;
+
+    // status is 0 when there was no response
+    public FailedUploadResult(Reason reason, int status, long retryAfterMs, String message) {
+        super(status);
+        this.reason = reason;
+        this.retryAfterMs = retryAfterMs;
+        this.message = message;
+    }
+
+    public static FailedUploadResult fromResponse(int status, String retryAfter, String body) {
+        Reason reason;
+        if (status == 429 || status == 503) {
+            reason = Reason.THROTTLED;
+        } else if (status == 401 || status == 403) {
+            reason = Reason.UNAUTHORIZED;
+        } else if (status >= 500) {
+            reason = Reason.SERVER_ERROR;
+        } else {
+            reason = Reason.UNEXPECTED_RESPONSE;
+        }
+        return new FailedUploadResult(reason, status, parseRetryAfter(retryAfter), body);
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date; 0 when absent or unreadable
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (Exception ignored) {
+                return 0;
+            }
+        }
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "FailedUploadResult{" +
+                "reason=" + reason +
+                ", status=" + getStatus() +
+                ", retryAfterMs=" + retryAfterMs +
+                ", message='" + message + '\'' +
+                '}';
+    }
+}
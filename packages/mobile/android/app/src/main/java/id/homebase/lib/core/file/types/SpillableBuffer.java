@@ -0,0 +1,329 @@
+package id.homebase.lib.core.file.types;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+// Output buffer that keeps its content in pooled in-memory chunks up to a threshold, and spills everything
+// to a temporary file once it grows past it. This puts a hard ceiling on the heap used per payload or
+// thumbnail, no matter how large the (encrypted) content gets.
+//
+// The content can be read any number of times (the upload body may be written more than once on retries)
+// until release() is called, which returns the chunks to the pool and deletes the temporary file. Chunks
+// that an open input stream still reads from only go back to the pool once that stream is closed.
+public class SpillableBuffer extends OutputStream {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 128;
+    private static final ConcurrentLinkedQueue<byte[]> chunkPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private static volatile long defaultThreshold = 4 * 1024 * 1024;
+    private static volatile File tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    private final long threshold;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int lastChunkLength = CHUNK_SIZE;
+    private long size = 0;
+
+    private File spillFile;
+    private OutputStream spillStream;
+    private boolean released = false;
+    // Input streams reading from the memory chunks that aren't closed yet
+    private int openReaders = 0;
+
+    public SpillableBuffer() {
+        this(defaultThreshold);
+    }
+
+    public SpillableBuffer(long threshold) {
+        this.threshold = threshold;
+    }
+
+    public static void setDefaultThreshold(long threshold) {
+        defaultThreshold = threshold;
+    }
+
+    public static long getDefaultThreshold() {
+        return defaultThreshold;
+    }
+
+    public static void setTempDirectory(File directory) {
+        tempDirectory = directory;
+    }
+
+    // Drops pooled chunks that aren't in use
+    public static void trimPool() {
+        while (chunkPool.poll() != null) {
+            pooledChunks.decrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (released) {
+            throw new IOException("Buffer was already released");
+        }
+        if (spillFile == null && size + len > threshold) {
+            spill();
+        }
+        size += len;
+
+        if (spillStream != null) {
+            spillStream.write(b, off, len);
+        } else {
+            while (len > 0) {
+                if (lastChunkLength == CHUNK_SIZE) {
+                    chunks.add(obtainChunk());
+                    lastChunkLength = 0;
+                }
+                int count = Math.min(len, CHUNK_SIZE - lastChunkLength);
+                System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastChunkLength, count);
+                lastChunkLength += count;
+                off += count;
+                len -= count;
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("buffer-", ".tmp", tempDirectory);
+        spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), CHUNK_SIZE);
+        for (int i = 0; i < chunks.size(); i++) {
+            spillStream.write(chunks.get(i), 0, i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE);
+        }
+        if (openReaders > 0) {
+            // Open readers keep their chunks; they're left to the garbage collector instead of the pool
+            chunks.clear();
+            lastChunkLength = CHUNK_SIZE;
+        } else {
+            recycleChunks();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (spillStream != null) {
+            spillStream.flush();
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    // Reads the content straight from the memory chunks or the spill file, without copying it first
+    public synchronized InputStream newInputStream() throws IOException {
+        if (released) {
+            throw new IOException("Buffer was already released");
+        }
+        flush();
+        if (spillFile != null) {
+            return new FileInputStream(spillFile);
+        }
+        openReaders++;
+        return new ChunkInputStream(new ArrayList<>(chunks), size);
+    }
+
+    public synchronized void writeTo(OutputStream outputStream) throws IOException {
+        if (released) {
+            throw new IOException("Buffer was already released");
+        }
+        if (spillFile != null) {
+            try (InputStream inputStream = newInputStream()) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+        } else {
+            for (int i = 0; i < chunks.size(); i++) {
+                outputStream.write(chunks.get(i), 0, i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE);
+            }
+        }
+    }
+
+    public synchronized void writeTo(BufferedSink sink) throws IOException {
+        if (released) {
+            throw new IOException("Buffer was already released");
+        }
+        if (spillFile != null) {
+            flush();
+            try (Source source = Okio.source(spillFile)) {
+                sink.writeAll(source);
+            }
+        } else {
+            for (int i = 0; i < chunks.size(); i++) {
+                sink.write(chunks.get(i), 0, i == chunks.size() - 1 ? lastChunkLength : CHUNK_SIZE);
+            }
+        }
+    }
+
+    // Encodes straight from the chunks or the file, so only the resulting string is allocated
+    public synchronized String toBase64() throws IOException {
+        StringBuilder builder = new StringBuilder((int) Math.min(Integer.MAX_VALUE, (size + 2) / 3 * 4));
+        try (OutputStream encoder = Base64.getEncoder().wrap(new OutputStream() {
+            @Override
+            public void write(int b) {
+                builder.append((char) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                builder.append(new String(b, off, len, StandardCharsets.US_ASCII));
+            }
+        })) {
+            writeTo(encoder);
+        }
+        return builder.toString();
+    }
+
+    public synchronized byte[] toByteArray() throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Buffer is too large for a byte array: " + size);
+        }
+        byte[] bytes = new byte[(int) size];
+        try (InputStream inputStream = newInputStream()) {
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = inputStream.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+    }
+
+    // Returns the memory chunks to the pool, or leaves that to the last open reader, and deletes the spill file
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (openReaders == 0) {
+            recycleChunks();
+        }
+        if (spillStream != null) {
+            try {
+                spillStream.close();
+            } catch (IOException e) {
+                Log.e(null, "Error closing spill file: " + e.getMessage());
+            }
+            spillStream = null;
+        }
+        if (spillFile != null && !spillFile.delete()) {
+            Log.e(null, "Failed to delete spill file: " + spillFile.getAbsolutePath());
+        }
+    }
+
+    private synchronized void readerClosed() {
+        openReaders--;
+        if (released && openReaders == 0) {
+            recycleChunks();
+        }
+    }
+
+    private void recycleChunks() {
+        for (byte[] chunk : chunks) {
+            if (pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                chunkPool.offer(chunk);
+            } else {
+                pooledChunks.decrementAndGet();
+            }
+        }
+        chunks.clear();
+        lastChunkLength = CHUNK_SIZE;
+    }
+
+    private static byte[] obtainChunk() {
+        byte[] chunk = chunkPool.poll();
+        if (chunk != null) {
+            pooledChunks.decrementAndGet();
+            return chunk;
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private final List<byte[]> chunks;
+        private final long size;
+        private long position = 0;
+        private volatile boolean closed = false;
+
+        ChunkInputStream(List<byte[]> chunks, long size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (closed) {
+                throw new IOException("Stream was closed");
+            }
+            if (position >= size) {
+                return -1;
+            }
+            byte b = chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)];
+            position++;
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream was closed");
+            }
+            if (position >= size) {
+                return -1;
+            }
+            int offsetInChunk = (int) (position % CHUNK_SIZE);
+            int count = (int) Math.min(Math.min(len, CHUNK_SIZE - offsetInChunk), size - position);
+            System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), offsetInChunk, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, size - position);
+        }
+
+        // Lets the buffer recycle the chunks once it's released
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                readerClosed();
+            }
+        }
+    }
+}
@@ -1,21 +1,18 @@
 package id.homebase.lib.core.file.types;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okio.BufferedSink;
-import okio.Okio;
 
-// Custom RequestBody implementation
+// Custom RequestBody implementation, writing straight from the buffer so it can be sent again on retries
 public class StreamRequestBody extends RequestBody {
-    private final ByteArrayOutputStream inputStream;
+    private final SpillableBuffer buffer;
     private final MediaType mediaType;
 
-    public StreamRequestBody(ByteArrayOutputStream inputStream, MediaType mediaType) {
-        this.inputStream = inputStream;
+    public StreamRequestBody(SpillableBuffer buffer, MediaType mediaType) {
+        this.buffer = buffer;
         this.mediaType = mediaType;
     }
 
@@ -25,14 +22,12 @@ public class StreamRequestBody extends RequestBody {
     }
 
     @Override
-    public void writeTo(BufferedSink sink) throws IOException {
-        try (inputStream) { // Use try-with-resources to ensure the stream is closed
-            sink.writeAll(Okio.source(convertOutputStreamToInputStream()));
-        }
+    public long contentLength() {
+        return buffer.size();
     }
 
-    private InputStream convertOutputStreamToInputStream() throws IOException {
-        return StreamUtil.convertOutputStreamToInputStream(inputStream);
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        buffer.writeTo(sink);
     }
 }
-
@@ -31,5 +31,20 @@ public class SuccessfullUploadResult extends UploadResult {
 
         this.newVersionTag = uploadResult.optString("newVersionTag");
     }
-}
 
+    public KeyHeader getKeyHeader() {
+        return keyHeader;
+    }
+
+    public ExternalFileIdentifier getFile() {
+        return file;
+    }
+
+    public GlobalTransitIdFileIdentifier getGlobalTransitIdFileIdentifier() {
+        return globalTransitIdFileIdentifier;
+    }
+
+    public String getNewVersionTag() {
+        return newVersionTag;
+    }
+}
@@ -0,0 +1,109 @@
+package id.homebase.lib.core.file.types;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// A fully prepared upload on disk: the instructions (with the manifest), the encrypted descriptor and every
+// (encrypted) payload and thumbnail as a file of its own, exactly as they go into the multipart request.
+// Uploading it takes no CPU work beyond reading the files, however often it's retried.
+//
+// bundle.json is written last, so a directory without it holds an incomplete preparation.
+public class UploadBundle {
+    public static final String BUNDLE_FILE_NAME = "bundle.json";
+
+    private final File directory;
+    private final String instructionsJson;
+    private final List<Part> parts;
+
+    // A part of the multipart request. A relative path is a file in the bundle directory, an absolute path
+    // a file the bundle only refers to (e.g. an original that is uploaded as is).
+    public record Part(String name, String fileName, String contentType, String path) {
+    }
+
+    public UploadBundle(File directory, String instructionsJson, List<Part> parts) {
+        this.directory = directory;
+        this.instructionsJson = instructionsJson;
+        this.parts = parts;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public String getInstructionsJson() {
+        return instructionsJson;
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    public File getFile(Part part) {
+        File file = new File(part.path());
+        return file.isAbsolute() ? file : new File(directory, part.path());
+    }
+
+    // The bytes the upload sends, apart from the instructions
+    public long getSizeBytes() {
+        long size = 0;
+        for (Part part : parts) {
+            size += getFile(part).length();
+        }
+        return size;
+    }
+
+    // Whether every file the bundle refers to is still there
+    public boolean isIntact() {
+        for (Part part : parts) {
+            if (!getFile(part).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void write() throws IOException, JSONException {
+        JSONArray partsJson = new JSONArray();
+        for (Part part : parts) {
+            partsJson.put(new JSONObject()
+                    .put("name", part.name())
+                    .put("fileName", part.fileName() != null ? part.fileName() : JSONObject.NULL)
+                    .put("contentType", part.contentType())
+                    .put("path", part.path()));
+        }
+        JSONObject json = new JSONObject();
+        json.put("instructions", instructionsJson);
+        json.put("parts", partsJson);
+
+        // Written under a temporary name first, so the bundle file is either complete or absent
+        File tempFile = new File(directory, BUNDLE_FILE_NAME + ".tmp");
+        Files.write(tempFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile.toPath(), new File(directory, BUNDLE_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null when the directory doesn't hold a complete bundle
+    public static UploadBundle read(File directory) throws IOException, JSONException {
+        File bundleFile = new File(directory, BUNDLE_FILE_NAME);
+        if (!bundleFile.isFile()) {
+            return null;
+        }
+
+        JSONObject json = new JSONObject(new String(Files.readAllBytes(bundleFile.toPath()), StandardCharsets.UTF_8));
+        List<Part> parts = new ArrayList<>();
+        JSONArray partsJson = json.getJSONArray("parts");
+        for (int i = 0; i < partsJson.length(); i++) {
+            JSONObject part = partsJson.getJSONObject(i);
+            parts.add(new Part(part.getString("name"), part.isNull("fileName") ? null : part.getString("fileName"), part.getString("contentType"), part.getString("path")));
+        }
+        return new UploadBundle(directory, json.getString("instructions"), parts);
+    }
+}
@@ -0,0 +1,37 @@
+package id.homebase.lib.core.file.types;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Instructions for adding payloads to an existing file; versionTag must be the file's current version
+@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+public class UploadPayloadInstructionSet {
+    private final ExternalFileIdentifier targetFile;
+    private final String versionTag;
+    private UploadManifest manifest;
+
+    public UploadPayloadInstructionSet(ExternalFileIdentifier targetFile, String versionTag) {
+        this.targetFile = targetFile;
+        this.versionTag = versionTag;
+    }
+
+    public void setManifest(UploadManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    public ExternalFileIdentifier getTargetFile() {
+        return targetFile;
+    }
+
+    public String getVersionTag() {
+        return versionTag;
+    }
+
+    public String toJsonString() throws JsonProcessingException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+        return objectMapper.writeValueAsString(this);
+    }
+}
@@ -0,0 +1,16 @@
+package id.homebase.lib.core.file.types;
+
+import org.json.JSONObject;
+
+public class UploadPayloadResult extends UploadResult {
+    private final String newVersionTag;
+
+    public UploadPayloadResult(JSONObject uploadResult) {
+        super(200);
+        this.newVersionTag = uploadResult.optString("newVersionTag");
+    }
+
+    public String getNewVersionTag() {
+        return newVersionTag;
+    }
+}
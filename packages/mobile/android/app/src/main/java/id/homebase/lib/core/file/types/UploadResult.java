@@ -6,4 +6,8 @@ public class UploadResult {
     public UploadResult(int status) {
         this.status = status;
     }
+
+    public int getStatus() {
+        return status;
+    }
 }
@@ -1,34 +1,35 @@
 package id.homebase.lib.core.file.types.payloadorthumbnailbase;
 
-import static id.homebase.lib.core.crypto.CryptoUtil.byteArrayToBase64;
-
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-import id.homebase.lib.core.file.types.StreamUtil;
+import id.homebase.lib.core.file.types.SpillableBuffer;
 
 public class PayloadOrThumbnailStream implements PayloadOrThumbnailBase {
-    private final ByteArrayOutputStream outputStream;
+    private final SpillableBuffer outputStream;
     String key;
     String contentType;
 
-    public PayloadOrThumbnailStream(String payloadKey, ByteArrayOutputStream outputStream, String contentType) {
+    public PayloadOrThumbnailStream(String payloadKey, SpillableBuffer outputStream, String contentType) {
         this.outputStream = outputStream;
         this.key = payloadKey;
         this.contentType = contentType;
     }
 
-    public ByteArrayOutputStream getOutputStream() {
+    public SpillableBuffer getOutputStream() {
         return outputStream;
     }
 
     public InputStream getInputStream() throws IOException {
-        return StreamUtil.convertOutputStreamToInputStream(outputStream);
+        return outputStream.newInputStream();
+    }
+
+    public String getBase64() throws IOException {
+        return outputStream.toBase64();
     }
 
-    public String getBase64() {
-        return byteArrayToBase64(outputStream.toByteArray());
+    public void release() {
+        outputStream.release();
     }
 
     @Override
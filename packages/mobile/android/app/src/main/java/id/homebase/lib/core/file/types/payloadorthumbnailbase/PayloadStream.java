@@ -1,8 +1,7 @@
 package id.homebase.lib.core.file.types.payloadorthumbnailbase;
 
-import java.io.ByteArrayOutputStream;
-
 import id.homebase.lib.core.file.types.EmbeddedThumb;
+import id.homebase.lib.core.file.types.SpillableBuffer;
 
 public class PayloadStream extends PayloadOrThumbnailStream implements PayloadBase {
     String descriptorContent = null;
@@ -10,17 +9,17 @@ public class PayloadStream extends PayloadOrThumbnailStream implements PayloadBa
     byte[] iv = null;
     boolean skipEncryption = false;
 
-    public PayloadStream(String payloadKey, ByteArrayOutputStream outputStream, String contentType) {
+    public PayloadStream(String payloadKey, SpillableBuffer outputStream, String contentType) {
         super(payloadKey, outputStream, contentType);
     }
 
-    public PayloadStream(String defaultPayloadKey, ByteArrayOutputStream outputStream, EmbeddedThumb previewThumbnail, String mimeType, String descriptorContent) {
+    public PayloadStream(String defaultPayloadKey, SpillableBuffer outputStream, EmbeddedThumb previewThumbnail, String mimeType, String descriptorContent) {
         super(defaultPayloadKey, outputStream, mimeType);
         this.previewThumbnail = previewThumbnail;
         this.descriptorContent = descriptorContent;
     }
 
-    public PayloadStream(String defaultPayloadKey, ByteArrayOutputStream outputStream, EmbeddedThumb previewThumbnail, String mimeType, String descriptorContent, boolean skipEncryption, byte[] iv) {
+    public PayloadStream(String defaultPayloadKey, SpillableBuffer outputStream, EmbeddedThumb previewThumbnail, String mimeType, String descriptorContent, boolean skipEncryption, byte[] iv) {
         super(defaultPayloadKey, outputStream, mimeType);
         this.previewThumbnail = previewThumbnail;
         this.descriptorContent = descriptorContent;
@@ -1,12 +1,12 @@
 package id.homebase.lib.core.file.types.payloadorthumbnailbase;
 
-import java.io.ByteArrayOutputStream;
+import id.homebase.lib.core.file.types.SpillableBuffer;
 
 public class ThumbnailStream extends PayloadOrThumbnailStream implements ThumbnailBase {
     int pixelHeight = 0;
     int pixelWidth = 0;
 
-    public ThumbnailStream(String payloadKey, ByteArrayOutputStream outputStream, int resizedHeight, int resizedWidth, String contentType) {
+    public ThumbnailStream(String payloadKey, SpillableBuffer outputStream, int resizedHeight, int resizedWidth, String contentType) {
         super(payloadKey, outputStream, contentType);
         this.pixelHeight = resizedHeight;
         this.pixelWidth = resizedWidth;
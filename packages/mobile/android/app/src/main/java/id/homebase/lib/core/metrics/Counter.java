@@ -0,0 +1,28 @@
+package id.homebase.lib.core.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class Counter {
+    private final String name;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,28 @@
+package id.homebase.lib.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// A current value: either set by the code that owns it, or read from a supplier when it's asked for
+public class Gauge {
+    private final String name;
+    private final LongSupplier supplier;
+    private final AtomicLong value = new AtomicLong();
+
+    Gauge(String name, LongSupplier supplier) {
+        this.name = name;
+        this.supplier = supplier;
+    }
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    public long get() {
+        return supplier != null ? supplier.getAsLong() : value.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,95 @@
+package id.homebase.lib.core.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Distribution of values in power-of-two buckets: bucket 0 holds 0, bucket i holds [2^(i-1), 2^i). That's
+// coarse, but recording is a handful of atomic increments, and percentiles are within a factor of two.
+public class Histogram {
+    public static final int BUCKETS = 64;
+
+    private final String name;
+    // Unit the values are recorded in, or null when they aren't durations
+    private final TimeUnit unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, TimeUnit unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+            // Lost a race with another writer; retry against its value
+        }
+    }
+
+    // Records the time since startNanos (from System.nanoTime()) in the histogram's unit
+    public void recordSince(long startNanos) {
+        record(unit.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS));
+    }
+
+    private static int bucketOf(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    // Upper bound of the bucket that holds the given percentile (0-100)
+    public long getPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    public long[] getBuckets() {
+        long[] values = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            values[i] = buckets.get(i);
+        }
+        return values;
+    }
+
+    public TimeUnit getUnit() {
+        return unit;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
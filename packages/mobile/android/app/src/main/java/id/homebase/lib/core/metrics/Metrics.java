@@ -0,0 +1,53 @@
+package id.homebase.lib.core.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Process-wide registry of the sync pipeline's metrics: counters, gauges, throughputs and latency histograms.
+//
+// Metrics are looked up once, into static fields of the code they measure, and recording on them is lock-free
+// and doesn't allocate, so it can sit in per-chunk loops. A snapshot (see SyncDiagnosticsModule) reads them
+// all without stopping the writers, so it's consistent per metric but not across metrics.
+public class Metrics {
+    private static final Map<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+    public static Counter counter(String name) {
+        return get(name, Counter.class, () -> new Counter(name));
+    }
+
+    public static Gauge gauge(String name) {
+        return get(name, Gauge.class, () -> new Gauge(name, null));
+    }
+
+    // A gauge that reads its value from the owner when a snapshot is taken, e.g. a queue depth; registering the
+    // same name again replaces the supplier
+    public static Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = new Gauge(name, supplier);
+        metrics.put(name, gauge);
+        return gauge;
+    }
+
+    public static Histogram histogram(String name, TimeUnit unit) {
+        return get(name, Histogram.class, () -> new Histogram(name, unit));
+    }
+
+    public static Throughput throughput(String name) {
+        return get(name, Throughput.class, () -> new Throughput(name));
+    }
+
+    // All metrics, by name
+    public static Map<String, Object> getAll() {
+        return metrics;
+    }
+
+    private static <T> T get(String name, Class<T> type, Supplier<T> create) {
+        Object metric = metrics.computeIfAbsent(name, key -> create.get());
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is registered as a " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+}
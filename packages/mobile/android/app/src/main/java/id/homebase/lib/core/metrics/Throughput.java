@@ -0,0 +1,46 @@
+package id.homebase.lib.core.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Bytes processed and the time it took, e.g. by encryption or uploads; the rate is derived when it's read
+public class Throughput {
+    private final String name;
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder operations = new LongAdder();
+
+    Throughput(String name) {
+        this.name = name;
+    }
+
+    public void record(long bytes, long nanos) {
+        this.bytes.add(bytes);
+        this.nanos.add(nanos);
+        operations.increment();
+    }
+
+    public void recordSince(long bytes, long startNanos) {
+        record(bytes, System.nanoTime() - startNanos);
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    public long getOperations() {
+        return operations.sum();
+    }
+
+    public double getMiBPerSecond() {
+        long totalNanos = nanos.sum();
+        return totalNanos == 0 ? 0 : (bytes.sum() / (1024.0 * 1024.0)) / (totalNanos / 1e9);
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,52 @@
+package id.homebase.lib.core.trace;
+
+import android.os.Trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A timed section of work, e.g. the transcode of one video. Started with Tracer.start() and ended by close(),
+// on the same thread, so it nests with the android.os.Trace section it's mirrored to.
+public class Span implements AutoCloseable {
+    // Longest section name android.os.Trace accepts
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    final long id;
+    final long parentId;
+    final String name;
+    final long startMicros;
+    final long threadId;
+    final String threadName;
+    final Map<String, Object> attributes = new LinkedHashMap<>();
+    long durationMicros = -1;
+    private final Span parent;
+
+    Span(long id, Span parent, String name) {
+        this.id = id;
+        this.parentId = parent != null ? parent.id : 0;
+        this.name = name;
+        this.parent = parent;
+        Thread thread = Thread.currentThread();
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+        this.startMicros = System.nanoTime() / 1000;
+        Trace.beginSection(name.length() > MAX_SECTION_NAME_LENGTH ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name);
+    }
+
+    public synchronized Span attr(String key, Object value) {
+        attributes.put(key, value);
+        return this;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (durationMicros >= 0) {
+                return;
+            }
+            durationMicros = System.nanoTime() / 1000 - startMicros;
+        }
+        Trace.endSection();
+        Tracer.finish(this, parent);
+    }
+}
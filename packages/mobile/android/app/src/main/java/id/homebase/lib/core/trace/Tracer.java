@@ -0,0 +1,119 @@
+package id.homebase.lib.core.trace;
+
+import android.os.Process;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Records spans of the sync pipeline (per item: probe, posters, transcode, encrypt, upload) into a bounded
+// ring buffer, to explain afterwards why a particular item was slow, e.g. from a device in the field. Every
+// span is also an android.os.Trace section, so it shows up in a Perfetto or systrace capture.
+//
+// A span started on a thread becomes that thread's current span and the parent of the spans started within
+// it. MediaJobExecutor and ImageDecodeExecutor carry the current span over to the work they run, so the spans
+// of an FFmpeg job or a decode are children of the item that submitted it.
+//
+// Only finished spans are kept; once the buffer is full the oldest are overwritten.
+public class Tracer {
+    private static final int CAPACITY = 4096;
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+    private static final AtomicReferenceArray<Span> buffer = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong ids = new AtomicLong();
+
+    // Starts a span as a child of the calling thread's current span
+    public static Span start(String name) {
+        Span parent = current.get();
+        Span span = new Span(ids.incrementAndGet(), parent, name);
+        current.set(span);
+        return span;
+    }
+
+    static void finish(Span span, Span parent) {
+        // Spans close in reverse order of starting, so the parent becomes current again
+        if (current.get() == span) {
+            current.set(parent);
+        }
+        buffer.set((int) (written.getAndIncrement() % CAPACITY), span);
+    }
+
+    public static Span current() {
+        return current.get();
+    }
+
+    // Makes the span the calling thread's current one, for work done on behalf of it on another thread; the
+    // returned scope restores the previous one
+    public static Scope enter(Span span) {
+        Span previous = current.get();
+        current.set(span);
+        return () -> current.set(previous);
+    }
+
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            buffer.set(i, null);
+        }
+    }
+
+    // The buffer in the Chrome trace event format, which chrome://tracing and ui.perfetto.dev open. Every span
+    // is a complete ("X") event on the thread it ran on, with its attributes, id and parent id as args.
+    public static String toChromeTrace() throws JSONException {
+        int pid = Process.myPid();
+        JSONArray events = new JSONArray();
+        Map<Long, String> threadNames = new HashMap<>();
+
+        for (int i = 0; i < CAPACITY; i++) {
+            Span span = buffer.get(i);
+            if (span == null) {
+                continue;
+            }
+            JSONObject args = new JSONObject();
+            synchronized (span) {
+                for (Map.Entry<String, Object> attribute : span.attributes.entrySet()) {
+                    args.put(attribute.getKey(), attribute.getValue());
+                }
+            }
+            args.put("id", span.id);
+            if (span.parentId != 0) {
+                args.put("parentId", span.parentId);
+            }
+
+            JSONObject event = new JSONObject();
+            event.put("name", span.name);
+            event.put("ph", "X");
+            event.put("ts", span.startMicros);
+            event.put("dur", span.durationMicros);
+            event.put("pid", pid);
+            event.put("tid", span.threadId);
+            event.put("args", args);
+            events.put(event);
+            threadNames.put(span.threadId, span.threadName);
+        }
+
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            JSONObject event = new JSONObject();
+            event.put("name", "thread_name");
+            event.put("ph", "M");
+            event.put("pid", pid);
+            event.put("tid", thread.getKey());
+            event.put("args", new JSONObject().put("name", thread.getValue()));
+            events.put(event);
+        }
+
+        return new JSONObject()
+                .put("traceEvents", events)
+                .put("displayTimeUnit", "ms")
+                .toString();
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -14,6 +14,10 @@ import com.microsoft.codepush.react.CodePush;
 import java.lang.reflect.Field;
 import android.database.CursorWindow;
 
+import id.homebase.lib.core.file.types.SpillableBuffer;
+import id.homebase.photos.mediasync.MemoryGovernor;
+import id.homebase.photos.mediasync.WorkspaceManager;
+
 public class MainApplication extends Application implements ReactApplication {
 
   private final ReactNativeHost mReactNativeHost =
@@ -80,5 +84,12 @@ public class MainApplication extends Application implements ReactApplication {
         e.printStackTrace();
       }
     }
+
+    // Spill files go to the cache directory, where WorkspaceManager sweeps the ones a killed process left behind
+    SpillableBuffer.setTempDirectory(getCacheDir());
+    // Sweeps temp files of jobs that didn't finish in a previous process
+    WorkspaceManager.getInstance(this);
+    // Shrinks the pools and the decode budget of the sync under memory pressure
+    registerComponentCallbacks(MemoryGovernor.getInstance(this));
   }
 }
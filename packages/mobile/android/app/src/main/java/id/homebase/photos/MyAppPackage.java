@@ -25,6 +25,7 @@ public class MyAppPackage implements ReactPackage {
         modules.add(new OdinBlobModule(reactContext));
         modules.add(new PhotoInfoModule(reactContext));
         modules.add(new SyncTrigger(reactContext));
+        modules.add(new SyncDiagnosticsModule(reactContext));
 
         return modules;
     }
@@ -0,0 +1,108 @@
+package id.homebase.photos;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Locale;
+import java.util.Map;
+
+import id.homebase.lib.core.metrics.Counter;
+import id.homebase.lib.core.metrics.Gauge;
+import id.homebase.lib.core.metrics.Histogram;
+import id.homebase.lib.core.metrics.Metrics;
+import id.homebase.lib.core.metrics.Throughput;
+import id.homebase.lib.core.trace.Tracer;
+
+// Exposes the sync pipeline's metrics and recent trace spans to JS, for a diagnostics screen or a support report
+public class SyncDiagnosticsModule extends ReactContextBaseJavaModule {
+
+    public SyncDiagnosticsModule(ReactApplicationContext context) {
+        super(context);
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return "SyncDiagnostics";
+    }
+
+    // Resolves with a map of metric name to its current value: a number for counters and gauges, and a map for
+    // throughputs and histograms
+    @ReactMethod
+    public void getSnapshot(Promise promise) {
+        try {
+            WritableMap snapshot = Arguments.createMap();
+            for (Map.Entry<String, Object> entry : Metrics.getAll().entrySet()) {
+                Object metric = entry.getValue();
+                if (metric instanceof Counter) {
+                    snapshot.putDouble(entry.getKey(), ((Counter) metric).get());
+                } else if (metric instanceof Gauge) {
+                    snapshot.putDouble(entry.getKey(), ((Gauge) metric).get());
+                } else if (metric instanceof Throughput) {
+                    snapshot.putMap(entry.getKey(), toMap((Throughput) metric));
+                } else if (metric instanceof Histogram) {
+                    snapshot.putMap(entry.getKey(), toMap((Histogram) metric));
+                }
+            }
+            promise.resolve(snapshot);
+        } catch (Exception e) {
+            promise.reject("METRICS_ERROR", "Failed to read the metrics", e);
+        }
+    }
+
+    // Resolves with the recorded spans as Chrome trace JSON, to be saved as a .json file and opened in
+    // ui.perfetto.dev or chrome://tracing
+    @ReactMethod
+    public void getTrace(Promise promise) {
+        try {
+            promise.resolve(Tracer.toChromeTrace());
+        } catch (Exception e) {
+            promise.reject("TRACE_ERROR", "Failed to export the trace", e);
+        }
+    }
+
+    @ReactMethod
+    public void clearTrace() {
+        Tracer.clear();
+    }
+
+    private static WritableMap toMap(Throughput throughput) {
+        WritableMap map = Arguments.createMap();
+        map.putDouble("bytes", throughput.getBytes());
+        map.putDouble("seconds", throughput.getNanos() / 1e9);
+        map.putDouble("operations", throughput.getOperations());
+        map.putDouble("mibPerSecond", throughput.getMiBPerSecond());
+        return map;
+    }
+
+    private static WritableMap toMap(Histogram histogram) {
+        WritableMap map = Arguments.createMap();
+        map.putString("unit", histogram.getUnit() != null ? histogram.getUnit().name().toLowerCase(Locale.ROOT) : "");
+        map.putDouble("count", histogram.getCount());
+        map.putDouble("mean", histogram.getMean());
+        map.putDouble("max", histogram.getMax());
+        map.putDouble("p50", histogram.getPercentile(50));
+        map.putDouble("p90", histogram.getPercentile(90));
+        map.putDouble("p99", histogram.getPercentile(99));
+
+        // Trailing empty buckets are left out; bucket i holds values below 2^i
+        long[] buckets = histogram.getBuckets();
+        int last = buckets.length - 1;
+        while (last >= 0 && buckets[last] == 0) {
+            last--;
+        }
+        WritableArray counts = Arguments.createArray();
+        for (int i = 0; i <= last; i++) {
+            counts.pushDouble(buckets[i]);
+        }
+        map.putArray("buckets", counts);
+        return map;
+    }
+}
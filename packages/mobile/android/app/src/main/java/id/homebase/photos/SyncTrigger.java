@@ -9,41 +9,60 @@ import com.facebook.react.bridge.ReactMethod;
 
 import id.homebase.lib.core.DotYouClient;
 import id.homebase.lib.core.file.types.BadRequestUploadResult;
+import id.homebase.lib.core.file.types.FailedUploadResult;
 import id.homebase.lib.core.file.types.SuccessfullUploadResult;
 import id.homebase.lib.core.file.types.UploadResult;
 import id.homebase.photos.mediasync.ImageProvider;
-import id.homebase.photos.mediasync.MediaSync;
+import id.homebase.photos.mediasync.InFlightUploads;
+import id.homebase.photos.mediasync.MediaIds;
+import id.homebase.photos.mediasync.MediaJobExecutor;
+import id.homebase.photos.mediasync.UploadScheduler;
 import id.homebase.photos.mediasync.VideoProvider;
+import id.homebase.photos.worker.WorkerScheduler;
 
 public class SyncTrigger extends ReactContextBaseJavaModule {
-
     public SyncTrigger(ReactApplicationContext context) {
         super(context);
     }
 
 
+    // Runs as expedited work rather than on the bridge thread, so it survives the app going to the background
     @ReactMethod
     public void runSync() {
-        MediaSync mediaSync = new MediaSync(getReactApplicationContext());
-        mediaSync.syncMedia();
+        WorkerScheduler.runWorker(getReactApplicationContext());
+    }
+
+    // Stops the sync started from the app and the background runs, along with the work they have in flight
+    @ReactMethod
+    public void cancelSync() {
+        WorkerScheduler.cancelSync(getReactApplicationContext());
     }
 
     @ReactMethod
     public void runSingleSync(String filePath, double timestampInMillis, String mimeType, String identifier, double width, double height, Promise promise) {
         DotYouClient dotYouClient = DotYouClient.getDotYouClient(this.getReactApplicationContext());
         try {
-            UploadResult result;
-            if (mimeType.startsWith("video/")) {
-                VideoProvider videoProvider = new VideoProvider(this.getReactApplicationContext());
-                result = videoProvider.uploadMedia(dotYouClient, filePath, (long) timestampInMillis, mimeType, identifier, String.valueOf(width), String.valueOf(height), true);
-            } else {
-                result = ImageProvider.uploadMedia(dotYouClient, filePath, (long) timestampInMillis, mimeType, identifier, String.valueOf(width), String.valueOf(height), false);
-            }
+            // Attaches to the background sync when it's uploading the same item already
+            String uniqueId = MediaIds.uniqueId(filePath, identifier, String.valueOf(width), String.valueOf(height));
+            UploadResult result = InFlightUploads.getInstance().run(uniqueId, () -> {
+                if (mimeType.startsWith("video/")) {
+                    try (UploadScheduler.Ticket ignored = UploadScheduler.getInstance().acquire(UploadScheduler.Lane.INTERACTIVE, UploadScheduler.Kind.VIDEO)) {
+                        VideoProvider videoProvider = new VideoProvider(this.getReactApplicationContext(), false, MediaJobExecutor.Priority.INTERACTIVE);
+                        return videoProvider.uploadMedia(dotYouClient, filePath, (long) timestampInMillis, mimeType, identifier, String.valueOf(width), String.valueOf(height), false);
+                    }
+                } else {
+                    try (UploadScheduler.Ticket ignored = UploadScheduler.getInstance().acquire(UploadScheduler.Lane.INTERACTIVE, UploadScheduler.Kind.IMAGE)) {
+                        return ImageProvider.uploadMedia(dotYouClient, filePath, (long) timestampInMillis, mimeType, identifier, String.valueOf(width), String.valueOf(height), false);
+                    }
+                }
+            });
 
             if (result instanceof SuccessfullUploadResult) {
                 promise.resolve("Upload success");
             } else if(result instanceof BadRequestUploadResult) {
                 promise.reject("BAD_REQUEST", "Upload failed", new Exception("Upload failed"));
+            } else if (result instanceof FailedUploadResult) {
+                promise.reject(((FailedUploadResult) result).getReason().name(), "Upload failed", new Exception(result.toString()));
             } else {
                 promise.reject("UNKNOWN_ERROR", "Upload failed", new Exception("Upload failed"));
             }
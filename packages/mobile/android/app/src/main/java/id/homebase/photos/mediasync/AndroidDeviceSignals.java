@@ -0,0 +1,49 @@
+package id.homebase.photos.mediasync;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+public class AndroidDeviceSignals implements DeviceSignals {
+    private final BatteryManager batteryManager;
+    private final PowerManager powerManager;
+    private final ConnectivityManager connectivityManager;
+
+    public AndroidDeviceSignals(Context context) {
+        this.batteryManager = context.getSystemService(BatteryManager.class);
+        this.powerManager = context.getSystemService(PowerManager.class);
+        this.connectivityManager = context.getSystemService(ConnectivityManager.class);
+    }
+
+    @Override
+    public int getBatteryPercent() {
+        if (batteryManager == null) {
+            return -1;
+        }
+        int capacity = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        // Integer.MIN_VALUE when the battery doesn't report it
+        return capacity >= 0 && capacity <= 100 ? capacity : -1;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return batteryManager != null && batteryManager.isCharging();
+    }
+
+    @Override
+    public int getThermalStatus() {
+        if (powerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return PowerManager.THERMAL_STATUS_NONE;
+        }
+        return powerManager.getCurrentThermalStatus();
+    }
+
+    @Override
+    public boolean isDataSaverOn() {
+        return connectivityManager != null
+                && connectivityManager.isActiveNetworkMetered()
+                && connectivityManager.getRestrictBackgroundStatus() == ConnectivityManager.RESTRICT_BACKGROUND_STATUS_ENABLED;
+    }
+}
@@ -0,0 +1,170 @@
+package id.homebase.photos.mediasync;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import id.homebase.lib.core.metrics.Metrics;
+
+// Pool of mutable bitmaps, bucketed by allocation size, that feeds BitmapFactory.Options.inBitmap and the
+// resize canvases in ImageResizer. During a long sync most photos share the same few resolutions, so
+// reusing their pixel buffers avoids allocating (and collecting) tens of MB per photo.
+public class BitmapPool {
+    // Don't hand out a buffer that is more than this many times larger than what is needed
+    private static final int MAX_SIZE_MULTIPLE = 4;
+    private static BitmapPool instance;
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private final ArrayDeque<Bitmap> leastRecentlyUsed = new ArrayDeque<>();
+    private long maxBytes;
+    private long currentBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 4);
+            Metrics.gauge("bitmapPool.bytes", instance::getCurrentBytes);
+        }
+        return instance;
+    }
+
+    // Returns a pooled bitmap reconfigured to the requested size, or null when nothing fits
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int requiredBytes = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(requiredBytes);
+
+        if (entry == null || entry.getKey() > (long) requiredBytes * MAX_SIZE_MULTIPLE) {
+            misses++;
+            return null;
+        }
+
+        Bitmap bitmap = entry.getValue().pollLast();
+        if (entry.getValue().isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+        leastRecentlyUsed.remove(bitmap);
+        currentBytes -= bitmap.getAllocationByteCount();
+        hits++;
+
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    // Hands a bitmap back for reuse; bitmaps that can't be reused are recycled right away
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || size > maxBytes || bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            bitmap.recycle();
+            return;
+        }
+
+        buckets.computeIfAbsent(size, key -> new ArrayDeque<>()).addLast(bitmap);
+        leastRecentlyUsed.addLast(bitmap);
+        currentBytes += size;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxBytes / 2);
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(long size) {
+        Iterator<Bitmap> iterator = leastRecentlyUsed.iterator();
+        while (currentBytes > size && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+
+            int bucketSize = bitmap.getAllocationByteCount();
+            ArrayDeque<Bitmap> bucket = buckets.get(bucketSize);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    buckets.remove(bucketSize);
+                }
+            }
+
+            currentBytes -= bucketSize;
+            evictions++;
+            bitmap.recycle();
+        }
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public synchronized void logStats() {
+        Log.v(null, "[BitmapPool] hits: " + hits + " misses: " + misses + " evictions: " + evictions + " size: " + currentBytes + "/" + maxBytes);
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+}
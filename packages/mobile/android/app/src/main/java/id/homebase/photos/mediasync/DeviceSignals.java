@@ -0,0 +1,16 @@
+package id.homebase.photos.mediasync;
+
+// The device state SyncGovernor scales the sync by. Kept behind an interface so the policy can be exercised
+// with made-up readings instead of a hot phone with an empty battery.
+public interface DeviceSignals {
+    // 0-100, or -1 when unknown
+    int getBatteryPercent();
+
+    boolean isCharging();
+
+    // One of the PowerManager.THERMAL_STATUS_* constants, THERMAL_STATUS_NONE where the platform doesn't report it
+    int getThermalStatus();
+
+    // Data Saver is on and the active network is metered, so background data is restricted
+    boolean isDataSaverOn();
+}
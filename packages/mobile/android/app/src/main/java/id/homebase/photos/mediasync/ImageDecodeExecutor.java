@@ -0,0 +1,132 @@
+package id.homebase.photos.mediasync;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import id.homebase.lib.core.CancellationToken;
+import id.homebase.lib.core.metrics.Metrics;
+import id.homebase.lib.core.trace.Span;
+import id.homebase.lib.core.trace.Tracer;
+
+// Runs decode and resize work for several images at once. Concurrency is not limited by the number of
+// items, but by a budget of estimated decoded bytes: small photos run many at a time, while a large
+// panorama takes the whole budget and runs alone. MemoryGovernor shrinks the budget under memory pressure.
+public class ImageDecodeExecutor {
+    private static ImageDecodeExecutor instance;
+
+    private final ExecutorService executor;
+    private final long maxBudgetBytes;
+    // Tasks waiting for their share of the budget, in arrival order
+    private final ArrayDeque<Object> waiting = new ArrayDeque<>();
+    private long budgetBytes;
+    private long usedBytes = 0;
+
+    public ImageDecodeExecutor(int threads, long budgetBytes) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "image-decode-" + threadCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        this.maxBudgetBytes = Math.max(1, budgetBytes);
+        this.budgetBytes = this.maxBudgetBytes;
+    }
+
+    public static synchronized ImageDecodeExecutor getInstance() {
+        if (instance == null) {
+            // Since Android 8 bitmap pixels live on the native heap, but the Java heap limit is still the
+            // best per-app memory class we have without a Context. Keep half of it for everything else.
+            instance = new ImageDecodeExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 2);
+            Metrics.gauge("decode.availableBytes", instance::getAvailableBytes);
+        }
+        return instance;
+    }
+
+    // The task runs with the caller's cancellation token, and doesn't start once that is cancelled. Its span
+    // is a child of the caller's current span.
+    public <T> CompletableFuture<T> submit(long estimatedBytes, Callable<T> task) {
+        CancellationToken cancellation = CancellationToken.current();
+        Span parentSpan = Tracer.current();
+        return CompletableFuture.supplyAsync(() -> {
+            cancellation.throwIfCancelled();
+            long reserved;
+            try {
+                reserved = acquire(estimatedBytes);
+            } catch (InterruptedException e) {
+                throw new CompletionException(e);
+            }
+            try (CancellationToken.Registration ignored = CancellationToken.enter(cancellation);
+                 Tracer.Scope scope = Tracer.enter(parentSpan);
+                 Span span = Tracer.start("decode")) {
+                cancellation.throwIfCancelled();
+                span.attr("estimatedBytes", estimatedBytes);
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                release(reserved);
+            }
+        }, executor);
+    }
+
+    // Blocks until the bytes fit in the budget. Anything bigger than the whole budget still runs, just on its
+    // own. First come, first served, so a large image waiting for the full budget isn't starved by a stream
+    // of small ones.
+    private synchronized long acquire(long estimatedBytes) throws InterruptedException {
+        long bytes = Math.max(1, estimatedBytes);
+        Object ticket = new Object();
+        waiting.addLast(ticket);
+        try {
+            while (waiting.peekFirst() != ticket || (usedBytes > 0 && usedBytes + bytes > budgetBytes)) {
+                wait();
+            }
+        } finally {
+            waiting.remove(ticket);
+            notifyAll();
+        }
+        usedBytes += bytes;
+        return bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        usedBytes -= bytes;
+        notifyAll();
+    }
+
+    // Share of the initial budget to work with, between 0 and 1; decodes that are running aren't affected
+    public synchronized void setBudgetShare(double share) {
+        budgetBytes = Math.max(1, (long) (maxBudgetBytes * share));
+        notifyAll();
+    }
+
+    public synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getAvailableBytes() {
+        return Math.max(0, budgetBytes - usedBytes);
+    }
+
+    // Peak memory of a decode: the full ARGB_8888 bitmap plus the rotated copy ImageResizer makes for
+    // EXIF-rotated images. The resized outputs are small enough to ignore.
+    public static long estimateDecodedBytes(String filePath) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.v(null, "[ImageDecodeExecutor] Unable to read bounds of " + filePath);
+            return 1;
+        }
+
+        return (long) options.outWidth * options.outHeight * 4 * 2;
+    }
+}
@@ -1,13 +1,14 @@
 package id.homebase.photos.mediasync;
 
+import static id.homebase.lib.core.file.DriveFileUploadProvider.prepareUpload;
 import static id.homebase.lib.core.file.DriveFileUploadProvider.uploadFile;
+import static id.homebase.lib.core.file.types.KeyHeaderGenerator.getRandom16ByteArray;
 
+import java.io.File;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import id.homebase.lib.core.DotYouClient;
 import id.homebase.lib.core.file.types.AccessControlList;
@@ -16,6 +17,7 @@ import id.homebase.lib.core.file.types.EmbeddedThumb;
 import id.homebase.lib.core.file.types.SecurityGroupType;
 import id.homebase.lib.core.file.types.StorageOptions;
 import id.homebase.lib.core.file.types.TargetDrive;
+import id.homebase.lib.core.file.types.UploadBundle;
 import id.homebase.lib.core.file.types.UploadAppFileMetaData;
 import id.homebase.lib.core.file.types.UploadFileMetadata;
 import id.homebase.lib.core.file.types.UploadInstructionSet;
@@ -25,6 +27,7 @@ import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadFile;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadStream;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailBase;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailStream;
+import id.homebase.photos.mediasync.types.PreparedUpload;
 
 public class ImageProvider {
     private static final String DEFAULT_PAYLOAD_KEY = "dflt_key";
@@ -36,47 +39,63 @@ public class ImageProvider {
             new ImageResizer.ResizeInstruction(300, 300, 95, "jpeg"),
             new ImageResizer.ResizeInstruction(1200, 1200, 95, "jpeg"),
     };
+    private static final ImageResizer.ResizeInstruction LOWER_QUALITY_INSTRUCTION = new ImageResizer.ResizeInstruction(1200, 1200, 80, "jpeg");
 
     public static UploadResult uploadMedia(DotYouClient dotYouClient, String filePath, Long timestampInMs, String mimeType, String identifier, String width, String height, boolean forceLowerQuality) throws Exception {
+        PreparedUpload prepared = prepareMedia(filePath, timestampInMs, mimeType, identifier, width, height, forceLowerQuality, false).get();
+        try {
+            return uploadPrepared(dotYouClient, prepared);
+        } finally {
+            prepared.release();
+        }
+    }
+
+    // Streams the prepared image to the server. The prepared buffers are left to the caller, so they can still be
+    // staged when the upload doesn't get through.
+    public static UploadResult uploadPrepared(DotYouClient dotYouClient, PreparedUpload prepared) throws Exception {
+        return uploadFile(dotYouClient, prepared.instructions(), prepared.metadata(), prepared.payloads(), prepared.thumbnails(), ENCRYPT_MEDIA);
+    }
+
+    // Encrypts the prepared image into a bundle in the given directory (see UploadBundleStore). The prepared buffers
+    // are left to the caller.
+    public static UploadBundle stagePrepared(DotYouClient dotYouClient, PreparedUpload prepared, File directory) throws Exception {
+        // A fresh transfer IV, as an earlier upload attempt of the same instructions used one already
+        prepared.instructions().setTransferIv(getRandom16ByteArray());
+        return prepareUpload(dotYouClient, prepared.instructions(), prepared.metadata(), prepared.payloads(), prepared.thumbnails(), ENCRYPT_MEDIA, directory, false);
+    }
+
+    // Decodes and resizes on the ImageDecodeExecutor, so several images can be prepared at once. Each image is decoded once, in a single task
+    // weighted by its decoded size, and every output is derived from that bitmap.
+    // With thumbHashPreview the embedded preview is a ThumbHash computed from the 300px thumbnail, instead of a 20px JPEG.
+    public static CompletableFuture<PreparedUpload> prepareMedia(String filePath, Long timestampInMs, String mimeType, String identifier, String width, String height, boolean forceLowerQuality, boolean thumbHashPreview) throws Exception {
         UploadInstructionSet instructions = new UploadInstructionSet(new StorageOptions(PHOTO_DRIVE));
 
         // Retrieve the latest photo information
         String fileName = Paths.get(filePath).getFileName().toString();
-        String uniqueId = toGuidId(identifier != null ? identifier : fileName + "_" + width + "x" + height);
-
-        // Generate thumbnails
-        ThumbnailStream tinyThumb = ImageResizer.resizeImage(filePath, TINY_THUMB_INSTRUCTION, DEFAULT_PAYLOAD_KEY, true);
-        EmbeddedThumb previewThumbnail = new EmbeddedThumb(tinyThumb.getPixelHeight(), tinyThumb.getPixelWidth(), TINY_THUMB_INSTRUCTION.format, tinyThumb.getBase64());
+        String uniqueId = MediaIds.uniqueId(filePath, identifier, width, height);
 
-        UploadFileMetadata<String> metadata = new UploadFileMetadata<>(false, ENCRYPT_MEDIA, OWNER_ONLY_ACL, new UploadAppFileMetaData<>(uniqueId, new String[0], 0, 0, timestampInMs, null, ArchivalStatus.None, "{\"originalFileName\":\"" + fileName + "\"}", previewThumbnail), null, null);
+        ImageDecodeExecutor decodeExecutor = ImageDecodeExecutor.getInstance();
+        long decodedBytes = ImageDecodeExecutor.estimateDecodedBytes(filePath);
 
-        PayloadBase payload;
-        if (forceLowerQuality) {
-            ThumbnailStream payloadStream = ImageResizer.resizeImage(filePath, new ImageResizer.ResizeInstruction(1200, 1200, 80, "jpeg"), DEFAULT_PAYLOAD_KEY, false);
-            payload = new PayloadStream(DEFAULT_PAYLOAD_KEY, payloadStream.getOutputStream(), null, mimeType, fileName);
-        } else {
-            payload = new PayloadFile(DEFAULT_PAYLOAD_KEY, filePath, null, mimeType, fileName);
-        }
-        List<ThumbnailBase> thumbnails = new ArrayList<>(ImageResizer.resizeImage(filePath, List.of(DEFAULT_IMAGE_SIZES), DEFAULT_PAYLOAD_KEY));
+        // Generate the thumbnails, the preview and (for lower quality) the payload
+        CompletableFuture<ImageResizer.ResizedImage> resizing = decodeExecutor.submit(decodedBytes, () -> ImageResizer.resizeImageForUpload(filePath, List.of(DEFAULT_IMAGE_SIZES), DEFAULT_PAYLOAD_KEY,
+                TINY_THUMB_INSTRUCTION, thumbHashPreview, forceLowerQuality ? LOWER_QUALITY_INSTRUCTION : null));
 
-        return uploadFile(dotYouClient, instructions, metadata, List.of(payload), thumbnails, ENCRYPT_MEDIA);
-    }
+        return resizing.thenApply(resized -> {
+            EmbeddedThumb previewThumbnail = resized.previewThumbnail;
 
-    private static String toGuidId(String input) throws NoSuchAlgorithmException {
-        // Compute the MD5 hash
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        byte[] md5Bytes = md.digest(input.getBytes());
+            UploadFileMetadata<String> metadata = new UploadFileMetadata<>(false, ENCRYPT_MEDIA, OWNER_ONLY_ACL, new UploadAppFileMetaData<>(uniqueId, new String[0], 0, 0, timestampInMs, null, ArchivalStatus.None, "{\"originalFileName\":\"" + fileName + "\"}", previewThumbnail), null, null);
 
-        // Convert the first 16 bytes of the MD5 hash to a UUID
-        long msb = 0;
-        long lsb = 0;
-        for (int i = 0; i < 8; i++) {
-            msb = (msb << 8) | (md5Bytes[i] & 0xff);
-        }
-        for (int i = 8; i < 16; i++) {
-            lsb = (lsb << 8) | (md5Bytes[i] & 0xff);
-        }
+            PayloadBase payload;
+            ThumbnailStream payloadStream = resized.payload;
+            if (payloadStream != null) {
+                payload = new PayloadStream(DEFAULT_PAYLOAD_KEY, payloadStream.getOutputStream(), null, mimeType, fileName);
+            } else {
+                payload = new PayloadFile(DEFAULT_PAYLOAD_KEY, filePath, null, mimeType, fileName);
+            }
+            List<ThumbnailBase> thumbnails = new ArrayList<>(resized.thumbnails);
 
-        return new UUID(msb, lsb).toString();
+            return new PreparedUpload(instructions, metadata, List.of(payload), thumbnails);
+        });
     }
 }
@@ -1,5 +1,7 @@
 package id.homebase.photos.mediasync;
 
+import static id.homebase.lib.core.crypto.CryptoUtil.byteArrayToBase64;
+
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
@@ -8,52 +10,110 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.media.ExifInterface;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import id.homebase.lib.core.file.types.EmbeddedThumb;
+import id.homebase.lib.core.file.types.SpillableBuffer;
+import id.homebase.lib.core.metrics.Histogram;
+import id.homebase.lib.core.metrics.Metrics;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailStream;
 
 public class ImageResizer {
+    private static final Histogram DECODE = Metrics.histogram("image.decode", TimeUnit.MICROSECONDS);
+    private static final Histogram RESIZE = Metrics.histogram("image.resize", TimeUnit.MICROSECONDS);
+    private static final Histogram ENCODE = Metrics.histogram("image.encode", TimeUnit.MICROSECONDS);
+
+    public static List<ThumbnailStream> resizeImage(String inputFilePath, List<ResizeInstruction> instructions, String payloadKey) throws IOException {
+        return resizeImage(inputFilePath, instructions, payloadKey, null, false, null).thumbnails;
+    }
+
+    // Derives everything an image upload needs from a single decode: the thumbnails, the embedded preview and,
+    // with a payloadInstruction, a re-encoded payload. The preview is a ThumbHash of the smallest thumbnail with
+    // thumbHashPreview, and the image resized by previewInstruction otherwise.
+    public static ResizedImage resizeImageForUpload(String inputFilePath, List<ResizeInstruction> instructions, String payloadKey, ResizeInstruction previewInstruction, boolean thumbHashPreview, ResizeInstruction payloadInstruction) throws IOException {
+        return resizeImage(inputFilePath, instructions, payloadKey, previewInstruction, thumbHashPreview, payloadInstruction);
+    }
 
-    public static List<ThumbnailStream> resizeImage(String inputFilePath, List<ResizeInstruction> instructions, String payloadKey) {
+    private static ResizedImage resizeImage(String inputFilePath, List<ResizeInstruction> instructions, String payloadKey, ResizeInstruction previewInstruction, boolean thumbHashPreview, ResizeInstruction payloadInstruction) throws IOException {
         List<ThumbnailStream> outputThumbs = new ArrayList<>();
+        EmbeddedThumb previewThumbnail = null;
+        ThumbnailStream payload = null;
         // Decode the original image from the file
-        Bitmap originalBitmap = BitmapFactory.decodeFile(inputFilePath);
+        long decodeStart = System.nanoTime();
+        Bitmap originalBitmap = decodeBitmap(inputFilePath);
 
         // Read the EXIF orientation tag and apply the rotation if necessary
         Bitmap rotatedBitmap = rotateImageIfRequired(inputFilePath, originalBitmap);
+        DECODE.recordSince(decodeStart);
 
         int originalWidth = rotatedBitmap.getWidth();
         int originalHeight = rotatedBitmap.getHeight();
 
+        ResizeInstruction smallest = null;
+        for (ResizeInstruction instruction : instructions) {
+            if (smallest == null || instruction.width * instruction.height < smallest.width * smallest.height) {
+                smallest = instruction;
+            }
+        }
+
         for (ResizeInstruction instruction : instructions) {
 
             // Create a resized version of the bitmap
             int[] scaledSize = calculateScaledSize(originalWidth, originalHeight, instruction.width, instruction.height);
             Bitmap resizedBitmap = resize(rotatedBitmap, scaledSize[0], scaledSize[1]);
 
-            // Write the resized bitmap to a ByteArrayOutputStream
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            if (thumbHashPreview && instruction == smallest) {
+                previewThumbnail = new EmbeddedThumb(originalHeight, originalWidth, ThumbHash.CONTENT_TYPE, byteArrayToBase64(ThumbHash.fromBitmap(resizedBitmap)));
+            }
+
+            // Write the resized bitmap to a buffer
+            SpillableBuffer outputStream = new SpillableBuffer();
             writeBitmapToStream(resizedBitmap, instruction.quality, instruction.format, outputStream);
 
             outputThumbs.add(new ThumbnailStream(payloadKey, outputStream, scaledSize[1], scaledSize[0], "image/" + instruction.format));
         }
 
-        // Recycle the original bitmap to free memory
-        originalBitmap.recycle();
-        rotatedBitmap.recycle();
+        if (!thumbHashPreview && previewInstruction != null) {
+            ThumbnailStream tinyThumb = resize(rotatedBitmap, previewInstruction, payloadKey);
+            try {
+                // Carries the dimensions of the original
+                previewThumbnail = new EmbeddedThumb(originalHeight, originalWidth, previewInstruction.format, tinyThumb.getBase64());
+            } finally {
+                tinyThumb.release();
+            }
+        }
+
+        if (payloadInstruction != null) {
+            payload = resize(rotatedBitmap, payloadInstruction, payloadKey);
+        }
+
+        // Return the original bitmap to the pool for the next image
+        releaseBitmaps(originalBitmap, rotatedBitmap);
 
-        return outputThumbs;
+        return new ResizedImage(outputThumbs, previewThumbnail, payload);
+    }
+
+    private static ThumbnailStream resize(Bitmap bitmap, ResizeInstruction instruction, String payloadKey) {
+        int[] scaledSize = calculateScaledSize(bitmap.getWidth(), bitmap.getHeight(), instruction.width, instruction.height);
+        Bitmap resizedBitmap = resize(bitmap, scaledSize[0], scaledSize[1]);
+
+        SpillableBuffer outputStream = new SpillableBuffer();
+        writeBitmapToStream(resizedBitmap, instruction.quality, instruction.format, outputStream);
+        return new ThumbnailStream(payloadKey, outputStream, scaledSize[1], scaledSize[0], "image/" + instruction.format);
     }
 
     public static ThumbnailStream resizeImage(String inputFilePath, ResizeInstruction instruction, String payloadKey, boolean keepDimensions) {
         // Decode the original image from the file
-        Bitmap originalBitmap = BitmapFactory.decodeFile(inputFilePath);
+        long decodeStart = System.nanoTime();
+        Bitmap originalBitmap = decodeBitmap(inputFilePath);
 
         // Read the EXIF orientation tag and apply the rotation if necessary
         Bitmap rotatedBitmap = rotateImageIfRequired(inputFilePath, originalBitmap);
+        DECODE.recordSince(decodeStart);
 
         int originalWidth = rotatedBitmap.getWidth();
         int originalHeight = rotatedBitmap.getHeight();
@@ -62,18 +122,17 @@ public class ImageResizer {
         // Create a resized version of the bitmap
         Bitmap resizedBitmap = resize(rotatedBitmap, scaledSize[0], scaledSize[1]);
 
-        // Write the resized bitmap to a ByteArrayOutputStream
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        // Write the resized bitmap to a buffer
+        SpillableBuffer outputStream = new SpillableBuffer();
         writeBitmapToStream(resizedBitmap, instruction.quality, instruction.format, outputStream);
 
-        // Recycle the original bitmap to free memory
-        originalBitmap.recycle();
-        rotatedBitmap.recycle();
+        // Return the original bitmap to the pool for the next image
+        releaseBitmaps(originalBitmap, rotatedBitmap);
 
         return new ThumbnailStream(payloadKey, outputStream, keepDimensions ? originalHeight : scaledSize[1], keepDimensions ? originalWidth : scaledSize[0], "image/" + instruction.format);
     }
 
-    private static int[] calculateScaledSize(int originalWidth, int originalHeight, int targetWidth, int targetHeight) {
+    static int[] calculateScaledSize(int originalWidth, int originalHeight, int targetWidth, int targetHeight) {
         float widthScale = (float) targetWidth / originalWidth;
         float heightScale = (float) targetHeight / originalHeight;
         float scale = Math.min(widthScale, heightScale);
@@ -85,18 +144,53 @@ public class ImageResizer {
         return new int[]{scaledWidth, scaledHeight};
     }
 
+    // Decodes into a pooled bitmap of a matching size when one is available
+    private static Bitmap decodeBitmap(String filePath) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, options);
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        if (options.outWidth > 0 && options.outHeight > 0) {
+            options.inBitmap = BitmapPool.getInstance().get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        // decodeFile returns null rather than throwing, also when the pooled bitmap can't be reused for this
+        // image (e.g. a different decoded config)
+        Bitmap bitmap = BitmapFactory.decodeFile(filePath, options);
+        if (bitmap == null && options.inBitmap != null) {
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(filePath, options);
+        }
+        if (bitmap == null) {
+            throw new IllegalStateException("Failed to decode image " + filePath);
+        }
+        return bitmap;
+    }
+
+    private static void releaseBitmaps(Bitmap originalBitmap, Bitmap rotatedBitmap) {
+        BitmapPool.getInstance().put(originalBitmap);
+        if (rotatedBitmap != originalBitmap) {
+            BitmapPool.getInstance().put(rotatedBitmap);
+        }
+    }
+
     private static Bitmap resize(Bitmap originalBitmap, int width, int height) {
-        Bitmap resizedBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        long start = System.nanoTime();
+        Bitmap resizedBitmap = BitmapPool.getInstance().getOrCreate(width, height, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(resizedBitmap);
         Paint paint = new Paint();
         paint.setAntiAlias(true);
         paint.setFilterBitmap(true);
         paint.setDither(true);
         canvas.drawBitmap(originalBitmap, null, new android.graphics.Rect(0, 0, width, height), paint);
+        RESIZE.recordSince(start);
         return resizedBitmap;
     }
 
-    private static void writeBitmapToStream(Bitmap bitmap, int quality, String format, ByteArrayOutputStream outputStream) {
+    private static void writeBitmapToStream(Bitmap bitmap, int quality, String format, OutputStream outputStream) {
         CompressFormat compressFormat = CompressFormat.PNG;
         if (format.equalsIgnoreCase("jpeg")) {
             compressFormat = CompressFormat.JPEG;
@@ -104,14 +198,16 @@ public class ImageResizer {
             compressFormat = CompressFormat.WEBP;
         }
 
+        long start = System.nanoTime();
         try {
             bitmap.compress(compressFormat, quality, outputStream); // 90 is the quality, range 0-100
         } catch (Exception e) {
             e.printStackTrace();
         }
+        ENCODE.recordSince(start);
 
-        // Recycle the resized bitmap to free memory
-        bitmap.recycle();
+        // Hand the resized bitmap back to the pool, the next image most likely needs the same size
+        BitmapPool.getInstance().put(bitmap);
     }
 
 
@@ -126,22 +222,47 @@ public class ImageResizer {
 
         int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
         Matrix matrix = new Matrix();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
 
+        // Rotate around the origin, then translate the result back into the visible area
         switch (orientation) {
             case ExifInterface.ORIENTATION_ROTATE_90:
                 matrix.postRotate(90);
+                matrix.postTranslate(height, 0);
                 break;
             case ExifInterface.ORIENTATION_ROTATE_180:
                 matrix.postRotate(180);
+                matrix.postTranslate(width, height);
                 break;
             case ExifInterface.ORIENTATION_ROTATE_270:
                 matrix.postRotate(270);
+                matrix.postTranslate(0, width);
                 break;
             default:
                 return bitmap;
         }
 
-        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        boolean swapsDimensions = orientation != ExifInterface.ORIENTATION_ROTATE_180;
+        Bitmap rotatedBitmap = BitmapPool.getInstance().getOrCreate(swapsDimensions ? height : width, swapsDimensions ? width : height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(rotatedBitmap);
+        Paint paint = new Paint();
+        paint.setFilterBitmap(true);
+        canvas.drawBitmap(bitmap, matrix, paint);
+        return rotatedBitmap;
+    }
+
+    public static class ResizedImage {
+        public final List<ThumbnailStream> thumbnails;
+        public final EmbeddedThumb previewThumbnail;
+        // Only when a payloadInstruction was given
+        public final ThumbnailStream payload;
+
+        public ResizedImage(List<ThumbnailStream> thumbnails, EmbeddedThumb previewThumbnail, ThumbnailStream payload) {
+            this.thumbnails = thumbnails;
+            this.previewThumbnail = previewThumbnail;
+            this.payload = payload;
+        }
     }
 
     public static class ResizeInstruction {
@@ -0,0 +1,134 @@
+package id.homebase.photos.mediasync;
+
+import android.util.Log;
+
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import id.homebase.lib.core.file.types.BadRequestUploadResult;
+import id.homebase.lib.core.file.types.SuccessfullUploadResult;
+import id.homebase.lib.core.file.types.UploadResult;
+import id.homebase.lib.core.metrics.Metrics;
+
+// Process-wide registry of the uploads in progress, keyed by uniqueId. The background sync and uploads started
+// from the app can pick the same item at the same time; the second one attaches to the first one's result
+// instead of decoding, encrypting and uploading it again (and ending in existingFileWithUniqueId).
+//
+// Items that finished recently are remembered for a short while, so one that completes just before the
+// duplicate request arrives isn't uploaded twice either. Failures aren't remembered; the next attempt retries.
+public class InFlightUploads {
+    private static final long RECENT_TTL_MS = TimeUnit.MINUTES.toMillis(2);
+    private static final int MAX_RECENT = 512;
+    private static InFlightUploads instance;
+
+    private final ConcurrentHashMap<String, CompletableFuture<UploadResult>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Completion> recent = new ConcurrentHashMap<>();
+
+    private final AtomicLong attached = new AtomicLong();
+    private final AtomicLong recentHits = new AtomicLong();
+
+    public static synchronized InFlightUploads getInstance() {
+        if (instance == null) {
+            instance = new InFlightUploads();
+            Metrics.gauge("inFlightUploads.attached", instance::getAttached);
+        }
+        return instance;
+    }
+
+    // Runs the upload, unless the same item is being uploaded already or was just completed
+    public UploadResult run(String uniqueId, Callable<UploadResult> upload) throws Exception {
+        UploadResult recentResult = getRecentResult(uniqueId);
+        if (recentResult != null) {
+            recentHits.incrementAndGet();
+            return recentResult;
+        }
+
+        CompletableFuture<UploadResult> ours = new CompletableFuture<>();
+        CompletableFuture<UploadResult> existing = inFlight.putIfAbsent(uniqueId, ours);
+        if (existing != null) {
+            attached.incrementAndGet();
+            Log.v(null, "[InFlightUploads] Waiting for the upload in progress of " + uniqueId);
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        try {
+            UploadResult result = upload.call();
+            if (isCompleted(result)) {
+                // Remembered before the in-flight entry is removed, so there is no window in which a duplicate slips through
+                remember(uniqueId, result);
+            }
+            ours.complete(result);
+            return result;
+        } catch (Exception e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(uniqueId, ours);
+        }
+    }
+
+    // Whether the item is being uploaded or was just completed; preparing it again would be wasted work
+    public boolean isBusy(String uniqueId) {
+        return inFlight.containsKey(uniqueId) || getRecentResult(uniqueId) != null;
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getAttached() {
+        return attached.get();
+    }
+
+    public long getRecentHits() {
+        return recentHits.get();
+    }
+
+    private UploadResult getRecentResult(String uniqueId) {
+        Completion completion = recent.get(uniqueId);
+        if (completion == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - completion.completedAt > RECENT_TTL_MS) {
+            recent.remove(uniqueId, completion);
+            return null;
+        }
+        return completion.result;
+    }
+
+    private void remember(String uniqueId, UploadResult result) {
+        long now = System.currentTimeMillis();
+        if (recent.size() >= MAX_RECENT) {
+            recent.values().removeIf(completion -> now - completion.completedAt > RECENT_TTL_MS);
+        }
+        if (recent.size() >= MAX_RECENT) {
+            // Everything is still fresh; dropping it all only costs a few server-side duplicate checks
+            recent.clear();
+        }
+        recent.put(uniqueId, new Completion(result, now));
+    }
+
+    private static boolean isCompleted(UploadResult result) {
+        return result instanceof SuccessfullUploadResult
+                || (result instanceof BadRequestUploadResult && Objects.equals(((BadRequestUploadResult) result).getErrorCode(), "existingFileWithUniqueId"));
+    }
+
+    private static class Completion {
+        final UploadResult result;
+        final long completedAt;
+
+        Completion(UploadResult result, long completedAt) {
+            this.result = result;
+            this.completedAt = completedAt;
+        }
+    }
+}
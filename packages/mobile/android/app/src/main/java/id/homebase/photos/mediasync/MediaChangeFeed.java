@@ -0,0 +1,288 @@
+package id.homebase.photos.mediasync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import com.ammarahmed.mmkv.MMKV;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import id.homebase.photos.mediasync.types.MediaChange;
+import id.homebase.photos.mediasync.types.MediaItem;
+
+// Feed of images and videos that were added or changed in MediaStore since the last committed change.
+//
+// On Android 11+ it pages through GENERATION_MODIFIED, which MediaStore bumps on every insert and update, so
+// edited files show up again and an incremental scan only reads the rows that actually changed. Older
+// versions fall back to paging through DATE_ADDED, which only sees new files. Both page with a keyset on
+// (position, _id) rather than a time window, so no row is read twice and none is skipped when many share
+// the same position.
+//
+// The checkpoint is only moved by commit(), so a run that stops midway picks up where it stopped. Once a
+// change failed (see hold() and fail()), the checkpoint stays in front of it for the rest of the run, so the
+// next run returns it again; the changes after it that do go through are remembered as handled instead, and
+// skipped when the feed gets to them again. A change that keeps failing is given up after MAX_ATTEMPTS runs.
+//
+// The media that triggered a run are handled ahead of the feed the same way (see resolve()).
+public class MediaChangeFeed {
+    private static final String KEY_GENERATION = "mediaFeedGeneration";
+    private static final String KEY_DATE_ADDED = "mediaFeedDateAdded";
+    private static final String KEY_ID = "mediaFeedId";
+    private static final String KEY_VERSION = "mediaFeedVersion";
+    private static final String KEY_FLOOR = "mediaFeedFloorSeconds";
+    private static final String KEY_HANDLED_AHEAD = "mediaFeedHandledAhead";
+    private static final String KEY_ATTEMPTS = "mediaFeedAttempts";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String MEDIA_TYPE_SELECTION = MediaStore.Files.FileColumns.MEDIA_TYPE + " IN ("
+            + MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE + "," + MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO + ")";
+
+    private final Context context;
+    private final MMKV mmkv;
+    private final boolean useGenerations;
+    private final String positionColumn;
+    // Anything added before this was there before sync was set up, and is never part of the feed
+    private final long floorSeconds;
+    // Rows added after this generation are new files, others are modifications of files seen before
+    private final long committedGeneration;
+
+    private long position;
+    private long lastId;
+    private final Set<String> handledAhead;
+    // Failed attempts per change, of changes that failed without a clear cause in the network or the host
+    private final JSONObject attempts;
+    // Set once a change of this run failed; the checkpoint stays in front of it
+    private boolean held = false;
+
+    public MediaChangeFeed(Context context, MMKV mmkv, long bootstrapFloorSeconds) {
+        this.context = context;
+        this.mmkv = mmkv;
+        this.useGenerations = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+        this.positionColumn = useGenerations ? MediaStore.MediaColumns.GENERATION_MODIFIED : MediaStore.MediaColumns.DATE_ADDED;
+
+        if (useGenerations) {
+            // Generations are only comparable within one version of the MediaStore database
+            String version = MediaStore.getVersion(context, MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            if (!Objects.equals(version, mmkv.decodeString(KEY_VERSION, null))) {
+                Log.v(null, "[MediaChangeFeed] MediaStore version changed to " + version + ", starting over");
+                mmkv.encode(KEY_VERSION, version);
+                mmkv.encode(KEY_GENERATION, 0L);
+                mmkv.encode(KEY_ID, 0L);
+                mmkv.encode(KEY_FLOOR, bootstrapFloorSeconds);
+            }
+            this.position = mmkv.decodeLong(KEY_GENERATION, 0);
+        } else {
+            if (!mmkv.containsKey(KEY_FLOOR)) {
+                mmkv.encode(KEY_FLOOR, bootstrapFloorSeconds);
+                mmkv.encode(KEY_DATE_ADDED, bootstrapFloorSeconds);
+                mmkv.encode(KEY_ID, 0L);
+            }
+            this.position = mmkv.decodeLong(KEY_DATE_ADDED, bootstrapFloorSeconds);
+        }
+        this.floorSeconds = mmkv.decodeLong(KEY_FLOOR, bootstrapFloorSeconds);
+        this.lastId = mmkv.decodeLong(KEY_ID, 0);
+        this.committedGeneration = useGenerations ? position : 0;
+        this.handledAhead = new HashSet<>(mmkv.decodeStringSet(KEY_HANDLED_AHEAD, new HashSet<>()));
+        this.attempts = readAttempts(mmkv.decodeString(KEY_ATTEMPTS, null));
+    }
+
+    public boolean usesGenerations() {
+        return useGenerations;
+    }
+
+    // Returns the next changes after the previous page (or after the checkpoint for the first page), oldest first
+    public List<MediaChange> nextPage(int limit) {
+        List<MediaChange> changes = query("", new String[0], limit);
+        if (!changes.isEmpty()) {
+            position = changes.get(changes.size() - 1).position();
+            lastId = changes.get(changes.size() - 1).id();
+        }
+        return changes;
+    }
+
+    // Returns the changes of the given content uris that are still ahead of the checkpoint, oldest first. Doesn't
+    // move the feed; hand the ones that are handled to markHandledAhead().
+    public List<MediaChange> resolve(List<String> uris) {
+        List<String> ids = new ArrayList<>();
+        for (String uri : uris) {
+            try {
+                long id = ContentUris.parseId(Uri.parse(uri));
+                if (id >= 0) {
+                    ids.add(String.valueOf(id));
+                }
+            } catch (NumberFormatException | UnsupportedOperationException e) {
+                // A collection rather than a single file; the feed picks up whatever changed in it
+            }
+        }
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String placeholders = String.join(",", Collections.nCopies(ids.size(), "?"));
+        return query(" AND " + MediaStore.MediaColumns._ID + " IN (" + placeholders + ")", ids.toArray(new String[0]), ids.size());
+    }
+
+    private List<MediaChange> query(String extraSelection, String[] extraArgs, int limit) {
+        List<String> projection = new ArrayList<>(List.of(
+                MediaStore.MediaColumns._ID,
+                MediaStore.MediaColumns.DATA,
+                MediaStore.MediaColumns.DATE_ADDED,
+                MediaStore.MediaColumns.MIME_TYPE,
+                MediaStore.MediaColumns.WIDTH,
+                MediaStore.MediaColumns.HEIGHT));
+        if (useGenerations) {
+            projection.add(MediaStore.MediaColumns.GENERATION_ADDED);
+            projection.add(MediaStore.MediaColumns.GENERATION_MODIFIED);
+        }
+
+        String selection = MEDIA_TYPE_SELECTION
+                + " AND " + MediaStore.MediaColumns.DATE_ADDED + " > ?"
+                + " AND (" + positionColumn + " > ? OR (" + positionColumn + " = ? AND " + MediaStore.MediaColumns._ID + " > ?))";
+        List<String> selectionArgs = new ArrayList<>(List.of(String.valueOf(floorSeconds), String.valueOf(position), String.valueOf(position), String.valueOf(lastId)));
+        selection += extraSelection;
+        selectionArgs.addAll(List.of(extraArgs));
+
+        Bundle queryArgs = new Bundle();
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+        queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, selectionArgs.toArray(new String[0]));
+        String sortOrder = positionColumn + " ASC, " + MediaStore.MediaColumns._ID + " ASC";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+        } else {
+            // Providers before Android 11 ignore QUERY_ARG_LIMIT, but pass the sort order on to SQLite as is
+            sortOrder += " LIMIT " + limit;
+        }
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+
+        Uri uri = MediaStore.Files.getContentUri("external");
+        List<MediaChange> changes = new ArrayList<>();
+        try (Cursor cursor = context.getContentResolver().query(uri, projection.toArray(new String[0]), queryArgs, null)) {
+            if (cursor == null) {
+                return changes;
+            }
+
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+            int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+            int dateAddedColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_ADDED);
+            int mimeTypeColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.MIME_TYPE);
+            int widthColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.WIDTH);
+            int heightColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.HEIGHT);
+            int generationAddedColumn = useGenerations ? cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.GENERATION_ADDED) : -1;
+            int generationModifiedColumn = useGenerations ? cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.GENERATION_MODIFIED) : -1;
+
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                long dateAdded = cursor.getLong(dateAddedColumn);
+                long rowPosition = useGenerations ? cursor.getLong(generationModifiedColumn) : dateAdded;
+                MediaChange.Type type = useGenerations && cursor.getLong(generationAddedColumn) <= committedGeneration
+                        ? MediaChange.Type.MODIFIED
+                        : MediaChange.Type.ADDED;
+
+                MediaItem item = new MediaItem(
+                        cursor.getString(dataColumn),
+                        dateAdded * 1000L,
+                        cursor.getString(mimeTypeColumn),
+                        String.valueOf(id),
+                        cursor.getString(widthColumn),
+                        cursor.getString(heightColumn));
+                changes.add(new MediaChange(type, item, rowPosition, id));
+            }
+        }
+        return changes;
+    }
+
+    // Moves the persisted checkpoint past this change, or only remembers it as handled when an earlier change
+    // of this run failed
+    public void commit(MediaChange change) {
+        if (held) {
+            markHandledAhead(change);
+            return;
+        }
+
+        mmkv.encode(useGenerations ? KEY_GENERATION : KEY_DATE_ADDED, change.position());
+        mmkv.encode(KEY_ID, change.id());
+        // Entries behind the checkpoint now are done, or of files that were edited before the feed got to them
+        if (handledAhead.removeIf(key -> key.equals(key(change)) || positionOf(key) < change.position())) {
+            mmkv.encode(KEY_HANDLED_AHEAD, handledAhead);
+        }
+        List<String> behind = new ArrayList<>();
+        for (Iterator<String> keys = attempts.keys(); keys.hasNext(); ) {
+            String key = keys.next();
+            if (key.equals(key(change)) || positionOf(key) < change.position()) {
+                behind.add(key);
+            }
+        }
+        if (!behind.isEmpty()) {
+            behind.forEach(attempts::remove);
+            mmkv.encode(KEY_ATTEMPTS, attempts.toString());
+        }
+    }
+
+    // Keeps the checkpoint in front of a change that didn't go through for a passing reason (no connection, the
+    // host being busy), so the next run returns it again
+    public void hold() {
+        held = true;
+    }
+
+    // Like hold(), but for a change that failed on its own (e.g. it can't be decoded or the host rejects it).
+    // After MAX_ATTEMPTS runs it's given up and handled like one that went through.
+    public void fail(MediaChange change) {
+        int attempt = attempts.optInt(key(change), 0) + 1;
+        if (attempt >= MAX_ATTEMPTS) {
+            Log.v(null, "[MediaChangeFeed] Giving up on " + change.item().filePath() + " after " + attempt + " attempts");
+            attempts.remove(key(change));
+            mmkv.encode(KEY_ATTEMPTS, attempts.toString());
+            commit(change);
+            return;
+        }
+
+        try {
+            attempts.put(key(change), attempt);
+        } catch (JSONException e) {
+            // Only thrown for a null key
+        }
+        mmkv.encode(KEY_ATTEMPTS, attempts.toString());
+        held = true;
+    }
+
+    // Remembers a change from resolve() as handled, for when the feed gets to it
+    public void markHandledAhead(MediaChange change) {
+        handledAhead.add(key(change));
+        mmkv.encode(KEY_HANDLED_AHEAD, handledAhead);
+    }
+
+    public boolean wasHandledAhead(MediaChange change) {
+        return handledAhead.contains(key(change));
+    }
+
+    // A later edit of the file has a new position, so it isn't taken for the change that was handled
+    private static String key(MediaChange change) {
+        return change.id() + ":" + change.position();
+    }
+
+    private static long positionOf(String key) {
+        return Long.parseLong(key.substring(key.indexOf(':') + 1));
+    }
+
+    private static JSONObject readAttempts(String value) {
+        try {
+            return value != null ? new JSONObject(value) : new JSONObject();
+        } catch (JSONException e) {
+            return new JSONObject();
+        }
+    }
+}
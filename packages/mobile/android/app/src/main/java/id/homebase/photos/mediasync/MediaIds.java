@@ -0,0 +1,32 @@
+package id.homebase.photos.mediasync;
+
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+// The uniqueId of a media file on the drive; the same item always maps to the same id, whichever path uploads it
+public class MediaIds {
+    public static String uniqueId(String filePath, String identifier, String width, String height) throws NoSuchAlgorithmException {
+        String fileName = Paths.get(filePath).getFileName().toString();
+        return toGuidId(identifier != null ? identifier : fileName + "_" + width + "x" + height);
+    }
+
+    public static String toGuidId(String input) throws NoSuchAlgorithmException {
+        // Compute the MD5 hash
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] md5Bytes = md.digest(input.getBytes());
+
+        // Convert the first 16 bytes of the MD5 hash to a UUID
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 8; i++) {
+            msb = (msb << 8) | (md5Bytes[i] & 0xff);
+        }
+        for (int i = 8; i < 16; i++) {
+            lsb = (lsb << 8) | (md5Bytes[i] & 0xff);
+        }
+
+        return new UUID(msb, lsb).toString();
+    }
+}
@@ -0,0 +1,218 @@
+package id.homebase.photos.mediasync;
+
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.FFmpegKit;
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.FFmpegSession;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import id.homebase.lib.core.CancellationToken;
+import id.homebase.lib.core.metrics.Metrics;
+import id.homebase.lib.core.trace.Span;
+import id.homebase.lib.core.trace.Tracer;
+
+// Runs FFmpeg jobs (posters, segmenting, transcoding) on a small pool of its own. These jobs block for
+// seconds to minutes, so they must not run on the common ForkJoinPool, where they'd starve every other
+// CompletableFuture in the app. Queued jobs are picked by priority, then in submission order.
+//
+// Cancelling a job removes it from the queue, or cancels the FFmpeg session it is running.
+public class MediaJobExecutor {
+    public enum Priority {
+        // Started by the user and waited on in the UI
+        INTERACTIVE,
+        // Regular background sync
+        NORMAL,
+        // Work that can wait for everything else
+        BACKGROUND
+    }
+
+    private static final ThreadLocal<MediaJob<?>> currentJob = new ThreadLocal<>();
+    private static MediaJobExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger runningJobs = new AtomicInteger();
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong cancelledJobs = new AtomicLong();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+    private volatile int ffmpegThreads;
+    private volatile String x264Preset = SyncGovernor.DEFAULT_X264_PRESET;
+
+    public MediaJobExecutor(int maxConcurrentJobs, int ffmpegThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(maxConcurrentJobs, maxConcurrentJobs, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "media-job-" + threadCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.ffmpegThreads = ffmpegThreads;
+    }
+
+    public static synchronized MediaJobExecutor getInstance() {
+        if (instance == null) {
+            // x264 and the decoders already use several threads per session, so two sessions fill the cores
+            int cores = Runtime.getRuntime().availableProcessors();
+            instance = new MediaJobExecutor(2, Math.max(1, cores / 2));
+            Metrics.gauge("mediaJobs.queued", instance::getQueueDepth);
+            Metrics.gauge("mediaJobs.running", instance::getRunningJobs);
+        }
+        return instance;
+    }
+
+    // The job runs with the caller's cancellation token, and is cancelled along with it. Its span is a child
+    // of the caller's current span.
+    public <T> MediaJob<T> submit(Priority priority, String name, Callable<T> task) {
+        CancellationToken cancellation = CancellationToken.current();
+        MediaJob<T> job = new MediaJob<>(this, priority, sequence.incrementAndGet(), name, cancellation, Tracer.current(), task);
+        CancellationToken.Registration registration = cancellation.register(() -> job.cancel(true));
+        job.whenComplete((result, e) -> registration.close());
+        executor.execute(job);
+        int depth = getQueueDepth();
+        peakQueueDepth.accumulateAndGet(depth, Math::max);
+        Log.v(null, "[MediaJobExecutor] Queued " + name + " (" + priority + "), queue depth: " + depth + ", running: " + runningJobs.get());
+        return job;
+    }
+
+    // Runs an FFmpeg command on the calling thread. Inside a job the session is tied to it, so cancelling the
+    // job cancels the session. Every session is limited to the configured number of threads.
+    public FFmpegSession executeFFmpeg(String command) {
+        String[] arguments = FFmpegKitConfig.parseArguments(command);
+        String[] limitedArguments = new String[arguments.length + 2];
+        limitedArguments[0] = "-threads";
+        limitedArguments[1] = String.valueOf(ffmpegThreads);
+        System.arraycopy(arguments, 0, limitedArguments, 2, arguments.length);
+
+        FFmpegSession session = FFmpegSession.create(limitedArguments);
+        MediaJob<?> job = currentJob.get();
+        if (job != null) {
+            job.sessionId = session.getSessionId();
+            if (job.isCancelled()) {
+                throw new CancellationException(job.name + " was cancelled");
+            }
+        }
+        // Outside a job the session is cancelled with the calling thread's token directly
+        CancellationToken cancellation = job == null ? CancellationToken.current() : CancellationToken.NONE;
+        try (CancellationToken.Registration ignored = cancellation.register(() -> FFmpegKit.cancel(session.getSessionId()))) {
+            FFmpegKitConfig.ffmpegExecute(session);
+        } finally {
+            if (job != null) {
+                job.sessionId = 0;
+            }
+        }
+        return session;
+    }
+
+    public void setFFmpegThreads(int ffmpegThreads) {
+        this.ffmpegThreads = Math.max(1, ffmpegThreads);
+    }
+
+    public int getFFmpegThreads() {
+        return ffmpegThreads;
+    }
+
+    // Preset of the x264 transcodes started from now on
+    public void setX264Preset(String x264Preset) {
+        this.x264Preset = x264Preset;
+    }
+
+    public String getX264Preset() {
+        return x264Preset;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    public int getRunningJobs() {
+        return runningJobs.get();
+    }
+
+    public long getCompletedJobs() {
+        return completedJobs.get();
+    }
+
+    public long getCancelledJobs() {
+        return cancelledJobs.get();
+    }
+
+    public static class MediaJob<T> extends CompletableFuture<T> implements Runnable, Comparable<MediaJob<?>> {
+        private final MediaJobExecutor owner;
+        private final Priority priority;
+        private final long sequence;
+        private final String name;
+        private final CancellationToken cancellation;
+        private final Span parentSpan;
+        private final Callable<T> task;
+        private final long submittedAt = System.currentTimeMillis();
+        private volatile long sessionId = 0;
+
+        private MediaJob(MediaJobExecutor owner, Priority priority, long sequence, String name, CancellationToken cancellation, Span parentSpan, Callable<T> task) {
+            this.owner = owner;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.name = name;
+            this.cancellation = cancellation;
+            this.parentSpan = parentSpan;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            currentJob.set(this);
+            CancellationToken.Registration entered = CancellationToken.enter(cancellation);
+            Tracer.Scope scope = Tracer.enter(parentSpan);
+            owner.runningJobs.incrementAndGet();
+            long start = System.currentTimeMillis();
+            try (Span span = Tracer.start(name)) {
+                span.attr("priority", priority.name()).attr("queuedMs", start - submittedAt);
+                complete(task.call());
+            } catch (Throwable e) {
+                completeExceptionally(e);
+            } finally {
+                scope.close();
+                entered.close();
+                currentJob.remove();
+                owner.runningJobs.decrementAndGet();
+                owner.completedJobs.incrementAndGet();
+                Log.v(null, "[MediaJobExecutor] " + name + " finished in " + (System.currentTimeMillis() - start) + "ms, queue depth: " + owner.getQueueDepth());
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                owner.cancelledJobs.incrementAndGet();
+                owner.executor.remove(this);
+                long id = sessionId;
+                if (id != 0) {
+                    FFmpegKit.cancel(id);
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(MediaJob<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
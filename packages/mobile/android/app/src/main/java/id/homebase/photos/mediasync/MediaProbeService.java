@@ -0,0 +1,155 @@
+package id.homebase.photos.mediasync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.ammarahmed.mmkv.MMKV;
+import com.arthenica.ffmpegkit.FFprobeKit;
+import com.arthenica.ffmpegkit.ReturnCode;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+import id.homebase.photos.mediasync.types.MediaProbeResult;
+
+// Probes a media file with a single ffprobe call and caches the result in MMKV, keyed by path, size and
+// modification time. A retried or re-synced video is never probed twice, and an edited file gets a new key.
+public class MediaProbeService {
+    private static final String CACHE_ID = "mediaProbeCache";
+    // The cache is cheap to rebuild, so it's dropped as a whole instead of tracking usage per entry
+    private static final long MAX_CACHE_ENTRIES = 2000;
+    private static MediaProbeService instance;
+
+    private final MMKV cache;
+
+    private MediaProbeService(Context context) {
+        System.loadLibrary("rnmmkv");
+        MMKV.initialize(context);
+        this.cache = MMKV.mmkvWithID(CACHE_ID);
+    }
+
+    public static synchronized MediaProbeService getInstance(Context context) {
+        if (instance == null) {
+            instance = new MediaProbeService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public CompletableFuture<MediaProbeResult> probeAsync(String filePath) {
+        return MediaJobExecutor.getInstance().submit(MediaJobExecutor.Priority.INTERACTIVE, "probe " + new File(filePath).getName(), () -> probe(filePath));
+    }
+
+    public MediaProbeResult probe(String filePath) {
+        File file = new File(filePath);
+        String cacheKey = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+
+        String cached = cache.decodeString(cacheKey, null);
+        if (cached != null) {
+            try {
+                return MediaProbeResult.fromJson(new JSONObject(cached));
+            } catch (JSONException e) {
+                cache.removeValueForKey(cacheKey);
+            }
+        }
+
+        String[] arguments = new String[]{"-v", "quiet", "-print_format", "json", "-show_format", "-show_streams", file.getAbsolutePath()};
+        var session = FFprobeKit.executeWithArguments(arguments);
+        if (!ReturnCode.isSuccess(session.getReturnCode())) {
+            throw new RuntimeException("Failed to probe " + filePath + ": " + session.getAllLogsAsString());
+        }
+
+        MediaProbeResult result;
+        try {
+            result = parse(new JSONObject(session.getOutput()));
+        } catch (JSONException e) {
+            throw new RuntimeException("Failed to parse probe output for " + filePath, e);
+        }
+        Log.v(null, "[MediaProbeService] " + filePath + ": " + result);
+
+        try {
+            if (cache.count() >= MAX_CACHE_ENTRIES) {
+                for (String key : cache.allKeys()) {
+                    cache.removeValueForKey(key);
+                }
+            }
+            cache.encode(cacheKey, result.toJson().toString());
+        } catch (JSONException e) {
+            Log.e(null, "[MediaProbeService] Failed to cache probe result: " + e.getMessage());
+        }
+        return result;
+    }
+
+    private static MediaProbeResult parse(JSONObject probe) {
+        JSONObject videoStream = null;
+        JSONObject audioStream = null;
+        JSONArray streams = probe.optJSONArray("streams");
+        if (streams != null) {
+            for (int i = 0; i < streams.length(); i++) {
+                JSONObject stream = streams.optJSONObject(i);
+                if (stream == null) continue;
+
+                String codecType = stream.optString("codec_type");
+                // Cover art is exposed as a video stream with the attached_pic disposition
+                boolean attachedPicture = stream.optJSONObject("disposition") != null
+                        && stream.optJSONObject("disposition").optInt("attached_pic") == 1;
+                if (videoStream == null && "video".equals(codecType) && !attachedPicture) {
+                    videoStream = stream;
+                } else if (audioStream == null && "audio".equals(codecType)) {
+                    audioStream = stream;
+                }
+            }
+        }
+
+        JSONObject format = probe.optJSONObject("format");
+        double duration = format != null ? parseDouble(format.optString("duration")) : 0;
+        if (duration <= 0 && videoStream != null) {
+            duration = parseDouble(videoStream.optString("duration"));
+        }
+        long bitRate = format != null ? (long) parseDouble(format.optString("bit_rate")) : 0;
+
+        return new MediaProbeResult(
+                videoStream != null ? videoStream.optString("codec_name", null) : null,
+                audioStream != null ? audioStream.optString("codec_name", null) : null,
+                videoStream != null ? parseRotation(videoStream) : 0,
+                duration,
+                bitRate,
+                videoStream != null ? videoStream.optInt("width") : 0,
+                videoStream != null ? videoStream.optInt("height") : 0);
+    }
+
+    // Older files carry a clockwise "rotate" tag, newer ffprobe versions report a counter-clockwise display
+    // matrix rotation in the side data instead
+    private static int parseRotation(JSONObject videoStream) {
+        JSONObject tags = videoStream.optJSONObject("tags");
+        if (tags != null && tags.has("rotate")) {
+            return normalizeRotation((int) parseDouble(tags.optString("rotate")));
+        }
+
+        JSONArray sideDataList = videoStream.optJSONArray("side_data_list");
+        if (sideDataList != null) {
+            for (int i = 0; i < sideDataList.length(); i++) {
+                JSONObject sideData = sideDataList.optJSONObject(i);
+                if (sideData != null && sideData.has("rotation")) {
+                    return normalizeRotation(-sideData.optInt("rotation"));
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int normalizeRotation(int degrees) {
+        return ((degrees % 360) + 360) % 360;
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return value == null || value.isEmpty() ? 0 : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
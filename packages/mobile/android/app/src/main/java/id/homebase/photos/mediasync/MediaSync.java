@@ -3,27 +3,73 @@ package id.homebase.photos.mediasync;
 import static id.homebase.lib.core.file.DriveFileUploadProvider.isDebug;
 
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
-import android.provider.MediaStore;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.ammarahmed.mmkv.MMKV;
 
+import java.io.File;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import id.homebase.lib.core.ApiType;
+import id.homebase.lib.core.CancellationToken;
 import id.homebase.lib.core.DotYouClient;
 import id.homebase.lib.core.crypto.CryptoUtil;
 import id.homebase.lib.core.file.types.BadRequestUploadResult;
+import id.homebase.lib.core.file.types.FailedUploadResult;
 import id.homebase.lib.core.file.types.SuccessfullUploadResult;
+import id.homebase.lib.core.file.types.UploadBundle;
 import id.homebase.lib.core.file.types.UploadResult;
+import id.homebase.lib.core.metrics.Counter;
+import id.homebase.lib.core.metrics.Histogram;
+import id.homebase.lib.core.metrics.Metrics;
+import id.homebase.lib.core.trace.Span;
+import id.homebase.lib.core.trace.Tracer;
+import id.homebase.photos.mediasync.types.MediaChange;
+import id.homebase.photos.mediasync.types.MediaItem;
+import id.homebase.photos.mediasync.types.PreparedUpload;
+import id.homebase.photos.mediasync.types.SyncBudget;
 
 public class MediaSync {
+    // Room for the thumbnails and the descriptor of a staged image, on top of the (encrypted) original
+    private static final long STAGING_HEADROOM_BYTES = 1024 * 1024;
+    // Leaves a margin within the 10 minutes WorkManager gives a worker
+    public static final long DEFAULT_TIME_BUDGET_MS = 8 * 60 * 1000;
+    // Foreground work isn't bound to that limit
+    private static final long FOREGROUND_TIME_BUDGET_MS = 60 * 60 * 1000;
+    private static final int MIN_BATCH_SIZE = 10;
+    private static final int MAX_BATCH_SIZE = 200;
+    private static final double DEFAULT_ITEM_COST_MS = 3000;
+    // Weight of the latest item in the moving average of the cost per item
+    private static final double COST_SMOOTHING = 0.1;
+
+    private static final Histogram ITEM = Metrics.histogram("sync.item", TimeUnit.MILLISECONDS);
+    // From the moment the photo or video was taken until the server has it
+    private static final Histogram CAPTURE_TO_CLOUD = Metrics.histogram("sync.captureToCloud", TimeUnit.SECONDS);
+    private static final Counter UPLOADED = Metrics.counter("sync.uploaded");
+    private static final Counter ALREADY_UPLOADED = Metrics.counter("sync.alreadyUploaded");
+    private static final Counter SKIPPED_EDITS = Metrics.counter("sync.skippedEdits");
+    private static final Counter FAILED = Metrics.counter("sync.failed");
+    private static final Counter RETRIES = Metrics.counter("upload.retries");
+
+    // Runs come from the periodic work, media changes, backlog continuations and the app, and all of them move
+    // the same checkpoint. One that is behind would move it backwards, so they take turns.
+    private static final ReentrantLock RUN_LOCK = new ReentrantLock();
+
     private final Context context;
 
     public MediaSync(Context context) {
@@ -31,7 +77,49 @@ public class MediaSync {
     }
 
     public void syncMedia() {
-        Log.v(null, "[SyncWorker] doWork");
+        syncMedia(List.of(), DEFAULT_TIME_BUDGET_MS);
+    }
+
+    // Syncs page after page until everything is uploaded or the time budget runs out, and returns whether a
+    // backlog remains. changedUris are the media that triggered this run, if any.
+    public boolean syncMedia(List<String> changedUris, long timeBudgetMs) {
+        return syncMedia(changedUris, timeBudgetMs, null);
+    }
+
+    public boolean syncMedia(List<String> changedUris, long timeBudgetMs, ProgressListener listener) {
+        return syncMedia(changedUris, timeBudgetMs, listener, new CancellationToken());
+    }
+
+    // Cancelling the token stops the run after aborting the work in flight: FFmpeg sessions, encryption and
+    // upload calls. Whatever was committed stays committed; a cancelled run reports no backlog.
+    public boolean syncMedia(List<String> changedUris, long timeBudgetMs, ProgressListener listener, CancellationToken cancellation) {
+        // Waiting for another run counts against the time budget
+        long waitStart = SystemClock.elapsedRealtime();
+        try {
+            while (!RUN_LOCK.tryLock(1, TimeUnit.SECONDS)) {
+                if (cancellation.isCancelled()) {
+                    return false;
+                }
+                if (SystemClock.elapsedRealtime() - waitStart >= timeBudgetMs) {
+                    Log.v(null, "[SyncWorker] Another run is still going, leaving it to the next run");
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        try (CancellationToken.Registration ignored = CancellationToken.enter(cancellation)) {
+            return sync(changedUris, timeBudgetMs - (SystemClock.elapsedRealtime() - waitStart), listener, cancellation);
+        } finally {
+            RUN_LOCK.unlock();
+        }
+    }
+
+    private boolean sync(List<String> changedUris, long timeBudgetMs, ProgressListener listener, CancellationToken cancellation) {
+        Log.v(null, "[SyncWorker] doWork, changed: " + changedUris.size());
+        long deadline = SystemClock.elapsedRealtime() + timeBudgetMs;
 
         System.loadLibrary("rnmmkv");
         MMKV.initialize(this.context);
@@ -45,6 +133,8 @@ public class MediaSync {
         String sharedSecret = mmkv.decodeString("APSS", "");
         double lastSyncTime = mmkv.decodeDouble("lastSyncTimeAsNumber", new Date().getTime() - 1000 * 60 * 60 * 24 * 7);
         boolean forceLowerQuality = mmkv.decodeInt("forceLowerQualityAsBoolean", 0) == 1;
+        boolean thumbHashPreview = mmkv.decodeInt("thumbHashPreviewAsBoolean", 0) == 1;
+        boolean pipelinedVideoUpload = mmkv.decodeInt("pipelinedVideoUploadAsBoolean", 0) == 1;
 
         assert sharedSecret != null;
         assert identity != null;
@@ -60,7 +150,7 @@ public class MediaSync {
         }
 
         if (!syncEnabled) {
-            return;
+            return false;
         }
 
         Map<String, String> headers = new HashMap<>();
@@ -68,85 +158,340 @@ public class MediaSync {
 
         DotYouClient dotYouClient = new DotYouClient(ApiType.App, CryptoUtil.base64ToByteArray(sharedSecret), identity, headers);
 
-        double lastSyncTimeSeconds = lastSyncTime / 1000 - (60 * 30); // 30 minutes buffer
-        String lastSyncTimeString = String.valueOf(lastSyncTimeSeconds);
-        int maxBatchSize = 50;
-
-        // Find all photos that have been added since the last sync
-        Uri uri = MediaStore.Files.getContentUri("external");
-        String[] projection = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.DATE_ADDED, MediaStore.Images.Media.MIME_TYPE, MediaStore.Images.Media._ID, MediaStore.Images.Media.WIDTH, MediaStore.Images.Media.HEIGHT};
-        String selection = MediaStore.Images.Media.DATE_ADDED + " > ?";
-        String[] selectionArgs = {lastSyncTimeString};
-        String sortOrder = MediaStore.Images.Media.DATE_ADDED + " ASC";
-        String limit = " LIMIT " + maxBatchSize;
-
-        Cursor cursor = this.context.getContentResolver().query(
-                uri.buildUpon().encodedQuery(limit).build(),
-                projection,
-                selection,
-                selectionArgs,
-                sortOrder);
-
-        // For each photo, upload it to the server
-        if (cursor != null) {
+        // The last sync time only bounds the first scan; after that the change feed keeps its own checkpoint
+        long lastSyncTimeSeconds = (long) (lastSyncTime / 1000 - (60 * 30)); // 30 minutes buffer
+
+        // Find all photos and videos that have been added or changed since the last sync
+        MediaChangeFeed changeFeed = new MediaChangeFeed(this.context, mmkv, lastSyncTimeSeconds);
+        MMKV stats = MMKV.mmkvWithID("mediaSyncStats");
+        double itemCostMs = stats.decodeDouble("itemCostMs", DEFAULT_ITEM_COST_MS);
+
+        UploadScheduler scheduler = UploadScheduler.getInstance();
+        InFlightUploads inFlightUploads = InFlightUploads.getInstance();
+        UploadBundleStore bundleStore = UploadBundleStore.getInstance(context);
+        SyncGovernor governor = SyncGovernor.getInstance(context);
+        MemoryGovernor memoryGovernor = MemoryGovernor.getInstance(context);
+
+        // Pages are sized to what fits in the remaining time, going by the measured cost per item
+        boolean backlogRemaining = false;
+        // The media that triggered this run go first, ahead of the backlog
+        List<MediaChange> triggered = changedUris.isEmpty() ? List.of() : changeFeed.resolve(changedUris);
+        boolean foreground = false;
+        boolean unauthorized = false;
+        while (true) {
+            long remainingMs = deadline - SystemClock.elapsedRealtime();
+            int pageSize = (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, remainingMs / itemCostMs));
+            boolean aheadPage = !triggered.isEmpty();
+            List<MediaChange> changes = aheadPage ? triggered : changeFeed.nextPage(pageSize);
+            triggered = List.of();
+            // Changes handled ahead of the feed can't move its checkpoint, as the backlog in front of them isn't done
+            Consumer<MediaChange> handled = aheadPage ? changeFeed::markHandledAhead : changeFeed::commit;
+
             if (isDebug()) {
-                Log.v(null, "[SyncWorker] cursor: " + cursor.getCount());
+                Log.v(null, "[SyncWorker] changes: " + changes.size() + "/" + pageSize + (aheadPage ? " (triggered)" : "") + (changeFeed.usesGenerations() ? " (by generation)" : " (by date added)") + ", cost per item: " + Math.round(itemCostMs) + "ms");
             }
 
-            if (cursor.getCount() == 0) {
-                // No new photos to sync so we set current time as last sync time
-                mmkv.encode("lastSyncTimeAsNumber", new Date().getTime());
+            // Without a network the images of the page are only prepared and staged, for a later run to upload
+            boolean online = isOnline();
+            if (!online) {
+                Log.v(null, "[SyncWorker] Offline, only staging images");
             }
 
-            while (cursor.moveToNext()) {
-                try {
-                    String filePath = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA));
-                    String timestampInSeconds = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_ADDED));
-                    // parse timestamp in seconds to double in milliseconds
-                    long timestampInMillis = Long.parseLong(timestampInSeconds) * 1000L;
+            // Follows battery, thermal status and Data Saver; re-read before every video as well
+            SyncBudget budget = governor.update();
+
+            List<MediaItem> items = new ArrayList<>();
+            long pageBytes = 0;
+            for (MediaChange change : changes) {
+                items.add(change.item());
+                if (change.type() == MediaChange.Type.ADDED && !changeFeed.wasHandledAhead(change)) {
+                    pageBytes += new File(change.item().filePath()).length();
+                }
+            }
 
-                    String mimeType = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.MIME_TYPE));
-                    String identifier = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID));
-                    String width = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.WIDTH));
-                    String height = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Images.Media.HEIGHT));
+            if (listener != null && listener.onPageStarted(items.size(), pageBytes, (long) (items.size() * itemCostMs)) && !foreground) {
+                foreground = true;
+                deadline = Math.max(deadline, SystemClock.elapsedRealtime() + FOREGROUND_TIME_BUDGET_MS);
+            }
 
+            // Images are prepared a few items ahead of the upload, so decoding runs in parallel and overlaps with the network
+            Map<Integer, CompletableFuture<PreparedUpload>> preparedImages = new HashMap<>();
+            int committed = 0;
+            boolean videoPaused = false;
+            for (int i = 0; i < items.size(); i++) {
+                if (cancellation.isCancelled()) {
+                    Log.v(null, "[SyncWorker] Cancelled");
+                    break;
+                }
+                if (unauthorized) {
+                    Log.v(null, "[SyncWorker] Not authorized, stopping");
+                    break;
+                }
+                if (SystemClock.elapsedRealtime() >= deadline) {
+                    // Out of time; the rest is left for the next run, which picks up at the checkpoint
+                    backlogRemaining = true;
+                    break;
+                }
+
+                MediaItem item = items.get(i);
+                if (changes.get(i).type() == MediaChange.Type.MODIFIED || changeFeed.wasHandledAhead(changes.get(i))) {
+                    // An edit of a file that was synced before keeps the uniqueId of the uploaded one, so the server
+                    // would only reject it as a duplicate. Overwriting that file needs its header looked up by
+                    // uniqueId first, which there's no call for yet. Files that triggered a run were handled then.
+                    if (changes.get(i).type() == MediaChange.Type.MODIFIED) {
+                        SKIPPED_EDITS.increment();
+                    }
                     if (isDebug()) {
-                        Log.v(null, "[SyncWorker] MediaItem filePath: " + filePath);
+                        Log.v(null, "[SyncWorker] Skipping MediaItem (" + (changes.get(i).type() == MediaChange.Type.MODIFIED ? "edited" : "handled already") + "): " + item.filePath());
                     }
+                    handled.accept(changes.get(i));
+                    committed++;
+                    if (listener != null) {
+                        listener.onItemFinished(i + 1, items.size());
+                    }
+                    continue;
+                }
+                if (item.isVideo()) {
+                    budget = governor.update();
+                    if (!budget.videoAllowed()) {
+                        // Stop in front of the video rather than skip it, as the checkpoint must not move past it
+                        Log.v(null, "[SyncWorker] Video work paused (" + budget.reason() + "), stopping until the next scheduled run");
+                        videoPaused = true;
+                        break;
+                    }
+                }
+
+                // Fewer images are held in memory at once while memory is short
+                memoryGovernor.check();
+                int prepareAhead = memoryGovernor.limitPrepareAhead(budget.prepareAhead());
+                for (int j = i; j < Math.min(items.size(), i + prepareAhead); j++) {
+                    // Items that are uploaded by someone else right now are left alone; the upload below attaches to that one
+                    // Neither are items that an earlier run staged already, nor edits, which are skipped below
+                    if (!items.get(j).isVideo() && changes.get(j).type() == MediaChange.Type.ADDED && !changeFeed.wasHandledAhead(changes.get(j)) && !preparedImages.containsKey(j) && !inFlightUploads.isBusy(uniqueIdOf(items.get(j))) && !bundleStore.contains(uniqueIdOf(items.get(j)))) {
+                        preparedImages.put(j, prepareImage(items.get(j), forceLowerQuality, thumbHashPreview));
+                    }
+                }
 
+                long itemStart = SystemClock.elapsedRealtime();
+                // Parent of everything done for the item, including the jobs it submits
+                Span itemSpan = Tracer.start("item")
+                        .attr("file", new File(item.filePath()).getName())
+                        .attr("kind", item.isVideo() ? "video" : "image")
+                        .attr("bytes", new File(item.filePath()).length());
+                try {
+                    if (isDebug()) {
+                        Log.v(null, "[SyncWorker] MediaItem filePath: " + item.filePath());
+                    }
+
+                    // Recent captures go ahead of the backfill, and uploads started from the app go ahead of both
+                    UploadScheduler.Lane lane = UploadScheduler.laneFor(item.timestampInMillis());
+                    itemSpan.attr("lane", lane.name());
                     UploadResult result;
-                    if (mimeType.startsWith("video/")) {
-                        VideoProvider videoProvider = new VideoProvider(context);
-                        result = videoProvider.uploadMedia(dotYouClient, filePath, timestampInMillis, mimeType, identifier, width, height, true);
+                    if (item.isVideo() && !online) {
+                        // Videos are too large to stage ahead; they wait for the network
+                        result = null;
+                    } else if (item.isVideo()) {
+                        result = inFlightUploads.run(uniqueIdOf(item), () -> {
+                            try (UploadScheduler.Ticket ignored = scheduler.acquire(lane, UploadScheduler.Kind.VIDEO)) {
+                                VideoProvider videoProvider = new VideoProvider(context, pipelinedVideoUpload);
+                                return videoProvider.uploadMedia(dotYouClient, item.filePath(), item.timestampInMillis(), item.mimeType(), item.identifier(), item.width(), item.height(), forceLowerQuality);
+                            }
+                        });
                     } else {
-                        result = ImageProvider.uploadMedia(dotYouClient, filePath, timestampInMillis, mimeType, identifier, width, height, forceLowerQuality);
+                        CompletableFuture<PreparedUpload> preparing = preparedImages.remove(i);
+                        AtomicBoolean started = new AtomicBoolean(false);
+                        try {
+                            result = inFlightUploads.run(uniqueIdOf(item), () -> {
+                                started.set(true);
+                                return uploadImage(dotYouClient, item, preparing, lane, online, forceLowerQuality, thumbHashPreview);
+                            });
+                        } finally {
+                            if (preparing != null && !started.get()) {
+                                // Attached to an upload in progress, so our own preparation isn't needed
+                                preparing.thenAccept(PreparedUpload::release);
+                            }
+                        }
                     }
 
-                    if (result instanceof SuccessfullUploadResult) {
+                    itemSpan.attr("result", result != null ? result.getClass().getSimpleName() : "deferred");
+                    // Changes of the triggered page that don't go through are left to the feed
+                    if (result == null && !aheadPage) {
+                        changeFeed.hold();
+                    } else if (result instanceof SuccessfullUploadResult) {
                         Log.v(null, "[SyncWorker] MediaItem uploaded: " + result.toString());
-                        mmkv.encode("lastSyncTimeAsNumber", timestampInMillis); // We update the last sync time to the timestamp of the photo so we can continue where we left of if the task is interrupted
+                        UPLOADED.increment();
+                        CAPTURE_TO_CLOUD.record(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - item.timestampInMillis()));
+                        handled.accept(changes.get(i)); // We move the checkpoint past the photo so we can continue where we left of if the task is interrupted
+                        if (!aheadPage) {
+                            mmkv.encode("lastSyncTimeAsNumber", item.timestampInMillis());
+                        }
+                        committed++;
                     } else if (result instanceof BadRequestUploadResult) {
                         if (!Objects.equals(((BadRequestUploadResult) result).getErrorCode(), "existingFileWithUniqueId")) {
                             Log.v(null, "[SyncWorker] MediaItem failed to upload: " + result.toString());
+                            FAILED.increment();
+                            if (!aheadPage) {
+                                changeFeed.fail(changes.get(i));
+                            }
                         } else {
                             Log.v(null, "[SyncWorker] MediaItem was already uploaded: " + result.toString());
-                            mmkv.encode("lastSyncTimeAsNumber", timestampInMillis); // We update the last sync time to the timestamp of the photo so we can continue where we left of if the task is interrupted
+                            ALREADY_UPLOADED.increment();
+                            handled.accept(changes.get(i)); // We move the checkpoint past the photo so we can continue where we left of if the task is interrupted
+                            if (!aheadPage) {
+                                mmkv.encode("lastSyncTimeAsNumber", item.timestampInMillis());
+                            }
+                            committed++;
+                        }
+                    } else if (result instanceof FailedUploadResult) {
+                        Log.v(null, "[SyncWorker] MediaItem failed to upload: " + result);
+                        FAILED.increment();
+                        // The rest would be rejected just the same
+                        unauthorized = ((FailedUploadResult) result).getReason() == FailedUploadResult.Reason.UNAUTHORIZED;
+                        if (!aheadPage) {
+                            changeFeed.hold();
                         }
                     }
                 } catch (Exception e) {
                     // Ignore any errors and continue with the next media item
                     Log.e(null, "[SyncWorker] Error uploading photo: " + e.getMessage());
+                    FAILED.increment();
+                    itemSpan.attr("error", String.valueOf(e.getMessage()));
+                    if (!aheadPage && cancellation.isCancelled()) {
+                        changeFeed.hold();
+                    } else if (!aheadPage) {
+                        changeFeed.fail(changes.get(i));
+                    }
+                } finally {
+                    itemSpan.close();
                 }
+                ITEM.record(SystemClock.elapsedRealtime() - itemStart);
+
+                itemCostMs = COST_SMOOTHING * (SystemClock.elapsedRealtime() - itemStart) + (1 - COST_SMOOTHING) * itemCostMs;
+                if (listener != null) {
+                    listener.onItemFinished(i + 1, items.size());
+                }
+            }
+
+            // Preparations of items this run didn't get to
+            for (CompletableFuture<PreparedUpload> preparing : preparedImages.values()) {
+                preparing.thenAccept(PreparedUpload::release);
             }
 
-            if (cursor.getCount() < maxBatchSize) {
+            if (cancellation.isCancelled() || unauthorized) {
+                backlogRemaining = false;
+                break;
+            }
+            if (backlogRemaining || videoPaused) {
+                break;
+            }
+            if (committed == 0 && !changes.isEmpty()) {
+                // Nothing in this page went through (e.g. no connection); the next page would start with the same items
+                Log.v(null, "[SyncWorker] No progress in this page, stopping until the next scheduled run");
+                break;
+            }
+            if (!aheadPage && changes.size() < pageSize) {
                 // Everything is processed and the batch was smaller than max, so we set current time as last sync time
                 mmkv.encode("lastSyncTimeAsNumber", new Date().getTime());
+                break;
+            }
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                backlogRemaining = true;
+                break;
             }
+        }
 
-            cursor.close();
+        stats.encode("itemCostMs", itemCostMs);
+
+        if (isDebug()) {
+            BitmapPool.getInstance().logStats();
         }
 
+        return backlogRemaining;
+    }
+
+    // Uploads the staged bundle of an earlier attempt, or else the prepared image straight from memory. The image
+    // is only staged when it can't reach the server: offline (then null is returned) or after a failed upload.
+    private UploadResult uploadImage(DotYouClient dotYouClient, MediaItem item, CompletableFuture<PreparedUpload> preparing, UploadScheduler.Lane lane, boolean online, boolean forceLowerQuality, boolean thumbHashPreview) throws Exception {
+        String uniqueId = uniqueIdOf(item);
+        UploadBundleStore bundleStore = UploadBundleStore.getInstance(context);
+        UploadScheduler scheduler = UploadScheduler.getInstance();
+
+        UploadBundle bundle = bundleStore.get(uniqueId);
+        if (bundle != null) {
+            RETRIES.increment();
+            if (preparing != null) {
+                preparing.thenAccept(PreparedUpload::release);
+            }
+        } else {
+            // Wait for the preparation before taking a slot, so the slot is only held for the upload itself
+            PreparedUpload prepared = (preparing != null ? preparing : prepareImage(item, forceLowerQuality, thumbHashPreview)).get();
+            try {
+                // Staged only when the upload can't go through now, so a regular upload doesn't write and read the
+                // whole encrypted image on flash as well
+                if (!online) {
+                    stage(bundleStore, dotYouClient, item, prepared);
+                    return null;
+                }
+
+                UploadResult result;
+                try (UploadScheduler.Ticket ignored = scheduler.acquire(lane, UploadScheduler.Kind.IMAGE)) {
+                    result = ImageProvider.uploadPrepared(dotYouClient, prepared);
+                }
+                if (result instanceof FailedUploadResult) {
+                    // Didn't reach the server; the retry uploads the staged bundle instead of decoding and resizing again
+                    stage(bundleStore, dotYouClient, item, prepared);
+                }
+                return result;
+            } finally {
+                prepared.release();
+            }
+        }
+
+        if (!online) {
+            return null;
+        }
+        try (UploadScheduler.Ticket ignored = scheduler.acquire(lane, UploadScheduler.Kind.IMAGE)) {
+            return bundleStore.upload(dotYouClient, uniqueId, bundle);
+        }
+    }
+
+    // Without room to stage it, the item is prepared again by the next attempt
+    private void stage(UploadBundleStore bundleStore, DotYouClient dotYouClient, MediaItem item, PreparedUpload prepared) throws Exception {
+        bundleStore.stage(uniqueIdOf(item), new File(item.filePath()).length() + STAGING_HEADROOM_BYTES, directory -> ImageProvider.stagePrepared(dotYouClient, prepared, directory));
+    }
+
+    private boolean isOnline() {
+        ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        Network network = connectivityManager != null ? connectivityManager.getActiveNetwork() : null;
+        NetworkCapabilities capabilities = network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+        return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+    }
+
+    private static String uniqueIdOf(MediaItem item) {
+        try {
+            return MediaIds.uniqueId(item.filePath(), item.identifier(), item.width(), item.height());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static CompletableFuture<PreparedUpload> prepareImage(MediaItem item, boolean forceLowerQuality, boolean thumbHashPreview) {
+        // Usually runs ahead of the item's own span, so the decodes hang off this one
+        try (Span ignored = Tracer.start("prepare").attr("file", new File(item.filePath()).getName())) {
+            return ImageProvider.prepareMedia(item.filePath(), item.timestampInMillis(), item.mimeType(), item.identifier(), item.width(), item.height(), forceLowerQuality, thumbHashPreview);
+        } catch (Exception e) {
+            // CompletableFuture.failedFuture needs API 31
+            CompletableFuture<PreparedUpload> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    public interface ProgressListener {
+        // Called before each page with its total file size and estimated sync time. Returns whether the run
+        // continues as foreground work, which lifts the time budget.
+        boolean onPageStarted(int items, long bytes, long estimatedMs);
 
+        void onItemFinished(int finished, int total);
     }
 }
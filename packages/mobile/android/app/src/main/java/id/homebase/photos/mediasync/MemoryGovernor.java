@@ -0,0 +1,172 @@
+package id.homebase.photos.mediasync;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import id.homebase.lib.core.file.types.SpillableBuffer;
+import id.homebase.lib.core.metrics.Metrics;
+
+// Central reaction to memory pressure in the sync path. It hears onTrimMemory/onLowMemory (registered in
+// MainApplication) and looks at the heap headroom and the system-wide low memory flag whenever the sync asks.
+// Under pressure it shrinks the bitmap and buffer pools, lowers the decode budget and spills payloads to disk
+// sooner; once the pressure has been gone for a while, the limits go back up.
+//
+// A trim callback only says that memory was short at that moment, so its level is held for RELAX_AFTER_MS
+// before check() lets the limits rise again.
+public class MemoryGovernor implements ComponentCallbacks2 {
+    public enum Level {
+        NORMAL,
+        LOW,
+        CRITICAL
+    }
+
+    private static final long RELAX_AFTER_MS = 30 * 1000;
+    // Share of the maximum heap that is still free below which the heap itself counts as a signal
+    private static final double LOW_HEAP_HEADROOM = 0.25;
+    private static final double CRITICAL_HEAP_HEADROOM = 0.10;
+    private static final long DEFAULT_SPILL_THRESHOLD = SpillableBuffer.getDefaultThreshold();
+    private static final long LOW_SPILL_THRESHOLD = 1024 * 1024;
+    private static MemoryGovernor instance;
+
+    private final ActivityManager activityManager;
+    private final long defaultBitmapPoolBytes;
+    private Level signaledLevel = Level.NORMAL;
+    private long signaledAt = 0;
+    private Level level = Level.NORMAL;
+
+    private MemoryGovernor(Context context) {
+        this.activityManager = context.getSystemService(ActivityManager.class);
+        this.defaultBitmapPoolBytes = BitmapPool.getInstance().getMaxBytes();
+    }
+
+    public static synchronized MemoryGovernor getInstance(Context context) {
+        if (instance == null) {
+            instance = new MemoryGovernor(context.getApplicationContext());
+            MemoryGovernor governor = instance;
+            Metrics.gauge("memory.level", () -> governor.getLevel().ordinal());
+        }
+        return instance;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        BitmapPool.getInstance().trimMemory(level);
+        if (level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_MODERATE) {
+            signal(Level.CRITICAL);
+        } else if (level == TRIM_MEMORY_RUNNING_LOW || level >= TRIM_MEMORY_BACKGROUND) {
+            signal(Level.LOW);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        BitmapPool.getInstance().clear();
+        signal(Level.CRITICAL);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+
+    private synchronized void signal(Level signaled) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - signaledAt >= RELAX_AFTER_MS || signaled.compareTo(signaledLevel) > 0) {
+            signaledLevel = signaled;
+        }
+        signaledAt = now;
+        apply(max(signaledLevel, heapLevel()));
+    }
+
+    // Re-evaluates the pressure, and adjusts the limits to it; cheap enough to call for every item
+    public synchronized Level check() {
+        if (SystemClock.elapsedRealtime() - signaledAt >= RELAX_AFTER_MS) {
+            signaledLevel = Level.NORMAL;
+        }
+        Level current = max(signaledLevel, heapLevel());
+        if (current == Level.NORMAL && isSystemLowOnMemory()) {
+            current = Level.LOW;
+        }
+        apply(current);
+        return current;
+    }
+
+    public synchronized Level getLevel() {
+        return level;
+    }
+
+    // Number of images to prepare ahead at the current level
+    public synchronized int limitPrepareAhead(int prepareAhead) {
+        switch (level) {
+            case CRITICAL:
+                return 1;
+            case LOW:
+                return Math.max(1, prepareAhead / 2);
+            default:
+                return prepareAhead;
+        }
+    }
+
+    private void apply(Level newLevel) {
+        if (newLevel == level) {
+            return;
+        }
+        Log.v(null, "[MemoryGovernor] " + level + " -> " + newLevel + ", heap free: " + Math.round(heapHeadroom() * 100) + "%");
+        level = newLevel;
+
+        BitmapPool bitmapPool = BitmapPool.getInstance();
+        ImageDecodeExecutor decodeExecutor = ImageDecodeExecutor.getInstance();
+        switch (newLevel) {
+            case CRITICAL:
+                // Every payload goes to disk right away, and only one large image is decoded at a time
+                bitmapPool.setMaxBytes(0);
+                SpillableBuffer.setDefaultThreshold(0);
+                SpillableBuffer.trimPool();
+                decodeExecutor.setBudgetShare(0.25);
+                break;
+            case LOW:
+                bitmapPool.setMaxBytes(defaultBitmapPoolBytes / 2);
+                SpillableBuffer.setDefaultThreshold(LOW_SPILL_THRESHOLD);
+                SpillableBuffer.trimPool();
+                decodeExecutor.setBudgetShare(0.5);
+                break;
+            default:
+                bitmapPool.setMaxBytes(defaultBitmapPoolBytes);
+                SpillableBuffer.setDefaultThreshold(DEFAULT_SPILL_THRESHOLD);
+                decodeExecutor.setBudgetShare(1);
+                break;
+        }
+    }
+
+    private static Level heapLevel() {
+        double headroom = heapHeadroom();
+        if (headroom < CRITICAL_HEAP_HEADROOM) {
+            return Level.CRITICAL;
+        }
+        return headroom < LOW_HEAP_HEADROOM ? Level.LOW : Level.NORMAL;
+    }
+
+    private static double heapHeadroom() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return 1 - (double) used / runtime.maxMemory();
+    }
+
+    private boolean isSystemLowOnMemory() {
+        if (activityManager == null) {
+            return false;
+        }
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return memoryInfo.lowMemory;
+    }
+
+    private static Level max(Level a, Level b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+}
@@ -0,0 +1,74 @@
+package id.homebase.photos.mediasync;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.Objects;
+
+import id.homebase.photos.mediasync.types.SyncBudget;
+
+// Scales the sync to the state of the device. At full speed it prepares several images ahead and transcodes
+// with every FFmpeg thread; on a low battery or a warm device it backs off to fewer threads and a faster x264
+// preset, and on a critical battery or under severe thermal status video work stops altogether. Data Saver
+// on a metered network also holds back the videos, being by far the largest uploads.
+//
+// update() is cheap and is called once per page and before every video, so the sync follows the device as
+// it heats up or is plugged in.
+public class SyncGovernor {
+    private static final int DEFAULT_PREPARE_AHEAD = 4;
+    public static final String DEFAULT_X264_PRESET = "fast";
+    private static final int LOW_BATTERY_PERCENT = 20;
+    private static final int CRITICAL_BATTERY_PERCENT = 10;
+    private static SyncGovernor instance;
+
+    private final DeviceSignals signals;
+    private final int baseFFmpegThreads;
+    private SyncBudget current;
+
+    public SyncGovernor(DeviceSignals signals, int baseFFmpegThreads) {
+        this.signals = signals;
+        this.baseFFmpegThreads = baseFFmpegThreads;
+    }
+
+    public static synchronized SyncGovernor getInstance(Context context) {
+        if (instance == null) {
+            // Nothing has lowered the thread count before the governor exists, so this is the full count
+            instance = new SyncGovernor(new AndroidDeviceSignals(context.getApplicationContext()), MediaJobExecutor.getInstance().getFFmpegThreads());
+        }
+        return instance;
+    }
+
+    // Reads the signals and applies the resulting budget to the media job executor
+    public synchronized SyncBudget update() {
+        SyncBudget budget = evaluate();
+        if (!Objects.equals(budget, current)) {
+            Log.v(null, "[SyncGovernor] " + budget);
+            MediaJobExecutor executor = MediaJobExecutor.getInstance();
+            executor.setFFmpegThreads(budget.ffmpegThreads());
+            executor.setX264Preset(budget.x264Preset());
+            current = budget;
+        }
+        return budget;
+    }
+
+    public SyncBudget evaluate() {
+        int thermalStatus = signals.getThermalStatus();
+        int battery = signals.getBatteryPercent();
+        // An unknown level counts as full
+        boolean onBattery = !signals.isCharging() && battery >= 0;
+        boolean dataSaver = signals.isDataSaverOn();
+
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            return new SyncBudget(1, 1, "ultrafast", false, "thermal status " + thermalStatus);
+        }
+        if (onBattery && battery <= CRITICAL_BATTERY_PERCENT) {
+            return new SyncBudget(1, 1, "ultrafast", false, "battery at " + battery + "%");
+        }
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE || (onBattery && battery <= LOW_BATTERY_PERCENT)) {
+            String reason = thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE ? "thermal status " + thermalStatus : "battery at " + battery + "%";
+            return new SyncBudget(2, Math.max(1, baseFFmpegThreads / 2), "veryfast", !dataSaver, dataSaver ? reason + ", data saver" : reason);
+        }
+        return new SyncBudget(DEFAULT_PREPARE_AHEAD, baseFFmpegThreads, DEFAULT_X264_PRESET, !dataSaver, dataSaver ? "data saver" : "normal");
+    }
+}
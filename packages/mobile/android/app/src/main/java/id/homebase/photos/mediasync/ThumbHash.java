@@ -0,0 +1,174 @@
+package id.homebase.photos.mediasync;
+
+import android.graphics.Bitmap;
+
+// Java port of the ThumbHash encoder (https://github.com/evanw/thumbhash, MIT licensed).
+//
+// A ThumbHash is a ~25 byte DCT summary of an image, used as the embedded preview thumbnail instead of a
+// 20px JPEG. It is emitted as EmbeddedThumb(contentType = "thumbhash", content = base64 of the hash bytes).
+// It isn't an image by itself: the apps decode it with the helpers in photo-app-common
+// (packages/common/src/helpers/thumbHash.ts) before rendering it.
+public class ThumbHash {
+    public static final String CONTENT_TYPE = "thumbhash";
+    public static final int MAX_SIZE = 100;
+
+    // Scales the (already downscaled) bitmap to fit in 100x100 and encodes it
+    public static byte[] fromBitmap(Bitmap bitmap) {
+        float scale = Math.min(1f, (float) MAX_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        int w = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int h = Math.max(1, Math.round(bitmap.getHeight() * scale));
+
+        Bitmap scaled = scale < 1f ? Bitmap.createScaledBitmap(bitmap, w, h, true) : bitmap;
+        int[] argb = new int[w * h];
+        scaled.getPixels(argb, 0, w, 0, 0, w, h);
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+
+        byte[] rgba = new byte[w * h * 4];
+        for (int i = 0, j = 0; i < argb.length; i++, j += 4) {
+            int pixel = argb[i];
+            rgba[j] = (byte) (pixel >> 16);
+            rgba[j + 1] = (byte) (pixel >> 8);
+            rgba[j + 2] = (byte) pixel;
+            rgba[j + 3] = (byte) (pixel >>> 24);
+        }
+        return rgbaToThumbHash(w, h, rgba);
+    }
+
+    public static byte[] rgbaToThumbHash(int w, int h, byte[] rgba) {
+        if (w > MAX_SIZE || h > MAX_SIZE) {
+            throw new IllegalArgumentException(w + "x" + h + " doesn't fit in " + MAX_SIZE + "x" + MAX_SIZE);
+        }
+
+        // Determine the average color
+        double avgR = 0, avgG = 0, avgB = 0, avgA = 0;
+        for (int i = 0, j = 0; i < w * h; i++, j += 4) {
+            double alpha = (rgba[j + 3] & 255) / 255.0;
+            avgR += alpha / 255.0 * (rgba[j] & 255);
+            avgG += alpha / 255.0 * (rgba[j + 1] & 255);
+            avgB += alpha / 255.0 * (rgba[j + 2] & 255);
+            avgA += alpha;
+        }
+        if (avgA > 0) {
+            avgR /= avgA;
+            avgG /= avgA;
+            avgB /= avgA;
+        }
+
+        boolean hasAlpha = avgA < w * h;
+        int lLimit = hasAlpha ? 5 : 7; // Use fewer luminance bits if there's alpha
+        int lx = Math.max(1, Math.round((float) (lLimit * w) / Math.max(w, h)));
+        int ly = Math.max(1, Math.round((float) (lLimit * h) / Math.max(w, h)));
+        double[] l = new double[w * h]; // luminance
+        double[] p = new double[w * h]; // yellow - blue
+        double[] q = new double[w * h]; // red - green
+        double[] a = new double[w * h]; // alpha
+
+        // Convert the image from RGBA to LPQA (composite atop the average color)
+        for (int i = 0, j = 0; i < w * h; i++, j += 4) {
+            double alpha = (rgba[j + 3] & 255) / 255.0;
+            double r = avgR * (1 - alpha) + alpha / 255.0 * (rgba[j] & 255);
+            double g = avgG * (1 - alpha) + alpha / 255.0 * (rgba[j + 1] & 255);
+            double b = avgB * (1 - alpha) + alpha / 255.0 * (rgba[j + 2] & 255);
+            l[i] = (r + g + b) / 3;
+            p[i] = (r + g) / 2 - b;
+            q[i] = r - g;
+            a[i] = alpha;
+        }
+
+        Channel lChannel = new Channel(Math.max(3, lx), Math.max(3, ly)).encode(w, h, l);
+        Channel pChannel = new Channel(3, 3).encode(w, h, p);
+        Channel qChannel = new Channel(3, 3).encode(w, h, q);
+        Channel aChannel = hasAlpha ? new Channel(5, 5).encode(w, h, a) : null;
+
+        // Write the constants
+        boolean isLandscape = w > h;
+        int header24 = (int) Math.round(63 * lChannel.dc)
+                | ((int) Math.round(31.5 + 31.5 * pChannel.dc) << 6)
+                | ((int) Math.round(31.5 + 31.5 * qChannel.dc) << 12)
+                | ((int) Math.round(31 * lChannel.scale) << 18)
+                | (hasAlpha ? 1 << 23 : 0);
+        int header16 = (isLandscape ? ly : lx)
+                | ((int) Math.round(63 * pChannel.scale) << 3)
+                | ((int) Math.round(63 * qChannel.scale) << 9)
+                | (isLandscape ? 1 << 15 : 0);
+
+        int acStart = hasAlpha ? 6 : 5;
+        int acCount = lChannel.ac.length + pChannel.ac.length + qChannel.ac.length + (hasAlpha ? aChannel.ac.length : 0);
+        byte[] hash = new byte[acStart + (acCount + 1) / 2];
+        hash[0] = (byte) header24;
+        hash[1] = (byte) (header24 >> 8);
+        hash[2] = (byte) (header24 >> 16);
+        hash[3] = (byte) header16;
+        hash[4] = (byte) (header16 >> 8);
+        if (hasAlpha) {
+            hash[5] = (byte) ((int) Math.round(15 * aChannel.dc) | ((int) Math.round(15 * aChannel.scale) << 4));
+        }
+
+        // Write the varying factors
+        int acIndex = 0;
+        Channel[] channels = hasAlpha ? new Channel[]{lChannel, pChannel, qChannel, aChannel} : new Channel[]{lChannel, pChannel, qChannel};
+        for (Channel channel : channels) {
+            for (double f : channel.ac) {
+                hash[acStart + (acIndex >> 1)] |= (byte) ((int) Math.round(15 * f) << ((acIndex & 1) << 2));
+                acIndex++;
+            }
+        }
+        return hash;
+    }
+
+    // Encodes a channel using the DCT into DC (constant) and normalized AC (varying) terms
+    private static class Channel {
+        final int nx;
+        final int ny;
+        double dc;
+        double[] ac;
+        double scale;
+
+        Channel(int nx, int ny) {
+            this.nx = nx;
+            this.ny = ny;
+        }
+
+        Channel encode(int w, int h, double[] channel) {
+            int n = 0;
+            for (int cy = 0; cy < ny; cy++) {
+                for (int cx = 0; cx * ny < nx * (ny - cy); cx++) {
+                    n++;
+                }
+            }
+
+            ac = new double[n - 1];
+            double[] fx = new double[w];
+            int acIndex = 0;
+            for (int cy = 0; cy < ny; cy++) {
+                for (int cx = 0; cx * ny < nx * (ny - cy); cx++) {
+                    double f = 0;
+                    for (int x = 0; x < w; x++) {
+                        fx[x] = Math.cos(Math.PI / w * cx * (x + 0.5));
+                    }
+                    for (int y = 0; y < h; y++) {
+                        double fy = Math.cos(Math.PI / h * cy * (y + 0.5));
+                        for (int x = 0; x < w; x++) {
+                            f += channel[x + y * w] * fx[x] * fy;
+                        }
+                    }
+                    f /= w * h;
+                    if (cx > 0 || cy > 0) {
+                        ac[acIndex++] = f;
+                        scale = Math.max(scale, Math.abs(f));
+                    } else {
+                        dc = f;
+                    }
+                }
+            }
+            if (scale > 0) {
+                for (int i = 0; i < ac.length; i++) {
+                    ac[i] = 0.5 + 0.5 / scale * ac[i];
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package id.homebase.photos.mediasync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.ammarahmed.mmkv.MMKV;
+
+import java.util.Locale;
+import java.util.Set;
+
+import id.homebase.photos.mediasync.types.MediaProbeResult;
+import id.homebase.photos.mediasync.types.TranscodeDecision;
+
+// Decides per video whether it can go into HLS as is (COPY), only needs its audio converted (REMUX), or has
+// to be re-encoded (TRANSCODE). Re-encoding takes minutes on a phone and costs quality, so it's only done when
+// the codec can't be played from HLS, the video is rotated, or the source is above the resolution or bitrate
+// caps.
+//
+// MPEG-TS has no display matrix, so a copied stream of a rotated video (most portrait phone recordings) would
+// play sideways. x264 bakes the rotation into the pixels instead.
+public class TranscodePolicy {
+    // Codecs that can be carried in MPEG-TS HLS segments and are played everywhere
+    private static final Set<String> COPYABLE_VIDEO_CODECS = Set.of("h264");
+    private static final Set<String> COPYABLE_AUDIO_CODECS = Set.of("aac", "mp3");
+    private static final long FULL_HD_PIXELS = 1920L * 1080;
+    // Rough x264 output at CRF 23 for 1080p phone footage; every 6 CRF steps halve or double it
+    private static final long FULL_HD_BITRATE_AT_CRF_23 = 5_000_000;
+    // Rough x264 "fast" speed on a mid-range phone: one second of 1080p takes about one second to encode
+    private static final double ENCODE_SECONDS_PER_FULL_HD_SECOND = 1.0;
+    private static final long AUDIO_BITRATE = 128_000;
+    private static final String STATS_ID = "transcodeDecisions";
+
+    public static class Thresholds {
+        public final int maxShortSide;
+        public final long maxBitRate;
+        public final int crf;
+
+        public Thresholds(int maxShortSide, long maxBitRate, int crf) {
+            this.maxShortSide = maxShortSide;
+            this.maxBitRate = maxBitRate;
+            this.crf = crf;
+        }
+    }
+
+    // Full HD as recorded by most phones (up to ~20 Mbit/s) is kept; 4K and high bitrate recordings are reduced
+    public static final Thresholds DEFAULT_THRESHOLDS = new Thresholds(1080, 20_000_000, 23);
+    // Used when the user asked for lower quality uploads
+    public static final Thresholds LOWER_QUALITY_THRESHOLDS = new Thresholds(720, 6_000_000, 26);
+
+    private final Thresholds thresholds;
+    private final Thresholds lowerQualityThresholds;
+
+    public TranscodePolicy() {
+        this(DEFAULT_THRESHOLDS, LOWER_QUALITY_THRESHOLDS);
+    }
+
+    public TranscodePolicy(Thresholds thresholds, Thresholds lowerQualityThresholds) {
+        this.thresholds = thresholds;
+        this.lowerQualityThresholds = lowerQualityThresholds;
+    }
+
+    public TranscodeDecision decide(MediaProbeResult probe, long sourceBytes, boolean lowerQuality) {
+        Thresholds limits = lowerQuality ? lowerQualityThresholds : thresholds;
+        boolean copyAudio = probe.getAudioCodec() == null || COPYABLE_AUDIO_CODECS.contains(probe.getAudioCodec());
+        int shortSide = Math.min(probe.getWidth(), probe.getHeight());
+        boolean landscape = probe.getDisplayWidth() >= probe.getDisplayHeight();
+
+        String reason = null;
+        if (!COPYABLE_VIDEO_CODECS.contains(probe.getVideoCodec())) {
+            reason = "codec " + probe.getVideoCodec() + " can't be copied";
+        } else if (probe.getRotation() != 0) {
+            reason = "rotation " + probe.getRotation() + " can't be kept in MPEG-TS";
+        } else if (shortSide > limits.maxShortSide) {
+            reason = "resolution " + probe.getWidth() + "x" + probe.getHeight() + " is above " + limits.maxShortSide + "p";
+        } else if (probe.getBitRate() > limits.maxBitRate) {
+            reason = "bitrate " + probe.getBitRate() + " is above " + limits.maxBitRate;
+        }
+
+        if (reason == null) {
+            // Copying is close to free: the output is the same streams in a different container
+            TranscodeDecision.Action action = copyAudio ? TranscodeDecision.Action.COPY : TranscodeDecision.Action.REMUX;
+            return new TranscodeDecision(action, 0, 0, landscape, copyAudio, sourceBytes, sourceBytes, 0,
+                    copyAudio ? "streams can be copied" : "audio " + probe.getAudioCodec() + " needs conversion");
+        }
+
+        int scaledShortSide = shortSide > limits.maxShortSide ? limits.maxShortSide : 0;
+        int outputShortSide = scaledShortSide > 0 ? scaledShortSide : shortSide;
+        long outputPixels = shortSide > 0 ? (long) probe.getWidth() * probe.getHeight() * outputShortSide / shortSide * outputShortSide / shortSide : FULL_HD_PIXELS;
+        long videoBitRate = (long) (FULL_HD_BITRATE_AT_CRF_23 * ((double) outputPixels / FULL_HD_PIXELS) * Math.pow(2, (23 - limits.crf) / 6.0));
+        if (probe.getBitRate() > 0) {
+            videoBitRate = Math.min(videoBitRate, probe.getBitRate());
+        }
+        long estimatedOutputBytes = probe.getDurationSeconds() > 0
+                ? (long) (probe.getDurationSeconds() * (videoBitRate + AUDIO_BITRATE) / 8)
+                : sourceBytes;
+
+        return new TranscodeDecision(TranscodeDecision.Action.TRANSCODE, limits.crf, scaledShortSide, landscape, copyAudio, sourceBytes, estimatedOutputBytes, estimateEncodeSeconds(probe), reason);
+    }
+
+    // Time a full transcode of the source would take, which is what COPY and REMUX save
+    public static double estimateEncodeSeconds(MediaProbeResult probe) {
+        long pixels = (long) probe.getWidth() * probe.getHeight();
+        return probe.getDurationSeconds() * ENCODE_SECONDS_PER_FULL_HD_SECOND * (pixels > 0 ? (double) pixels / FULL_HD_PIXELS : 1);
+    }
+
+    // Logs the decision and adds it to the running totals in MMKV
+    public static void record(Context context, MediaProbeResult probe, TranscodeDecision decision) {
+        double savedEncodeSeconds = Math.max(0, estimateEncodeSeconds(probe) - decision.getEstimatedEncodeSeconds());
+        Log.v(null, "[TranscodePolicy] " + decision + " estimatedSavedEncodeSeconds: " + savedEncodeSeconds);
+
+        System.loadLibrary("rnmmkv");
+        MMKV.initialize(context);
+        MMKV stats = MMKV.mmkvWithID(STATS_ID);
+        String countKey = decision.getAction().name().toLowerCase(Locale.ROOT) + "Count";
+        stats.encode(countKey, stats.decodeLong(countKey, 0) + 1);
+        stats.encode("estimatedSavedBytes", stats.decodeLong("estimatedSavedBytes", 0) + Math.max(0, decision.getEstimatedSavedBytes()));
+        stats.encode("estimatedSavedEncodeSeconds", stats.decodeDouble("estimatedSavedEncodeSeconds", 0) + savedEncodeSeconds);
+    }
+}
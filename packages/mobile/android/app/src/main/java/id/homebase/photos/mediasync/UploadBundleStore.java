@@ -0,0 +1,150 @@
+package id.homebase.photos.mediasync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import id.homebase.lib.core.DotYouClient;
+import id.homebase.lib.core.file.DriveFileUploadProvider;
+import id.homebase.lib.core.file.types.BadRequestUploadResult;
+import id.homebase.lib.core.file.types.SuccessfullUploadResult;
+import id.homebase.lib.core.file.types.UploadBundle;
+import id.homebase.lib.core.file.types.UploadResult;
+
+// Keeps fully prepared uploads (see UploadBundle) on disk, keyed by uniqueId, until they are on the server.
+// Preparing and uploading are decoupled through it: an item can be prepared while there is no network and
+// uploaded by a later run, and a failed upload is retried from the bundle without decoding or encrypting the
+// item again.
+//
+// Unlike the workspaces, bundles live in the files directory, so they survive the cache being cleared.
+public class UploadBundleStore {
+    private static final String ROOT_DIRECTORY = "upload-bundles";
+    private static final long DEFAULT_QUOTA_BYTES = 1024L * 1024 * 1024;
+    // Never let the bundles take more than this share of the free space
+    private static final double MAX_FREE_SPACE_SHARE = 0.25;
+    // Bundles that weren't uploaded by then most likely belong to media that is gone
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+    private static UploadBundleStore instance;
+
+    private final File root;
+    private long quotaBytes = DEFAULT_QUOTA_BYTES;
+
+    public interface Stager {
+        UploadBundle stage(File directory) throws Exception;
+    }
+
+    private UploadBundleStore(Context context) {
+        this.root = new File(context.getFilesDir(), ROOT_DIRECTORY);
+        if (!root.isDirectory() && !root.mkdirs()) {
+            Log.e(null, "[UploadBundleStore] Failed to create " + root.getAbsolutePath());
+        }
+
+        // Incomplete preparations (of a process that died while staging) and stale bundles are swept at startup
+        File[] directories = root.listFiles();
+        CompletableFuture.runAsync(() -> {
+            if (directories == null) return;
+            long now = System.currentTimeMillis();
+            for (File directory : directories) {
+                File bundleFile = new File(directory, UploadBundle.BUNDLE_FILE_NAME);
+                if (!bundleFile.isFile() || now - bundleFile.lastModified() > MAX_AGE_MS) {
+                    WorkspaceManager.deleteRecursively(directory);
+                }
+            }
+        });
+    }
+
+    public static synchronized UploadBundleStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new UploadBundleStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public synchronized void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+    }
+
+    public boolean contains(String uniqueId) {
+        return new File(directoryOf(uniqueId), UploadBundle.BUNDLE_FILE_NAME).isFile();
+    }
+
+    // Returns the complete bundle of the item, or null when there is none (or it's damaged)
+    public UploadBundle get(String uniqueId) {
+        File directory = directoryOf(uniqueId);
+        try {
+            UploadBundle bundle = UploadBundle.read(directory);
+            if (bundle != null && !bundle.isIntact()) {
+                Log.v(null, "[UploadBundleStore] Dropping incomplete bundle " + uniqueId);
+                remove(uniqueId);
+                return null;
+            }
+            return bundle;
+        } catch (Exception e) {
+            Log.e(null, "[UploadBundleStore] Failed to read bundle " + uniqueId + ": " + e.getMessage());
+            remove(uniqueId);
+            return null;
+        }
+    }
+
+    // Prepares the item into a bundle of its own. Returns null when estimatedBytes don't fit in the quota;
+    // the caller then uploads without staging.
+    public UploadBundle stage(String uniqueId, long estimatedBytes, Stager stager) throws Exception {
+        if (getSizeBytes() + estimatedBytes > effectiveQuota()) {
+            Log.v(null, "[UploadBundleStore] No room to stage " + uniqueId);
+            return null;
+        }
+
+        File directory = directoryOf(uniqueId);
+        WorkspaceManager.deleteRecursively(directory);
+        if (!directory.mkdirs()) {
+            throw new IOException("Failed to create bundle directory " + directory.getAbsolutePath());
+        }
+        try {
+            return stager.stage(directory);
+        } catch (Exception e) {
+            WorkspaceManager.deleteRecursively(directory);
+            throw e;
+        }
+    }
+
+    // Uploads a staged bundle. It's removed once the server has the file, or rejected the request outright;
+    // after a failure to reach the server it stays for the next attempt.
+    public UploadResult upload(DotYouClient dotYouClient, String uniqueId, UploadBundle bundle) throws Exception {
+        UploadResult result = DriveFileUploadProvider.uploadBundle(dotYouClient, bundle);
+        if (result instanceof SuccessfullUploadResult || result instanceof BadRequestUploadResult) {
+            remove(uniqueId);
+        }
+        return result;
+    }
+
+    public void remove(String uniqueId) {
+        WorkspaceManager.deleteRecursively(directoryOf(uniqueId));
+    }
+
+    public long getSizeBytes() {
+        long size = 0;
+        File[] directories = root.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] files = directory.listFiles();
+                if (files == null) continue;
+                for (File file : files) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private synchronized long effectiveQuota() {
+        return Math.min(quotaBytes, (long) (root.getUsableSpace() * MAX_FREE_SPACE_SHARE));
+    }
+
+    private File directoryOf(String uniqueId) {
+        return new File(root, uniqueId);
+    }
+}
@@ -0,0 +1,237 @@
+package id.homebase.photos.mediasync;
+
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import id.homebase.lib.core.CancellationToken;
+import id.homebase.lib.core.metrics.Metrics;
+
+// Process-wide admission control for uploads, shared by the background sync and uploads started from the app.
+//
+// Images and videos have separate slot pools, so a long video never holds up the photos. Within a pool the
+// waiting uploads are served by lane: interactive first, then recent captures, then the backfill of older
+// media. To keep the lower lanes moving, a lane that has been passed over MAX_BYPASSES times in a row gets
+// the next free slot.
+//
+// Work isn't interrupted mid-stage. Long uploads call checkpoint() between stages (posters, transcode,
+// upload), which hands the slot to a waiting upload of a higher lane and waits for it to come back.
+public class UploadScheduler {
+    public enum Lane {
+        INTERACTIVE,
+        RECENT,
+        BACKFILL
+    }
+
+    public enum Kind {
+        IMAGE,
+        VIDEO
+    }
+
+    private static final int MAX_BYPASSES = 4;
+    // Media captured within this window is synced in the RECENT lane
+    private static final long RECENT_WINDOW_MS = TimeUnit.DAYS.toMillis(1);
+    private static final ThreadLocal<Ticket> currentTicket = new ThreadLocal<>();
+    private static UploadScheduler instance;
+
+    private final Map<Kind, Pool> pools = new EnumMap<>(Kind.class);
+    private final AtomicLong sequence = new AtomicLong();
+    private long preemptions = 0;
+
+    public UploadScheduler(int imageSlots, int videoSlots) {
+        pools.put(Kind.IMAGE, new Pool(imageSlots));
+        pools.put(Kind.VIDEO, new Pool(videoSlots));
+    }
+
+    public static synchronized UploadScheduler getInstance() {
+        if (instance == null) {
+            instance = new UploadScheduler(3, 1);
+            UploadScheduler scheduler = instance;
+            for (Kind kind : Kind.values()) {
+                String name = kind.name().toLowerCase(Locale.ROOT);
+                Metrics.gauge("scheduler." + name + ".inUse", () -> scheduler.getInUse(kind));
+                Metrics.gauge("scheduler." + name + ".waiting", () -> {
+                    int waiting = 0;
+                    for (Lane lane : Lane.values()) {
+                        waiting += scheduler.getWaiting(kind, lane);
+                    }
+                    return waiting;
+                });
+            }
+        }
+        return instance;
+    }
+
+    public static Lane laneFor(long timestampInMillis) {
+        return System.currentTimeMillis() - timestampInMillis < RECENT_WINDOW_MS ? Lane.RECENT : Lane.BACKFILL;
+    }
+
+    // Blocks until a slot is granted. The ticket becomes the calling thread's current ticket until it's closed.
+    public Ticket acquire(Lane lane, Kind kind) throws InterruptedException {
+        Ticket ticket = new Ticket(lane, kind, sequence.incrementAndGet());
+        synchronized (this) {
+            waitForSlot(ticket);
+        }
+        currentTicket.set(ticket);
+        return ticket;
+    }
+
+    // Checkpoints the calling thread's ticket, if it has one
+    public static void checkpointCurrent() throws InterruptedException {
+        Ticket ticket = currentTicket.get();
+        if (ticket != null) {
+            ticket.checkpoint();
+        }
+    }
+
+    public synchronized int getWaiting(Kind kind, Lane lane) {
+        return pools.get(kind).waiting.get(lane).size();
+    }
+
+    public synchronized int getInUse(Kind kind) {
+        return pools.get(kind).inUse;
+    }
+
+    public synchronized long getPreemptions() {
+        return preemptions;
+    }
+
+    private void waitForSlot(Ticket ticket) throws InterruptedException {
+        Pool pool = pools.get(ticket.kind);
+        pool.waiting.get(ticket.lane).add(ticket);
+        // A cancelled upload stops waiting for its turn
+        CancellationToken cancellation = CancellationToken.current();
+        try (CancellationToken.Registration ignored = cancellation.register(this::wakeUp)) {
+            while (pool.inUse >= pool.capacity || pool.next() != ticket) {
+                cancellation.throwIfCancelled();
+                wait();
+            }
+        } finally {
+            pool.waiting.get(ticket.lane).remove(ticket);
+            // The next waiter may be up now, or another slot may still be free
+            notifyAll();
+        }
+        pool.inUse++;
+
+        // Lower lanes that had to wait for this grant move closer to their turn
+        for (Lane lane : Lane.values()) {
+            if (lane == ticket.lane) {
+                pool.bypasses.put(lane, 0);
+            } else if (lane.ordinal() > ticket.lane.ordinal() && !pool.waiting.get(lane).isEmpty()) {
+                pool.bypasses.merge(lane, 1, Integer::sum);
+            }
+        }
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    private synchronized void release(Ticket ticket) {
+        pools.get(ticket.kind).inUse--;
+        notifyAll();
+    }
+
+    private synchronized void yieldIfPreempted(Ticket ticket) throws InterruptedException {
+        Pool pool = pools.get(ticket.kind);
+        if (pool.inUse < pool.capacity || !pool.hasWaiterAbove(ticket.lane)) {
+            return;
+        }
+
+        preemptions++;
+        Log.v(null, "[UploadScheduler] " + ticket.kind + " upload in " + ticket.lane + " yields its slot");
+        pool.inUse--;
+        notifyAll();
+        try {
+            waitForSlot(ticket);
+        } catch (InterruptedException | CancellationException e) {
+            // The ticket no longer holds a slot, so closing it must not release one
+            ticket.closed = true;
+            throw e;
+        }
+    }
+
+    private static class Pool {
+        final int capacity;
+        int inUse = 0;
+        final Map<Lane, PriorityQueue<Ticket>> waiting = new EnumMap<>(Lane.class);
+        final Map<Lane, Integer> bypasses = new EnumMap<>(Lane.class);
+
+        Pool(int capacity) {
+            this.capacity = capacity;
+            for (Lane lane : Lane.values()) {
+                // Oldest ticket first, so a preempted upload gets its place back
+                waiting.put(lane, new PriorityQueue<>((a, b) -> Long.compare(a.sequence, b.sequence)));
+                bypasses.put(lane, 0);
+            }
+        }
+
+        Ticket next() {
+            for (Lane lane : Lane.values()) {
+                if (!waiting.get(lane).isEmpty() && bypasses.get(lane) >= MAX_BYPASSES) {
+                    return waiting.get(lane).peek();
+                }
+            }
+            for (Lane lane : Lane.values()) {
+                if (!waiting.get(lane).isEmpty()) {
+                    return waiting.get(lane).peek();
+                }
+            }
+            return null;
+        }
+
+        boolean hasWaiterAbove(Lane lane) {
+            for (Lane other : Lane.values()) {
+                if (other.ordinal() < lane.ordinal() && !waiting.get(other).isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public class Ticket implements AutoCloseable {
+        private final Lane lane;
+        private final Kind kind;
+        private final long sequence;
+        private boolean closed = false;
+
+        private Ticket(Lane lane, Kind kind, long sequence) {
+            this.lane = lane;
+            this.kind = kind;
+            this.sequence = sequence;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        // Call between stages: hands the slot to a waiting upload of a higher lane, and returns once it's back
+        public void checkpoint() throws InterruptedException {
+            if (!closed) {
+                yieldIfPreempted(this);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (currentTicket.get() == this) {
+                currentTicket.remove();
+            }
+            if (!closed) {
+                closed = true;
+                release(this);
+            }
+        }
+    }
+}
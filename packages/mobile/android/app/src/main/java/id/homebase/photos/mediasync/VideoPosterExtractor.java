@@ -0,0 +1,137 @@
+package id.homebase.photos.mediasync;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.arthenica.ffmpegkit.FFmpegKitConfig;
+import com.arthenica.ffmpegkit.ReturnCode;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import id.homebase.lib.core.file.types.SpillableBuffer;
+import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailStream;
+import id.homebase.photos.mediasync.types.MediaProbeResult;
+
+// Extracts the poster frame of a video in every requested size with a single FFmpeg run: FFmpeg seeks to the
+// keyframe nearest to the poster position, decodes that one frame, splits it through a scale filter per size
+// and writes each size as a JPEG into its own pipe, which is read straight into memory. No full resolution
+// frame is ever encoded, written to disk or decoded again.
+public class VideoPosterExtractor {
+    // The very first frames are often black or a fade-in, so the poster is taken a bit into the video
+    private static final double MAX_POSTER_SEEK_SECONDS = 5;
+    private static final ExecutorService pipeReaders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "poster-pipe-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static List<ThumbnailStream> extract(Context context, String filePath, MediaProbeResult probe, List<ImageResizer.ResizeInstruction> instructions, String payloadKey) throws IOException {
+        int displayWidth = probe.getDisplayWidth();
+        int displayHeight = probe.getDisplayHeight();
+        if (displayWidth <= 0 || displayHeight <= 0) {
+            throw new IOException("Video has no known dimensions: " + filePath);
+        }
+
+        double seekSeconds = Math.min(MAX_POSTER_SEEK_SECONDS, probe.getDurationSeconds() / 10);
+        List<int[]> sizes = new ArrayList<>();
+        List<String> pipes = new ArrayList<>();
+        List<CompletableFuture<SpillableBuffer>> readers = new ArrayList<>();
+
+        StringBuilder filterGraph = new StringBuilder("[0:v]split=" + instructions.size());
+        StringBuilder outputs = new StringBuilder();
+        for (int i = 0; i < instructions.size(); i++) {
+            filterGraph.append("[s").append(i).append("]");
+        }
+        try {
+            for (int i = 0; i < instructions.size(); i++) {
+                ImageResizer.ResizeInstruction instruction = instructions.get(i);
+                // FFmpeg autorotates before filtering, so sizes are based on the displayed orientation
+                int[] size = ImageResizer.calculateScaledSize(displayWidth, displayHeight, instruction.width, instruction.height);
+                size[0] = Math.max(1, size[0]);
+                size[1] = Math.max(1, size[1]);
+                sizes.add(size);
+
+                String pipe = FFmpegKitConfig.registerNewFFmpegPipe(context);
+                pipes.add(pipe);
+                // Readers must be waiting before FFmpeg starts: it opens every output before writing any of them
+                readers.add(CompletableFuture.supplyAsync(() -> readPipe(pipe), pipeReaders));
+
+                filterGraph.append(String.format(Locale.ROOT, ";[s%d]scale=%d:%d[o%d]", i, size[0], size[1], i));
+                outputs.append(String.format(Locale.ROOT, " -map [o%d] -frames:v 1 -pix_fmt yuvj420p -q:v %d -c:v mjpeg -f image2pipe %s",
+                        i, toMjpegQuality(instruction.quality), pipe));
+            }
+
+            String command = String.format(Locale.ROOT, "-y -ss %.3f -noaccurate_seek -i %s -filter_complex %s%s",
+                    seekSeconds, filePath, filterGraph, outputs);
+            var session = MediaJobExecutor.getInstance().executeFFmpeg(command);
+            if (!ReturnCode.isSuccess(session.getReturnCode())) {
+                throw new IOException("Failed to extract video poster: " + session.getAllLogsAsString());
+            }
+
+            List<ThumbnailStream> thumbnails = new ArrayList<>();
+            for (int i = 0; i < instructions.size(); i++) {
+                SpillableBuffer buffer = readers.get(i).join();
+                if (buffer.size() == 0) {
+                    throw new IOException("FFmpeg wrote no poster for " + sizes.get(i)[0] + "x" + sizes.get(i)[1]);
+                }
+                thumbnails.add(new ThumbnailStream(payloadKey, buffer, sizes.get(i)[1], sizes.get(i)[0], "image/jpeg"));
+            }
+            return thumbnails;
+        } catch (IOException | RuntimeException e) {
+            for (CompletableFuture<SpillableBuffer> reader : readers) {
+                reader.thenAccept(SpillableBuffer::release);
+            }
+            throw e;
+        } finally {
+            for (String pipe : pipes) {
+                unblockReader(pipe);
+                FFmpegKitConfig.closeFFmpegPipe(pipe);
+            }
+        }
+    }
+
+    private static SpillableBuffer readPipe(String pipe) {
+        SpillableBuffer buffer = new SpillableBuffer();
+        try (InputStream inputStream = new FileInputStream(pipe)) {
+            byte[] chunk = new byte[SpillableBuffer.CHUNK_SIZE];
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            return buffer;
+        } catch (IOException e) {
+            buffer.release();
+            throw new RuntimeException("Error reading poster pipe", e);
+        }
+    }
+
+    // A reader still blocked in open() (FFmpeg failed before opening its output) gets an immediate end of
+    // stream. The non-blocking open fails with ENXIO when nobody is reading, which is the normal case.
+    private static void unblockReader(String pipe) {
+        try {
+            FileDescriptor fd = Os.open(pipe, OsConstants.O_WRONLY | OsConstants.O_NONBLOCK, 0);
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.ENXIO && e.errno != OsConstants.ENOENT) {
+                Log.e(null, "[VideoPosterExtractor] Failed to close pipe " + pipe + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Maps a 0-100 JPEG quality onto the mjpeg qscale range, where 2 is best and 31 is worst
+    private static int toMjpegQuality(int quality) {
+        return Math.max(2, Math.min(31, Math.round(2 + (100 - quality) * 29 / 100f)));
+    }
+}
@@ -1,6 +1,8 @@
 package id.homebase.photos.mediasync;
 
+import static id.homebase.lib.core.file.DriveFileUploadProvider.prepareUpload;
 import static id.homebase.lib.core.file.DriveFileUploadProvider.uploadFile;
+import static id.homebase.lib.core.file.DriveFileUploadProvider.uploadPayloads;
 
 import android.content.Context;
 import android.util.Log;
@@ -8,41 +10,62 @@ import android.util.Log;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import id.homebase.lib.core.CancellationToken;
 import id.homebase.lib.core.DotYouClient;
 import id.homebase.lib.core.crypto.CryptoUtil;
 import id.homebase.lib.core.file.types.AccessControlList;
 import id.homebase.lib.core.file.types.ArchivalStatus;
 import id.homebase.lib.core.file.types.EmbeddedThumb;
+import id.homebase.lib.core.file.types.ExternalFileIdentifier;
+import id.homebase.lib.core.file.types.FailedUploadResult;
 import id.homebase.lib.core.file.types.KeyHeader;
 import id.homebase.lib.core.file.types.KeyHeaderGenerator;
 import id.homebase.lib.core.file.types.SecurityGroupType;
 import id.homebase.lib.core.file.types.StorageOptions;
+import id.homebase.lib.core.file.types.SuccessfullUploadResult;
 import id.homebase.lib.core.file.types.TargetDrive;
+import id.homebase.lib.core.file.types.UploadBundle;
 import id.homebase.lib.core.file.types.UploadAppFileMetaData;
 import id.homebase.lib.core.file.types.UploadFileMetadata;
 import id.homebase.lib.core.file.types.UploadInstructionSet;
+import id.homebase.lib.core.file.types.UploadPayloadInstructionSet;
+import id.homebase.lib.core.file.types.UploadPayloadResult;
 import id.homebase.lib.core.file.types.UploadResult;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadBase;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadFile;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailBase;
 import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailStream;
+import id.homebase.lib.core.metrics.Counter;
+import id.homebase.lib.core.metrics.Histogram;
+import id.homebase.lib.core.metrics.Metrics;
+import id.homebase.lib.core.trace.Span;
+import id.homebase.lib.core.trace.Tracer;
+import id.homebase.photos.mediasync.types.HlsSegment;
+import id.homebase.photos.mediasync.types.MediaProbeResult;
+import id.homebase.photos.mediasync.types.PipelinedUploadState;
+import id.homebase.photos.mediasync.types.TranscodeDecision;
 import id.homebase.photos.mediasync.types.VideoData;
 import id.homebase.photos.mediasync.types.VideoFile;
 import id.homebase.photos.mediasync.types.VideoSegments;
-import com.arthenica.ffmpegkit.FFmpegKit;
-import com.arthenica.ffmpegkit.FFprobeKit;
+import com.ammarahmed.mmkv.MMKV;
 import com.arthenica.ffmpegkit.ReturnCode;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class VideoProvider {
+    private static final Histogram POSTERS = Metrics.histogram("video.posters", TimeUnit.MILLISECONDS);
+    private static final Histogram SEGMENT = Metrics.histogram("video.segment", TimeUnit.MILLISECONDS);
+    // Uploads that continue the work of an earlier attempt: a staged bundle or a resumed pipelined upload
+    private static final Counter RETRIES = Metrics.counter("upload.retries");
     private static final String DEFAULT_PAYLOAD_KEY = "dflt_key";
     private static final boolean ENCRYPT_MEDIA = true;
     private static final TargetDrive PHOTO_DRIVE = new TargetDrive("6483b7b1f71bd43eb6896c86148668cc", "2af68fe72fb84896f39f97c59d60813a");
@@ -53,76 +76,387 @@ public class VideoProvider {
             new ImageResizer.ResizeInstruction(1200, 1200, 95, "jpeg"),
     };
 
+    // Room for the thumbnail, key files and the playlist on top of the video itself
+    private static final long WORKSPACE_HEADROOM_BYTES = 16 * 1024 * 1024;
+    // Room for the thumbnails and the descriptor of a staged upload
+    private static final long STAGING_HEADROOM_BYTES = 2 * 1024 * 1024;
+
+    // Pipelined uploads: segment files are named after their payload key (8 characters, like dflt_key)
+    private static final String SEGMENT_KEY_PREFIX = "seg";
+    private static final String SEGMENTED_PLAYLIST_FILE_NAME = "playlist.m3u8";
+    private static final long SEGMENT_POLL_INTERVAL_MS = 500;
+    private static final String PENDING_PIPELINED_UPLOADS_ID = "pendingPipelinedUploads";
+    private static final double RESUME_SEEK_MARGIN_SECONDS = 0.01;
+    private static final TranscodePolicy TRANSCODE_POLICY = new TranscodePolicy();
+
     private final Context context;
+    private final boolean pipelinedUpload;
+    private final MediaJobExecutor.Priority jobPriority;
 
     public VideoProvider(Context context) {
+        this(context, false, MediaJobExecutor.Priority.NORMAL);
+    }
+
+    public VideoProvider(Context context, boolean pipelinedUpload) {
+        this(context, pipelinedUpload, MediaJobExecutor.Priority.NORMAL);
+    }
+
+    public VideoProvider(Context context, boolean pipelinedUpload, MediaJobExecutor.Priority jobPriority) {
         this.context = context;
+        this.pipelinedUpload = pipelinedUpload;
+        this.jobPriority = jobPriority;
     }
 
     public UploadResult uploadMedia(DotYouClient dotYouClient, String filePath, Long timestampInMs, String mimeType, String identifier, String width, String height, boolean forceLowerQuality) throws Exception {
-        UploadInstructionSet instructions = new UploadInstructionSet(new StorageOptions(PHOTO_DRIVE));
-
         // Retrieve the latest photo information
         String fileName = Paths.get(filePath).getFileName().toString();
-        String uniqueId = toGuidId(identifier != null ? identifier : fileName + "_" + width + "x" + height);
+        String uniqueId = MediaIds.uniqueId(filePath, identifier, width, height);
+
+        // A bundle left by an earlier attempt goes up as is, without transcoding and encrypting again
+        UploadBundleStore bundleStore = UploadBundleStore.getInstance(context);
+        UploadBundle staged = pipelinedUpload ? null : bundleStore.get(uniqueId);
+        if (staged != null) {
+            Log.v(null, "[VideoProvider] Uploading the staged bundle of " + filePath);
+            RETRIES.increment();
+            return bundleStore.upload(dotYouClient, uniqueId, staged);
+        }
 
-        // Grab thumbnails for the video
-        String videoThumbnailPath = grabVideoThumbnail(filePath).get();
+        // Probe the video once; the result is cached for retries of the same file
+        MediaProbeResult probe = MediaProbeService.getInstance(context).probe(filePath);
+
+        // All intermediate files live in a workspace of their own that is deleted once the upload is done
+        long estimatedBytes = new File(filePath).length() * 5 / 4 + WORKSPACE_HEADROOM_BYTES;
+        try (WorkspaceManager.Workspace workspace = WorkspaceManager.getInstance(context).acquire("video", estimatedBytes)) {
+            // Grab the tiny preview and all thumbnail sizes for the video
+            long postersStart = System.nanoTime();
+            List<ThumbnailStream> posters = grabVideoPosters(filePath, probe, workspace.getDirectory());
+            POSTERS.recordSince(postersStart);
+            ThumbnailStream tinyThumb = posters.get(0);
+            EmbeddedThumb previewThumbnail = new EmbeddedThumb(tinyThumb.getPixelHeight(), tinyThumb.getPixelWidth(), TINY_THUMB_INSTRUCTION.format, tinyThumb.getBase64());
+            tinyThumb.release();
+            List<ThumbnailBase> thumbnails = new ArrayList<>(posters.subList(1, posters.size()));
 
-        // Generate thumbnails
-        ThumbnailStream tinyThumb = ImageResizer.resizeImage(videoThumbnailPath, TINY_THUMB_INSTRUCTION, DEFAULT_PAYLOAD_KEY, true);
-        EmbeddedThumb previewThumbnail = new EmbeddedThumb(tinyThumb.getPixelHeight(), tinyThumb.getPixelWidth(), TINY_THUMB_INSTRUCTION.format, tinyThumb.getBase64());
-        List<ThumbnailBase> thumbnails = new ArrayList<>(ImageResizer.resizeImage(videoThumbnailPath, List.of(DEFAULT_IMAGE_SIZES), DEFAULT_PAYLOAD_KEY));
+            try {
+                // Stage boundary: let a waiting upload of a higher lane go first
+                UploadScheduler.checkpointCurrent();
 
-        UploadFileMetadata<String> metadata = new UploadFileMetadata<>(false, ENCRYPT_MEDIA, OWNER_ONLY_ACL, new UploadAppFileMetaData<>(uniqueId, new String[0], 0, 0, timestampInMs, null, ArchivalStatus.None, "{\"originalFileName\":\"" + fileName + "\"}", previewThumbnail), null, null);
+                // Compress and segment video
+                // Handle compression and segmentation
+                KeyHeader keyHeader = ENCRYPT_MEDIA ? KeyHeaderGenerator.generateKeyHeader() : null;
 
-        // Compress and segment video
-        // Handle compression and segmentation
-        KeyHeader keyHeader = ENCRYPT_MEDIA ? KeyHeaderGenerator.generateKeyHeader() : null;
-        VideoData videoData = compressAndSegmentVideo(filePath, forceLowerQuality, keyHeader);
+                if (pipelinedUpload) {
+                    return uploadPipelined(dotYouClient, uniqueId, fileName, timestampInMs, filePath, forceLowerQuality, keyHeader, probe, previewThumbnail, thumbnails, workspace.getDirectory());
+                }
 
-        List<PayloadBase> payloads;
-            if (videoData.getSegments() != null) {
-                String playlistContent = new String(java.nio.file.Files.readAllBytes(Paths.get(videoData.getVideo().getFilePath())));
+                UploadInstructionSet instructions = new UploadInstructionSet(new StorageOptions(PHOTO_DRIVE));
+                UploadFileMetadata<String> metadata = buildMetadata(uniqueId, fileName, timestampInMs, previewThumbnail, null);
+                VideoData videoData = compressAndSegmentVideo(filePath, forceLowerQuality, keyHeader, probe, workspace.getDirectory());
+                UploadScheduler.checkpointCurrent();
 
-                // Handle HLS segments
-                JSONObject metadataJson = new JSONObject();
-                metadataJson.put("isSegmented", true);
-                metadataJson.put("mimeType", "application/vnd.apple.mpegurl");
-                metadataJson.put("hlsPlaylist", playlistContent);
+                List<PayloadBase> payloads;
+                if (videoData.getSegments() != null) {
+                    String playlistContent = new String(java.nio.file.Files.readAllBytes(Paths.get(videoData.getVideo().getFilePath())));
 
-                // Convert JSONObject to String
-                String metadataJsonString = metadataJson.toString();
+                    // Handle HLS segments
+                    String metadataJsonString = buildHlsDescriptor(playlistContent, probe);
 
-            PayloadFile payloadStream = new PayloadFile(DEFAULT_PAYLOAD_KEY, videoData.getSegments().getFilePath(), previewThumbnail, "video/mp2t",  metadataJsonString, true, keyHeader != null ? keyHeader.iv() : null);
-            payloads = List.of(payloadStream);
-        } else {
-            // Handle single video file
-            String metadataStr = "{ \"mimeType\": \"video/mp4\", \"isSegmented\": false }";
+                    PayloadFile payloadStream = new PayloadFile(DEFAULT_PAYLOAD_KEY, videoData.getSegments().getFilePath(), previewThumbnail, "video/mp2t",  metadataJsonString, true, keyHeader != null ? keyHeader.iv() : null);
+                    payloads = List.of(payloadStream);
+                } else {
+                    // Handle single video file
+                    JSONObject metadataJson = new JSONObject();
+                    metadataJson.put("mimeType", "video/mp4");
+                    metadataJson.put("isSegmented", false);
+                    putProbeMetadata(metadataJson, probe);
+                    String metadataStr = metadataJson.toString();
+
+                    PayloadFile payloadFile = new PayloadFile(DEFAULT_PAYLOAD_KEY, videoData.getVideo().getFilePath(), previewThumbnail, "video/mp4", metadataStr);
+                    payloads = List.of(payloadFile);
+                }
+
+                // Staged first, so a failed upload is retried without repeating the work above; the segments file
+                // is moved into the bundle rather than copied
+                byte[] aesKey = keyHeader != null ? keyHeader.aesKey() : null;
+                long bundleBytes = new File(videoData.getSegments() != null ? videoData.getSegments().getFilePath() : videoData.getVideo().getFilePath()).length() + STAGING_HEADROOM_BYTES;
+                UploadBundle bundle = bundleStore.stage(uniqueId, bundleBytes, directory -> keyHeader != null
+                        ? prepareUpload(dotYouClient, instructions, metadata, payloads, thumbnails, aesKey, directory, true)
+                        : prepareUpload(dotYouClient, instructions, metadata, payloads, thumbnails, ENCRYPT_MEDIA, directory, true));
+                if (bundle != null) {
+                    return bundleStore.upload(dotYouClient, uniqueId, bundle);
+                }
 
-            PayloadFile payloadFile = new PayloadFile(DEFAULT_PAYLOAD_KEY, videoData.getVideo().getFilePath(), previewThumbnail, "video/mp4", metadataStr);
-            payloads = List.of(payloadFile);
+                if(keyHeader != null) {
+                    return uploadFile(dotYouClient, instructions, metadata, payloads, thumbnails, keyHeader.aesKey());
+                } else {
+                    return uploadFile(dotYouClient, instructions, metadata, payloads, thumbnails, ENCRYPT_MEDIA);
+                }
+            } finally {
+                for (ThumbnailBase thumbnail : thumbnails) {
+                    ((ThumbnailStream) thumbnail).release();
+                }
+            }
         }
+    }
 
-        if(keyHeader != null) {
-            return uploadFile(dotYouClient, instructions, metadata, payloads, thumbnails, keyHeader.aesKey());
+    // Uploads the video while it is being segmented: a header file with just the metadata goes first, then
+    // every segment is added as its own payload as soon as FFmpeg closes it, and the playlist (with the
+    // thumbnails) is added last. Each payload upload must carry the version tag returned by the previous one.
+    //
+    // The progress is persisted after every segment (see PipelinedUploadState). A retry continues after the
+    // last acknowledged segment: FFmpeg starts at that point in the video with the same key and encoding, so
+    // at most the one segment that was in flight is sent again. When the file changed on the server, the
+    // retry overwrites the incomplete file instead of being rejected as an existing file with the same uniqueId.
+    private UploadResult uploadPipelined(DotYouClient dotYouClient, String uniqueId, String fileName, Long timestampInMs, String filePath, boolean lowerQuality, KeyHeader keyHeader, MediaProbeResult probe, EmbeddedThumb previewThumbnail, List<ThumbnailBase> thumbnails, File outputDir) throws Exception {
+        MMKV pendingUploads = getPendingPipelinedUploads();
+        String pending = pendingUploads.decodeString(uniqueId, null);
+        PipelinedUploadState state = pending != null ? PipelinedUploadState.fromString(pending, dotYouClient) : null;
+
+        TranscodeDecision decision = decideTranscode(new File(filePath), probe, lowerQuality);
+        // Identifies the encoding across attempts; the threads and x264 preset the governor picks may differ
+        // between attempts, which doesn't keep the segments from playing back to back
+        String encoding = decision.toFFmpegArguments(0);
+
+        boolean resuming = state != null && !state.getSegments().isEmpty() && Objects.equals(state.getEncoding(), encoding)
+                && (state.getKeyHeader() != null) == (keyHeader != null);
+        UploadResult headerResult;
+        if (resuming) {
+            // The segments on the server were encrypted with the stored key
+            keyHeader = state.getKeyHeader();
+            headerResult = null;
+            Log.v(null, "[VideoProvider] Resuming " + filePath + " after " + state.getSegments().size() + " segments");
+            RETRIES.increment();
         } else {
-            return uploadFile(dotYouClient, instructions, metadata, payloads, thumbnails, ENCRYPT_MEDIA);
+            UploadInstructionSet instructions = new UploadInstructionSet(state != null
+                    ? new StorageOptions(PHOTO_DRIVE, state.getFileId(), null)
+                    : new StorageOptions(PHOTO_DRIVE));
+            UploadFileMetadata<String> metadata = buildMetadata(uniqueId, fileName, timestampInMs, previewThumbnail, state != null ? state.getVersionTag() : null);
+
+            headerResult = uploadFile(dotYouClient, instructions, metadata, List.of(), List.of(), keyHeader != null ? keyHeader.aesKey() : null);
+            if (!(headerResult instanceof SuccessfullUploadResult)) {
+                // A failed request says nothing about the file on the server
+                if (state != null && !(headerResult instanceof FailedUploadResult)) {
+                    // The incomplete file is gone or changed on the server; start over as a new file on the next attempt
+                    pendingUploads.removeValueForKey(uniqueId);
+                }
+                return headerResult;
+            }
+            state = new PipelinedUploadState(((SuccessfullUploadResult) headerResult).getFile().getFileId(), ((SuccessfullUploadResult) headerResult).getNewVersionTag(), keyHeader, encoding);
+            pendingUploads.encode(uniqueId, state.toJsonString(dotYouClient));
+        }
+        byte[] aesKey = keyHeader != null ? keyHeader.aesKey() : null;
+        ExternalFileIdentifier targetFile = new ExternalFileIdentifier(state.getFileId(), PHOTO_DRIVE);
+
+        int startNumber = state.getSegments().size();
+        CompletableFuture<File[]> segmenting = segmentVideoToHLS(new File(filePath), outputDir, keyHeader, decision, true, startNumber, state.getUploadedSeconds());
+        File playlistFile = new File(outputDir, SEGMENTED_PLAYLIST_FILE_NAME);
+
+        // Every segment listed in the playlist is complete, as FFmpeg only rewrites it after closing a segment
+        int uploadedSegments = 0;
+        try {
+            while (true) {
+                boolean finished = segmenting.isDone();
+                List<HlsSegment> segments = readPlaylistSegments(playlistFile);
+                for (; uploadedSegments < segments.size(); uploadedSegments++) {
+                    File segmentFile = new File(outputDir, segments.get(uploadedSegments).fileName());
+                    String payloadKey = segmentFile.getName().replace(".ts", "");
+                    PayloadFile segmentPayload = new PayloadFile(payloadKey, segmentFile.getAbsolutePath(), null, "video/mp2t", null, keyHeader != null, keyHeader != null ? keyHeader.iv() : null);
+
+                    UploadResult segmentResult = uploadPayloads(dotYouClient, new UploadPayloadInstructionSet(targetFile, state.getVersionTag()), List.of(segmentPayload), List.of(), aesKey);
+                    if (segmentResult instanceof FailedUploadResult) {
+                        // Didn't get through; the stored progress stays, so the retry continues from here
+                        segmenting.cancel(true);
+                        return segmentResult;
+                    }
+                    if (!(segmentResult instanceof UploadPayloadResult)) {
+                        segmenting.cancel(true);
+                        // The file changed on the server; the next attempt overwrites it from the start
+                        pendingUploads.encode(uniqueId, new PipelinedUploadState(state.getFileId(), state.getVersionTag(), null, null).toJsonString(dotYouClient));
+                        return segmentResult;
+                    }
+                    state.addSegment(segments.get(uploadedSegments), ((UploadPayloadResult) segmentResult).getNewVersionTag());
+                    pendingUploads.encode(uniqueId, state.toJsonString(dotYouClient));
+
+                    // Uploaded segments give their disk space back right away
+                    if (!segmentFile.delete()) {
+                        Log.e(null, "[VideoProvider] Failed to delete uploaded segment " + segmentFile.getAbsolutePath());
+                    }
+                }
+                if (finished) {
+                    break;
+                }
+                CancellationToken.current().throwIfCancelled();
+                Thread.sleep(SEGMENT_POLL_INTERVAL_MS);
+            }
+        } catch (Exception e) {
+            // The stored progress stays, so the retry continues after the last acknowledged segment
+            segmenting.cancel(true);
+            throw e;
+        }
+        // Surfaces an FFmpeg failure; the stored progress stays, so the retry continues after the last acknowledged segment
+        try {
+            segmenting.get();
+        } catch (Exception e) {
+            if (startNumber > 0 && !CancellationToken.current().isCancelled()) {
+                // Resuming itself failed (e.g. all segments were in, and FFmpeg had nothing left); the retry starts over
+                pendingUploads.encode(uniqueId, new PipelinedUploadState(state.getFileId(), state.getVersionTag(), null, null).toJsonString(dotYouClient));
+            }
+            throw e;
+        }
+
+        // The playlist refers to each segment by its payload key; the segments of earlier attempts are listed first
+        List<String> playlistLines = java.nio.file.Files.readAllLines(playlistFile.toPath());
+        if (startNumber > 0) {
+            playlistLines = prependSegments(playlistLines, state.getSegments().subList(0, startNumber));
+        }
+        StringBuilder playlist = new StringBuilder();
+        for (String line : playlistLines) {
+            playlist.append(line.startsWith("#") || line.isEmpty() ? line : new File(line).getName().replace(".ts", "")).append('\n');
+        }
+        File keyedPlaylistFile = new File(outputDir, "playlist-keyed.m3u8");
+        java.nio.file.Files.write(keyedPlaylistFile.toPath(), playlist.toString().getBytes());
+
+        PayloadFile playlistPayload = new PayloadFile(DEFAULT_PAYLOAD_KEY, keyedPlaylistFile.getAbsolutePath(), previewThumbnail, "application/vnd.apple.mpegurl", buildHlsDescriptor(playlist.toString(), probe));
+        UploadResult playlistResult = uploadPayloads(dotYouClient, new UploadPayloadInstructionSet(targetFile, state.getVersionTag()), List.of(playlistPayload), thumbnails, aesKey);
+        if (!(playlistResult instanceof UploadPayloadResult)) {
+            return playlistResult;
+        }
+
+        pendingUploads.removeValueForKey(uniqueId);
+        Log.v(null, "[VideoProvider] Uploaded " + uploadedSegments + " segments while segmenting " + filePath + (startNumber > 0 ? ", after " + startNumber + " from earlier attempts" : ""));
+        return headerResult != null ? headerResult : playlistResult;
+    }
+
+    // Lists the given segments ahead of the ones in an FFmpeg playlist of a resumed run. They go after the
+    // #EXT-X-KEY line, as all segments share the same key, and the sequence starts at 0 again.
+    private static List<String> prependSegments(List<String> playlistLines, List<HlsSegment> earlierSegments) {
+        double targetDuration = 0;
+        for (HlsSegment segment : earlierSegments) {
+            targetDuration = Math.max(targetDuration, segment.durationSeconds());
+        }
+
+        List<String> lines = new ArrayList<>();
+        boolean inserted = false;
+        for (String line : playlistLines) {
+            if (line.startsWith("#EXT-X-MEDIA-SEQUENCE:")) {
+                line = "#EXT-X-MEDIA-SEQUENCE:0";
+            } else if (line.startsWith("#EXT-X-TARGETDURATION:")) {
+                long current = Long.parseLong(line.substring("#EXT-X-TARGETDURATION:".length()).trim());
+                line = "#EXT-X-TARGETDURATION:" + Math.max(current, (long) Math.ceil(targetDuration));
+            } else if (!inserted && line.startsWith("#EXTINF:")) {
+                for (HlsSegment segment : earlierSegments) {
+                    lines.add(String.format(Locale.ROOT, "#EXTINF:%f,", segment.durationSeconds()));
+                    lines.add(segment.fileName());
+                }
+                inserted = true;
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private TranscodeDecision decideTranscode(File inputFile, MediaProbeResult probe, boolean lowerQuality) {
+        TranscodeDecision decision = TRANSCODE_POLICY.decide(probe, inputFile.length(), lowerQuality);
+        TranscodePolicy.record(context, probe, decision);
+        Span span = Tracer.current();
+        if (span != null) {
+            span.attr("transcode", decision.getAction().name())
+                    .attr("transcodeReason", decision.getReason())
+                    .attr("x264Preset", MediaJobExecutor.getInstance().getX264Preset())
+                    .attr("estimatedEncodeSeconds", decision.getEstimatedEncodeSeconds());
         }
+        return decision;
+    }
+
+    private static List<HlsSegment> readPlaylistSegments(File playlistFile) throws IOException {
+        List<HlsSegment> segments = new ArrayList<>();
+        if (!playlistFile.exists()) {
+            return segments;
+        }
+        double duration = 0;
+        for (String line : java.nio.file.Files.readAllLines(playlistFile.toPath())) {
+            if (line.startsWith("#EXTINF:")) {
+                String value = line.substring("#EXTINF:".length());
+                int comma = value.indexOf(',');
+                duration = Double.parseDouble(comma >= 0 ? value.substring(0, comma) : value);
+            } else if (!line.isEmpty() && !line.startsWith("#")) {
+                segments.add(new HlsSegment(new File(line).getName(), duration));
+            }
+        }
+        return segments;
+    }
+
+    private MMKV getPendingPipelinedUploads() {
+        System.loadLibrary("rnmmkv");
+        MMKV.initialize(context);
+        return MMKV.mmkvWithID(PENDING_PIPELINED_UPLOADS_ID);
+    }
+
+    private static UploadFileMetadata<String> buildMetadata(String uniqueId, String fileName, Long timestampInMs, EmbeddedThumb previewThumbnail, String versionTag) {
+        return new UploadFileMetadata<>(false, ENCRYPT_MEDIA, OWNER_ONLY_ACL, new UploadAppFileMetaData<>(uniqueId, new String[0], 0, 0, timestampInMs, null, ArchivalStatus.None, "{\"originalFileName\":\"" + fileName + "\"}", previewThumbnail), null, versionTag);
+    }
+
+    private static String buildHlsDescriptor(String playlistContent, MediaProbeResult probe) throws JSONException {
+        JSONObject metadataJson = new JSONObject();
+        metadataJson.put("isSegmented", true);
+        metadataJson.put("mimeType", "application/vnd.apple.mpegurl");
+        metadataJson.put("hlsPlaylist", playlistContent);
+        putProbeMetadata(metadataJson, probe);
+
+        // Convert JSONObject to String
+        return metadataJson.toString();
+    }
+
+    // Adds what the probe knows about the video to the payload descriptor; duration is in milliseconds
+    private static void putProbeMetadata(JSONObject metadataJson, MediaProbeResult probe) throws JSONException {
+        if (probe.getDurationSeconds() > 0) {
+            metadataJson.put("duration", Math.round(probe.getDurationSeconds() * 1000));
+        }
+        if (probe.getWidth() > 0 && probe.getHeight() > 0) {
+            metadataJson.put("width", probe.getDisplayWidth());
+            metadataJson.put("height", probe.getDisplayHeight());
+        }
+        if (probe.getVideoCodec() != null) {
+            metadataJson.put("codec", probe.getVideoCodec());
+        }
+    }
+
+    // Returns the tiny thumb (with the dimensions of the video) followed by the DEFAULT_IMAGE_SIZES thumbnails.
+    // They come straight from FFmpeg when possible, otherwise from a full size frame resized by ImageResizer.
+    private List<ThumbnailStream> grabVideoPosters(String filePath, MediaProbeResult probe, File outputDir) throws Exception {
+        List<ImageResizer.ResizeInstruction> instructions = new ArrayList<>();
+        instructions.add(TINY_THUMB_INSTRUCTION);
+        instructions.addAll(List.of(DEFAULT_IMAGE_SIZES));
+
+        try {
+            List<ThumbnailStream> posters = MediaJobExecutor.getInstance().submit(jobPriority, "posters " + outputDir.getName(),
+                    () -> VideoPosterExtractor.extract(context, filePath, probe, instructions, DEFAULT_PAYLOAD_KEY)).get();
+            posters.get(0).setPixelWidth(probe.getDisplayWidth());
+            posters.get(0).setPixelHeight(probe.getDisplayHeight());
+            return posters;
+        } catch (Exception e) {
+            Log.e(null, "[VideoProvider] Direct poster extraction failed, falling back to a full frame: " + e.getMessage());
+        }
+
+        String videoThumbnailPath = grabVideoThumbnail(filePath, probe, outputDir).get();
+        List<ThumbnailStream> posters = new ArrayList<>();
+        posters.add(ImageResizer.resizeImage(videoThumbnailPath, TINY_THUMB_INSTRUCTION, DEFAULT_PAYLOAD_KEY, true));
+        posters.addAll(ImageResizer.resizeImage(videoThumbnailPath, List.of(DEFAULT_IMAGE_SIZES), DEFAULT_PAYLOAD_KEY));
+        return posters;
     }
 
     // Function to generate video thumbnail using FFmpeg
-    public CompletableFuture<String> grabVideoThumbnail(String filePath) {
-        File outputDir = context.getCacheDir();
+    public CompletableFuture<String> grabVideoThumbnail(String filePath, MediaProbeResult probe, File outputDir) {
         String fileName = "thumbnail-" + java.util.UUID.randomUUID();
 
         String argThumbnailPath = new File(outputDir, fileName + "%04d.png").getAbsolutePath();
         String thumbnailPath = new File(outputDir, fileName + "0001.png").getAbsolutePath();
 
-        return CompletableFuture.supplyAsync(() -> {
-            String command = String.format("-i %s -frames:v 1 %s", filePath, argThumbnailPath);
+        return MediaJobExecutor.getInstance().submit(jobPriority, "thumbnail " + outputDir.getName(), () -> {
+            // Skip the first second (often black or a fade-in) when the video is long enough
+            double seekSeconds = Math.min(1, probe.getDurationSeconds() / 2);
+            String command = String.format(java.util.Locale.ROOT, "-ss %.3f -i %s -frames:v 1 %s", seekSeconds, filePath, argThumbnailPath);
             try {
-                var session = FFmpegKit.execute(command);
+                var session = MediaJobExecutor.getInstance().executeFFmpeg(command);
                 ReturnCode returnCode = session.getReturnCode();
                 if (returnCode.isValueSuccess()) {
                     return thumbnailPath;  // Successfully generated the thumbnail
@@ -135,67 +469,38 @@ public class VideoProvider {
         });
     }
 
-    // Function to compress and segment video
-    public VideoData compressAndSegmentVideo(String filePath, boolean compress, KeyHeader keyHeader) throws Exception {
-        File outputDir = context.getCacheDir();
+    // Function to compress and segment video in a single FFmpeg invocation: TranscodePolicy decides whether the
+    // streams are copied, remuxed or transcoded, and segmenting and HLS encryption happen in the same pass, so
+    // the video is encoded at most once and written to disk once.
+    public VideoData compressAndSegmentVideo(String filePath, boolean lowerQuality, KeyHeader keyHeader, MediaProbeResult probe, File outputDir) throws Exception {
         File inputVideoFile = new File(filePath);
 
-        File compressedVideoFile = compress ? compressVideo(inputVideoFile, new File(outputDir, "compressed.mp4")).get() : inputVideoFile;
-        File[] hlsFiles = segmentVideoToHLS(compressedVideoFile, outputDir, keyHeader).get();
+        TranscodeDecision decision = decideTranscode(inputVideoFile, probe, lowerQuality);
+        File[] hlsFiles = segmentVideoToHLS(inputVideoFile, outputDir, keyHeader, decision, false).get();
 
         return new VideoData(new VideoFile(hlsFiles[0].getAbsolutePath()), new VideoSegments(hlsFiles[1].getAbsolutePath()));
     }
 
-    // Function to compress video using FFmpeg
-    public CompletableFuture<File> compressVideo(File inputFile, File outputFile) {
-        return CompletableFuture.supplyAsync(() -> {
-            String command = String.format("-i %s -preset fast -crf 23 %s", inputFile.getAbsolutePath(), outputFile.getAbsolutePath());
-            try {
-                var session = FFmpegKit.execute(command);
-                ReturnCode returnCode = session.getReturnCode();
-                if (returnCode.isValueSuccess()) {
-                    return outputFile;  // Successfully compressed the video
-                } else {
-                    throw new RuntimeException("Failed to compress video: " + session.getAllLogsAsString());
-                }
-            } catch (Exception e) {
-                throw new RuntimeException("Error compressing video", e);
-            }
-        });
-    }
-
-    // Function to get the codec of a video file
-    public CompletableFuture<String> getVideoCodec(String inputFilePath) {
-        CompletableFuture<String> codecFuture = new CompletableFuture<>();
-
-        // Command to retrieve the codec of the video file using ffprobe
-        String command = "-v error -select_streams v:0 -show_entries stream=codec_name -of default=noprint_wrappers=1:nokey=1 " + inputFilePath;
-
-        // Execute FFmpeg command
-        FFprobeKit.executeAsync(command, session -> {
-            ReturnCode returnCode = session.getReturnCode();
-            if (ReturnCode.isSuccess(returnCode)) {
-                // Success: Retrieve codec from output
-                String output = session.getOutput();
-                codecFuture.complete(output.trim());
-            } else {
-                // Failure: Handle error
-                String errorMessage = session.getFailStackTrace();
-                codecFuture.completeExceptionally(new Exception("Failed to get codec: " + errorMessage));
-            }
-        });
-
-        return codecFuture;
+    // Function to segment video to HLS using FFmpeg. By default all segments go into a single .ts file (returned
+    // next to the playlist); with separateSegments every segment is its own seg%05d.ts file and the playlist is
+    // outputDir/playlist.m3u8, rewritten atomically each time a segment is closed, so segments can be picked up
+    // while FFmpeg is still running.
+    public CompletableFuture<File[]> segmentVideoToHLS(File inputFile, File outputDir, KeyHeader keyHeader, TranscodeDecision decision, boolean separateSegments) {
+        return segmentVideoToHLS(inputFile, outputDir, keyHeader, decision, separateSegments, 0, 0);
     }
 
-    // Function to segment video to HLS using FFmpeg
-    public CompletableFuture<File[]> segmentVideoToHLS(File inputFile, File outputDir, KeyHeader keyHeader) {
-        return CompletableFuture.supplyAsync(() -> {
+    // Starts at startSeconds into the video, numbering the segments from startNumber on, to continue the segments
+    // of an earlier run. The timestamps continue from that point too.
+    public CompletableFuture<File[]> segmentVideoToHLS(File inputFile, File outputDir, KeyHeader keyHeader, TranscodeDecision decision, boolean separateSegments, int startNumber, double startSeconds) {
+        return MediaJobExecutor.getInstance().submit(jobPriority, "segment " + outputDir.getName(), () -> {
             String randomId = UUID.randomUUID().toString();
-            String playlistFileName = "output-" + randomId + ".m3u8";
+            String playlistFileName = separateSegments ? SEGMENTED_PLAYLIST_FILE_NAME : "output-" + randomId + ".m3u8";
             String segmentsFileName = "output-" + randomId + ".ts";
             File playlistFile = new File(outputDir, playlistFileName);
-            File segmentsFile = new File(outputDir, segmentsFileName);
+            File segmentsFile = separateSegments ? null : new File(outputDir, segmentsFileName);
+            String segmentCommand = separateSegments
+                    ? "-hls_segment_filename " + new File(outputDir, SEGMENT_KEY_PREFIX + "%05d.ts").getAbsolutePath() + " -hls_flags temp_file"
+                    : "-hls_flags single_file";
 
             String encryptionCommand = "";
             try {
@@ -204,43 +509,21 @@ public class VideoProvider {
                     encryptionCommand = "-hls_key_info_file " + keyInfoFile.getAbsolutePath();
                 }
 
-                 // Extract video rotation metadata
-                String rotation = extractRotationMetadata(inputFile); // Implement this method to extract rotation metadata
-
-                // Define the transpose filter based on the rotation metadata
-                String rotationCommand = "";
-                if (rotation != null) {
-                    switch (rotation) {
-                        case "90":
-                            rotationCommand = "-vf \"transpose=1\""; // Rotate 90 degrees clockwise
-                            break;
-                        case "180":
-                            rotationCommand = "-vf \"transpose=2,transpose=2\""; // Rotate 180 degrees
-                            break;
-                        case "270":
-                            rotationCommand = "-vf \"transpose=2\""; // Rotate 270 degrees clockwise (or 90 degrees counter-clockwise)
-                            break;
-                        default:
-                            break; // No rotation needed for 0 or unknown rotation values
-                    }
-                }
+                // Earlier segments end on a keyframe; the margin keeps the (keyframe) seek from landing on the one before
+                String resumeInput = startNumber > 0 ? String.format(Locale.ROOT, "-ss %.6f ", startSeconds + RESUME_SEEK_MARGIN_SECONDS) : "";
+                String resumeOutput = startNumber > 0 ? String.format(Locale.ROOT, "-start_number %d -output_ts_offset %.6f ", startNumber, startSeconds) : "";
 
-                String command;
-                if(getVideoCodec(inputFile.getAbsolutePath()).get().equals("h264")) {
-                    // Command to segment the video to HLS using FFmpeg
-                    command = String.format("-i %s -codec copy %s %s -hls_time 6 -hls_list_size 0 -f hls -hls_flags single_file %s",
-                            inputFile.getAbsolutePath(), encryptionCommand, rotationCommand, playlistFile.getAbsolutePath());
-                } else {
-                    // Command to segment the video to HLS using FFmpeg
-                    command = String.format("-i %s -c:v libx264 -preset fast -crf 23 -c:a aac %s %s -hls_time 6 -hls_list_size 0 -f hls -hls_flags single_file %s",
-                            inputFile.getAbsolutePath(), encryptionCommand, rotationCommand, playlistFile.getAbsolutePath());
-                }
+                // Copy, remux or transcode, then segment and encrypt the video to HLS in one pass
+                String command = String.format("%s-i %s %s %s %s-hls_time 6 -hls_list_size 0 -f hls %s %s",
+                        resumeInput, inputFile.getAbsolutePath(), decision.toFFmpegArguments(MediaJobExecutor.getInstance().getFFmpegThreads(), MediaJobExecutor.getInstance().getX264Preset()), encryptionCommand, resumeOutput, segmentCommand, playlistFile.getAbsolutePath());
 
-                // Execute the FFmpeg command using FFmpegKit
-                var session = FFmpegKit.execute(command);
+                // Execute the FFmpeg command on the media job executor's thread
+                long start = System.nanoTime();
+                var session = MediaJobExecutor.getInstance().executeFFmpeg(command);
                 ReturnCode returnCode = session.getReturnCode();
 
                 if (returnCode.isValueSuccess()) {
+                    SEGMENT.recordSince(start);
                     // Successfully segmented the video
                     return new File[]{playlistFile, segmentsFile};
                 } else {
@@ -252,23 +535,6 @@ public class VideoProvider {
         });
     }
 
-    // Example method to extract rotation metadata
-    private String extractRotationMetadata(File inputFile) throws IOException {
-        // Use FFmpeg or MediaMetadataRetriever to extract the rotation metadata
-        String rotation = null;
-        String command = String.format("-i %s -select_streams v:0 -show_entries stream_tags=rotate -of csv=p=0", inputFile.getAbsolutePath());
-
-        // Execute FFmpeg command to get the rotation metadata
-        var session = FFmpegKit.execute(command);
-        if (session.getReturnCode().isValueSuccess()) {
-            String output = session.getAllLogsAsString().trim();
-            if (!output.isEmpty()) {
-                rotation = output;
-            }
-        }
-        return rotation;
-    }
-
     private String bytesToHex(byte[] bytes) {
         StringBuilder hexString = new StringBuilder();
         for (byte b : bytes) {
@@ -294,23 +560,4 @@ public class VideoProvider {
 
         return keyInfoFile;
     }
-
-    // TODO: move this to a common helper class
-    private String toGuidId(String input) throws NoSuchAlgorithmException {
-        // Compute the MD5 hash
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        byte[] md5Bytes = md.digest(input.getBytes());
-
-        // Convert the first 16 bytes of the MD5 hash to a UUID
-        long msb = 0;
-        long lsb = 0;
-        for (int i = 0; i < 8; i++) {
-            msb = (msb << 8) | (md5Bytes[i] & 0xff);
-        }
-        for (int i = 8; i < 16; i++) {
-            lsb = (lsb << 8) | (md5Bytes[i] & 0xff);
-        }
-
-        return new UUID(msb, lsb).toString();
-    }
 }
@@ -0,0 +1,156 @@
+package id.homebase.photos.mediasync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+// Hands out a private temp directory per media job (FFmpeg outputs, key files, thumbnails) and deletes it
+// when the job is closed, whether it succeeded or not. The bytes reserved by all open workspaces are kept
+// under a disk quota: a job that doesn't fit waits until earlier jobs finish, instead of filling the disk.
+//
+// Everything under the root directory belongs to a live workspace of this process, so whatever is found
+// there at startup is left over from a crash or a killed worker and is swept away. The instance is created
+// in MainApplication.onCreate, before any sync work can start.
+public class WorkspaceManager {
+    private static final String ROOT_DIRECTORY = "media-jobs";
+    private static final long DEFAULT_QUOTA_BYTES = 2L * 1024 * 1024 * 1024;
+    // Never let the workspaces take more than this share of the free space on the cache volume
+    private static final double MAX_FREE_SPACE_SHARE = 0.5;
+    // Files left behind directly in the cache directory: VideoProvider outputs from before workspaces existed,
+    // and SpillableBuffer spill files of a process that died before releasing them
+    private static final String[] LEGACY_FILE_PREFIXES = new String[]{"thumbnail-", "output-", "hls-encryption-", "hls-key-info-", "compressed", "buffer-"};
+    private static WorkspaceManager instance;
+
+    private final File root;
+    private long quotaBytes = DEFAULT_QUOTA_BYTES;
+    private long reservedBytes = 0;
+    private int openWorkspaces = 0;
+
+    private WorkspaceManager(Context context) {
+        this.root = new File(context.getCacheDir(), ROOT_DIRECTORY);
+        File[] orphans = root.listFiles();
+        File[] legacyFiles = context.getCacheDir().listFiles((dir, name) -> {
+            for (String prefix : LEGACY_FILE_PREFIXES) {
+                if (name.startsWith(prefix)) return true;
+            }
+            return false;
+        });
+        if (!root.isDirectory() && !root.mkdirs()) {
+            Log.e(null, "[WorkspaceManager] Failed to create " + root.getAbsolutePath());
+        }
+
+        // The listing is taken up front, so workspaces created while the sweep runs are never touched
+        CompletableFuture.runAsync(() -> {
+            long freed = 0;
+            for (File[] files : new File[][]{orphans, legacyFiles}) {
+                if (files == null) continue;
+                for (File file : files) {
+                    freed += deleteRecursively(file);
+                }
+            }
+            if (freed > 0) {
+                Log.v(null, "[WorkspaceManager] Swept " + freed + " bytes of orphaned job files");
+            }
+        });
+    }
+
+    public static synchronized WorkspaceManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new WorkspaceManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public synchronized void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+        notifyAll();
+    }
+
+    public synchronized long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    // Blocks until estimatedBytes fit in the quota. A job larger than the whole quota still runs, but only
+    // once every other workspace is closed.
+    public Workspace acquire(String name, long estimatedBytes) throws InterruptedException, IOException {
+        synchronized (this) {
+            while (openWorkspaces > 0 && reservedBytes + estimatedBytes > effectiveQuota()) {
+                Log.v(null, "[WorkspaceManager] Waiting for " + estimatedBytes + " bytes, " + reservedBytes + " reserved");
+                wait();
+            }
+            reservedBytes += estimatedBytes;
+            openWorkspaces++;
+        }
+
+        File directory = new File(root, name + "-" + UUID.randomUUID());
+        if (!directory.mkdirs()) {
+            release(estimatedBytes);
+            throw new IOException("Failed to create workspace " + directory.getAbsolutePath());
+        }
+        return new Workspace(directory, estimatedBytes);
+    }
+
+    private long effectiveQuota() {
+        return Math.min(quotaBytes, reservedBytes + (long) (root.getUsableSpace() * MAX_FREE_SPACE_SHARE));
+    }
+
+    private synchronized void release(long bytes) {
+        reservedBytes -= bytes;
+        openWorkspaces--;
+        notifyAll();
+    }
+
+    static long deleteRecursively(File file) {
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += deleteRecursively(child);
+            }
+        } else {
+            size = file.length();
+        }
+        if (!file.delete() && file.exists()) {
+            Log.e(null, "[WorkspaceManager] Failed to delete " + file.getAbsolutePath());
+        }
+        return size;
+    }
+
+    public class Workspace implements AutoCloseable {
+        private final File directory;
+        private final long reservation;
+        private boolean closed = false;
+
+        private Workspace(File directory, long reservation) {
+            this.directory = directory;
+            this.reservation = reservation;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public File newFile(String name) {
+            return new File(directory, name);
+        }
+
+        // Deletes the directory with everything in it and gives its reservation back to the quota
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deleteRecursively(directory);
+            release(reservation);
+        }
+    }
+}
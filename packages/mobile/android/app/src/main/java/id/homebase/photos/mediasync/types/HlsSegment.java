@@ -0,0 +1,5 @@
+package id.homebase.photos.mediasync.types;
+
+// A segment as listed in an HLS playlist: its file name and #EXTINF duration
+public record HlsSegment(String fileName, double durationSeconds) {
+}
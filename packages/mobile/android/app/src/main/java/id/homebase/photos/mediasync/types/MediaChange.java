@@ -0,0 +1,14 @@
+package id.homebase.photos.mediasync.types;
+
+public record MediaChange(
+        Type type,
+        MediaItem item,
+        // Keyset position of the change: the generation on Android 11+, DATE_ADDED in seconds before that
+        long position,
+        long id
+) {
+    public enum Type {
+        ADDED,
+        MODIFIED
+    }
+}
@@ -0,0 +1,14 @@
+package id.homebase.photos.mediasync.types;
+
+public record MediaItem(
+        String filePath,
+        long timestampInMillis,
+        String mimeType,
+        String identifier,
+        String width,
+        String height
+) {
+    public boolean isVideo() {
+        return mimeType != null && mimeType.startsWith("video/");
+    }
+}
@@ -0,0 +1,97 @@
+package id.homebase.photos.mediasync.types;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class MediaProbeResult {
+    private final String videoCodec;
+    private final String audioCodec;
+    private final int rotation;
+    private final double durationSeconds;
+    private final long bitRate;
+    private final int width;
+    private final int height;
+
+    public MediaProbeResult(String videoCodec, String audioCodec, int rotation, double durationSeconds, long bitRate, int width, int height) {
+        this.videoCodec = videoCodec;
+        this.audioCodec = audioCodec;
+        this.rotation = rotation;
+        this.durationSeconds = durationSeconds;
+        this.bitRate = bitRate;
+        this.width = width;
+        this.height = height;
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    public String getAudioCodec() {
+        return audioCodec;
+    }
+
+    // Clockwise rotation in degrees (0, 90, 180 or 270) that players apply when displaying the video
+    public int getRotation() {
+        return rotation;
+    }
+
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public long getBitRate() {
+        return bitRate;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDisplayWidth() {
+        return rotation == 90 || rotation == 270 ? height : width;
+    }
+
+    public int getDisplayHeight() {
+        return rotation == 90 || rotation == 270 ? width : height;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("videoCodec", videoCodec);
+        json.put("audioCodec", audioCodec);
+        json.put("rotation", rotation);
+        json.put("durationSeconds", durationSeconds);
+        json.put("bitRate", bitRate);
+        json.put("width", width);
+        json.put("height", height);
+        return json;
+    }
+
+    public static MediaProbeResult fromJson(JSONObject json) {
+        return new MediaProbeResult(
+                json.optString("videoCodec", null),
+                json.optString("audioCodec", null),
+                json.optInt("rotation"),
+                json.optDouble("durationSeconds", 0),
+                json.optLong("bitRate"),
+                json.optInt("width"),
+                json.optInt("height"));
+    }
+
+    @Override
+    public String toString() {
+        return "MediaProbeResult{" +
+                "videoCodec='" + videoCodec + '\'' +
+                ", audioCodec='" + audioCodec + '\'' +
+                ", rotation=" + rotation +
+                ", durationSeconds=" + durationSeconds +
+                ", bitRate=" + bitRate +
+                ", width=" + width +
+                ", height=" + height +
+                '}';
+    }
+}
@@ -0,0 +1,126 @@
+package id.homebase.photos.mediasync.types;
+
+import static id.homebase.lib.core.crypto.CryptoUtil.base64ToByteArray;
+import static id.homebase.lib.core.crypto.CryptoUtil.byteArrayToBase64;
+import static id.homebase.lib.core.crypto.CryptoUtil.decryptKeyHeader;
+import static id.homebase.lib.core.crypto.CryptoUtil.encryptKeyHeader;
+import static id.homebase.lib.core.file.types.KeyHeaderGenerator.getRandom16ByteArray;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import id.homebase.lib.core.DotYouClient;
+import id.homebase.lib.core.file.types.EncryptedKeyHeader;
+import id.homebase.lib.core.file.types.KeyHeader;
+
+// Progress of a pipelined video upload, persisted after every acknowledged segment. A retry (also after the
+// process was killed) continues at the first segment that isn't on the server yet, using the same key and
+// encoding, instead of starting the transcode and upload from zero.
+//
+// The key is stored encrypted with the shared secret, the same way it goes to the server in the descriptor.
+public class PipelinedUploadState {
+    private final String fileId;
+    private String versionTag;
+    private final KeyHeader keyHeader;
+    // The FFmpeg arguments the segments were made with; segments of different encodings can't be mixed
+    private final String encoding;
+    private final List<HlsSegment> segments;
+
+    public PipelinedUploadState(String fileId, String versionTag, KeyHeader keyHeader, String encoding) {
+        this(fileId, versionTag, keyHeader, encoding, new ArrayList<>());
+    }
+
+    private PipelinedUploadState(String fileId, String versionTag, KeyHeader keyHeader, String encoding, List<HlsSegment> segments) {
+        this.fileId = fileId;
+        this.versionTag = versionTag;
+        this.keyHeader = keyHeader;
+        this.encoding = encoding;
+        this.segments = segments;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public String getVersionTag() {
+        return versionTag;
+    }
+
+    public KeyHeader getKeyHeader() {
+        return keyHeader;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public List<HlsSegment> getSegments() {
+        return segments;
+    }
+
+    public double getUploadedSeconds() {
+        double seconds = 0;
+        for (HlsSegment segment : segments) {
+            seconds += segment.durationSeconds();
+        }
+        return seconds;
+    }
+
+    public void addSegment(HlsSegment segment, String newVersionTag) {
+        segments.add(segment);
+        versionTag = newVersionTag;
+    }
+
+    public String toJsonString(DotYouClient dotYouClient) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("fileId", fileId);
+        json.put("versionTag", versionTag);
+        if (keyHeader != null) {
+            EncryptedKeyHeader encryptedKeyHeader = encryptKeyHeader(dotYouClient, keyHeader, getRandom16ByteArray());
+            json.put("keyHeaderIv", byteArrayToBase64(encryptedKeyHeader.iv()));
+            json.put("encryptedKeyHeader", byteArrayToBase64(encryptedKeyHeader.encryptedAesKey()));
+        }
+        json.put("encoding", encoding);
+        JSONArray segmentsJson = new JSONArray();
+        for (HlsSegment segment : segments) {
+            segmentsJson.put(new JSONObject().put("fileName", segment.fileName()).put("duration", segment.durationSeconds()));
+        }
+        json.put("segments", segmentsJson);
+        return json.toString();
+    }
+
+    // Also reads the "fileId|versionTag" entries of earlier versions, which have no progress to resume. A key
+    // that can't be decrypted (e.g. stored in plain by an earlier version, or before a new login) is dropped,
+    // which makes the retry start over.
+    public static PipelinedUploadState fromString(String value, DotYouClient dotYouClient) throws JSONException {
+        if (!value.startsWith("{")) {
+            String[] parts = value.split("\\|", 2);
+            return new PipelinedUploadState(parts[0], parts.length > 1 ? parts[1] : null, null, null);
+        }
+
+        JSONObject json = new JSONObject(value);
+        KeyHeader keyHeader = null;
+        if (json.has("encryptedKeyHeader")) {
+            try {
+                keyHeader = decryptKeyHeader(dotYouClient, new EncryptedKeyHeader(1, 11, base64ToByteArray(json.getString("keyHeaderIv")), base64ToByteArray(json.getString("encryptedKeyHeader"))));
+            } catch (Exception e) {
+                Log.v(null, "[PipelinedUploadState] Can't decrypt the stored key, starting over: " + e.getMessage());
+            }
+        }
+        List<HlsSegment> segments = new ArrayList<>();
+        JSONArray segmentsJson = json.optJSONArray("segments");
+        if (segmentsJson != null) {
+            for (int i = 0; i < segmentsJson.length(); i++) {
+                JSONObject segment = segmentsJson.getJSONObject(i);
+                segments.add(new HlsSegment(segment.getString("fileName"), segment.getDouble("duration")));
+            }
+        }
+        return new PipelinedUploadState(json.getString("fileId"), json.optString("versionTag", null), keyHeader, json.optString("encoding", null), segments);
+    }
+}
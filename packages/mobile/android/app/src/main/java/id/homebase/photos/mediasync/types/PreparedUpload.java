@@ -0,0 +1,30 @@
+package id.homebase.photos.mediasync.types;
+
+import java.util.List;
+
+import id.homebase.lib.core.file.types.UploadFileMetadata;
+import id.homebase.lib.core.file.types.UploadInstructionSet;
+import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadBase;
+import id.homebase.lib.core.file.types.payloadorthumbnailbase.PayloadOrThumbnailStream;
+import id.homebase.lib.core.file.types.payloadorthumbnailbase.ThumbnailBase;
+
+public record PreparedUpload(
+        UploadInstructionSet instructions,
+        UploadFileMetadata<String> metadata,
+        List<PayloadBase> payloads,
+        List<ThumbnailBase> thumbnails
+) {
+    // Frees the in-memory or spilled buffers of the generated payloads and thumbnails
+    public void release() {
+        for (PayloadBase payload : payloads) {
+            if (payload instanceof PayloadOrThumbnailStream) {
+                ((PayloadOrThumbnailStream) payload).release();
+            }
+        }
+        for (ThumbnailBase thumbnail : thumbnails) {
+            if (thumbnail instanceof PayloadOrThumbnailStream) {
+                ((PayloadOrThumbnailStream) thumbnail).release();
+            }
+        }
+    }
+}
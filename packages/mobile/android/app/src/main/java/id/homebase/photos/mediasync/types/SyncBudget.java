@@ -0,0 +1,14 @@
+package id.homebase.photos.mediasync.types;
+
+public record SyncBudget(
+        // Number of images prepared ahead of the upload
+        int prepareAhead,
+        // Threads per FFmpeg session
+        int ffmpegThreads,
+        // x264 preset of video transcodes; faster presets use less CPU per frame for somewhat larger files
+        String x264Preset,
+        // Whether videos are processed at all; when not, the sync stops at the next video
+        boolean videoAllowed,
+        String reason
+) {
+}
@@ -0,0 +1,110 @@
+package id.homebase.photos.mediasync.types;
+
+import java.util.Locale;
+
+public class TranscodeDecision {
+    public enum Action {
+        // Both streams are copied as is
+        COPY,
+        // The video stream is copied, only the audio is re-encoded to AAC
+        REMUX,
+        // The video is re-encoded with x264
+        TRANSCODE
+    }
+
+    private final Action action;
+    private final int crf;
+    // Target size of the shortest display side, or 0 to keep the source resolution
+    private final int scaledShortSide;
+    private final boolean landscape;
+    private final boolean copyAudio;
+    private final long sourceBytes;
+    private final long estimatedOutputBytes;
+    private final double estimatedEncodeSeconds;
+    private final String reason;
+
+    public TranscodeDecision(Action action, int crf, int scaledShortSide, boolean landscape, boolean copyAudio, long sourceBytes, long estimatedOutputBytes, double estimatedEncodeSeconds, String reason) {
+        this.action = action;
+        this.crf = crf;
+        this.scaledShortSide = scaledShortSide;
+        this.landscape = landscape;
+        this.copyAudio = copyAudio;
+        this.sourceBytes = sourceBytes;
+        this.estimatedOutputBytes = estimatedOutputBytes;
+        this.estimatedEncodeSeconds = estimatedEncodeSeconds;
+        this.reason = reason;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public int getCrf() {
+        return crf;
+    }
+
+    public int getScaledShortSide() {
+        return scaledShortSide;
+    }
+
+    public boolean isCopyAudio() {
+        return copyAudio;
+    }
+
+    public long getSourceBytes() {
+        return sourceBytes;
+    }
+
+    public long getEstimatedOutputBytes() {
+        return estimatedOutputBytes;
+    }
+
+    public long getEstimatedSavedBytes() {
+        return sourceBytes - estimatedOutputBytes;
+    }
+
+    public double getEstimatedEncodeSeconds() {
+        return estimatedEncodeSeconds;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    // Codec options for the FFmpeg command, placed between the input and the output options; threads limits
+    // the x264 encoder, 0 leaves it to x264
+    public String toFFmpegArguments(int threads) {
+        return toFFmpegArguments(threads, "fast");
+    }
+
+    public String toFFmpegArguments(int threads, String x264Preset) {
+        String audio = copyAudio ? "-c:a copy" : "-c:a aac -b:a 128k";
+        switch (action) {
+            case COPY:
+                return "-codec copy";
+            case REMUX:
+                return "-c:v copy " + audio;
+            default:
+                // FFmpeg autorotates while transcoding, so the scale applies to the displayed orientation
+                String scale = scaledShortSide <= 0 ? "" : landscape
+                        ? String.format(Locale.ROOT, "-vf scale=-2:%d ", scaledShortSide)
+                        : String.format(Locale.ROOT, "-vf scale=%d:-2 ", scaledShortSide);
+                String encoderThreads = threads > 0 ? String.format(Locale.ROOT, "-threads %d ", threads) : "";
+                return String.format(Locale.ROOT, "-c:v libx264 -preset %s -crf %d %s%s%s", x264Preset, crf, encoderThreads, scale, audio);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TranscodeDecision{" +
+                "action=" + action +
+                ", crf=" + crf +
+                ", scaledShortSide=" + scaledShortSide +
+                ", copyAudio=" + copyAudio +
+                ", sourceBytes=" + sourceBytes +
+                ", estimatedOutputBytes=" + estimatedOutputBytes +
+                ", estimatedEncodeSeconds=" + estimatedEncodeSeconds +
+                ", reason='" + reason + '\'' +
+                '}';
+    }
+}
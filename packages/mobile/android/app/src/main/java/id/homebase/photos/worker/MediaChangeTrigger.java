@@ -0,0 +1,103 @@
+package id.homebase.photos.worker;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Observes new and changed images and videos, and starts one sync per burst of changes. A camera burst or a
+// gallery app writing thumbnails fires hundreds of notifications, so the sync only starts once no change has
+// come in for QUIET_PERIOD_MS, or at the latest MAX_DELAY_MS after the first change of the burst. The worker
+// gets the URIs that changed in the burst.
+public class MediaChangeTrigger {
+    private static final long QUIET_PERIOD_MS = 3_000;
+    private static final long MAX_DELAY_MS = 15_000;
+    // Keeps the worker input well under WorkManager's 10KB Data limit; a larger burst is passed without URIs
+    private static final int MAX_URIS = 100;
+
+    private final Context context;
+    private final Handler handler;
+    private final ContentObserver observer;
+    private final Set<Uri> pendingUris = new LinkedHashSet<>();
+    private boolean overflowed = false;
+    private long burstStartedAt = 0;
+
+    private final Runnable fire = this::fire;
+
+    public MediaChangeTrigger(Context context) {
+        this.context = context.getApplicationContext();
+        this.handler = new Handler(Looper.getMainLooper());
+        this.observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange, @Nullable Uri uri) {
+                onMediaChanged(uri != null ? List.of(uri) : List.of());
+            }
+
+            @Override
+            public void onChange(boolean selfChange, @NonNull Collection<Uri> uris, int flags) {
+                // Deleted media has nothing to upload
+                if ((flags & ContentResolver.NOTIFY_DELETE) != 0) {
+                    return;
+                }
+                onMediaChanged(uris);
+            }
+        };
+    }
+
+    public void register() {
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, observer);
+        contentResolver.registerContentObserver(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, true, observer);
+    }
+
+    public void unregister() {
+        context.getContentResolver().unregisterContentObserver(observer);
+        handler.removeCallbacks(fire);
+    }
+
+    // Runs on the main looper, like fire(), so the pending state needs no locking
+    private void onMediaChanged(Collection<Uri> uris) {
+        long now = SystemClock.elapsedRealtime();
+        if (burstStartedAt == 0) {
+            burstStartedAt = now;
+        }
+
+        for (Uri uri : uris) {
+            if (pendingUris.size() >= MAX_URIS) {
+                overflowed = true;
+                break;
+            }
+            pendingUris.add(uri);
+        }
+
+        handler.removeCallbacks(fire);
+        long delay = Math.max(0, Math.min(QUIET_PERIOD_MS, burstStartedAt + MAX_DELAY_MS - now));
+        handler.postDelayed(fire, delay);
+    }
+
+    private void fire() {
+        List<Uri> uris = overflowed ? List.of() : new ArrayList<>(pendingUris);
+        Log.v(null, "[MediaChangeTrigger] Burst of " + (overflowed ? "more than " + MAX_URIS : pendingUris.size()) + " changes after "
+                + (SystemClock.elapsedRealtime() - burstStartedAt) + "ms");
+
+        pendingUris.clear();
+        overflowed = false;
+        burstStartedAt = 0;
+
+        WorkerScheduler.runWorkerForChanges(context, uris);
+    }
+}
@@ -2,38 +2,24 @@ package id.homebase.photos.worker;
 
 import android.app.Service;
 import android.content.Intent;
-import android.database.ContentObserver;
-import android.os.Handler;
 import android.os.IBinder;
-import android.provider.MediaStore;
 
 public class PhotoMonitoringService extends Service {
 
-    private ContentObserver photoObserver;
+    private MediaChangeTrigger mediaChangeTrigger;
 
     @Override
     public void onCreate() {
         super.onCreate();
-        photoObserver = new ContentObserver(new Handler()) {
-            @Override
-            public void onChange(boolean selfChange) {
-                super.onChange(selfChange);
-                // New photo detected, schedule the worker
-                WorkerScheduler.runWorker(PhotoMonitoringService.this);
-            }
-        };
-
-        getContentResolver().registerContentObserver(
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                true,
-                photoObserver
-        );
+        // New photos and videos are synced once a burst of changes settles
+        mediaChangeTrigger = new MediaChangeTrigger(this);
+        mediaChangeTrigger.register();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        getContentResolver().unregisterContentObserver(photoObserver);
+        mediaChangeTrigger.unregister();
     }
 
     @Override
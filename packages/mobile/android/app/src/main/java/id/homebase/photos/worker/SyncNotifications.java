@@ -0,0 +1,49 @@
+package id.homebase.photos.worker;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+
+import androidx.work.ForegroundInfo;
+
+import id.homebase.photos.R;
+
+// The ongoing notification shown while a sync runs as foreground work
+public class SyncNotifications {
+    private static final String CHANNEL_ID = "sync";
+    private static final int NOTIFICATION_ID = 1001;
+
+    // A total of 0 shows an indeterminate progress bar
+    public static ForegroundInfo foregroundInfo(Context context, int finished, int total) {
+        Notification notification = buildNotification(context, finished, total);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return new ForegroundInfo(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        }
+        return new ForegroundInfo(NOTIFICATION_ID, notification);
+    }
+
+    private static Notification buildNotification(Context context, int finished, int total) {
+        createChannel(context);
+
+        Notification.Builder builder = new Notification.Builder(context, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_upload)
+                .setContentTitle(context.getString(R.string.sync_notification_title))
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(total, finished, total == 0);
+        if (total > 0) {
+            builder.setContentText(context.getString(R.string.sync_notification_progress, finished, total));
+        }
+        return builder.build();
+    }
+
+    private static void createChannel(Context context) {
+        NotificationManager manager = context.getSystemService(NotificationManager.class);
+        if (manager.getNotificationChannel(CHANNEL_ID) == null) {
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, context.getString(R.string.sync_notification_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+    }
+}
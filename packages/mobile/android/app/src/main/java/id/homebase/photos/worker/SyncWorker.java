@@ -1,14 +1,29 @@
 package id.homebase.photos.worker;
 
 import android.content.Context;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.work.ForegroundInfo;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import java.util.List;
+
+import id.homebase.lib.core.CancellationToken;
 import id.homebase.photos.mediasync.MediaSync;
 
 public class SyncWorker extends Worker {
+    public static final String CHANGED_URIS_KEY = "changedUris";
+    public static final String CONTINUATION_KEY = "continuation";
+
+    // A page this large or this slow likely outlasts the execution window, so it's synced as foreground work
+    private static final long FOREGROUND_BYTES = 100 * 1024 * 1024;
+    private static final long FOREGROUND_ESTIMATE_MS = 5 * 60 * 1000;
+
+    private boolean foreground = false;
+    // Cancelled when WorkManager stops the run, e.g. when its work is cancelled or its constraints no longer hold
+    private final CancellationToken cancellation = new CancellationToken();
 
     public SyncWorker(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
@@ -17,9 +32,59 @@ public class SyncWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
+        // Set when the run was started by MediaChangeTrigger for a burst of changes
+        String[] changedUris = getInputData().getStringArray(CHANGED_URIS_KEY);
+
         MediaSync mediaSync = new MediaSync(getApplicationContext());
-        mediaSync.syncMedia();
+        boolean backlogRemaining = mediaSync.syncMedia(changedUris != null ? List.of(changedUris) : List.of(), MediaSync.DEFAULT_TIME_BUDGET_MS, new MediaSync.ProgressListener() {
+            @Override
+            public boolean onPageStarted(int items, long bytes, long estimatedMs) {
+                if (!foreground && (bytes >= FOREGROUND_BYTES || estimatedMs >= FOREGROUND_ESTIMATE_MS)) {
+                    foreground = moveToForeground(items);
+                }
+                return foreground;
+            }
+
+            @Override
+            public void onItemFinished(int finished, int total) {
+                if (foreground) {
+                    // Updates the notification
+                    setForegroundAsync(SyncNotifications.foregroundInfo(getApplicationContext(), finished, total));
+                }
+            }
+        }, cancellation);
+
+        // Carry on right away instead of waiting for the next periodic run
+        if (backlogRemaining && !isStopped()) {
+            WorkerScheduler.continueBacklog(getApplicationContext(), getInputData().getBoolean(CONTINUATION_KEY, false));
+        }
 
         return Result.success();
     }
+
+    @Override
+    public void onStopped() {
+        super.onStopped();
+        cancellation.cancel();
+    }
+
+    // Needed for expedited runs on Android 11 and lower, which run as foreground work from the start
+    @NonNull
+    @Override
+    public ForegroundInfo getForegroundInfo() {
+        return SyncNotifications.foregroundInfo(getApplicationContext(), 0, 0);
+    }
+
+    private boolean moveToForeground(int items) {
+        try {
+            setForegroundAsync(SyncNotifications.foregroundInfo(getApplicationContext(), 0, items)).get();
+            Log.v(null, "[SyncWorker] Continuing as foreground work");
+            return true;
+        } catch (Exception e) {
+            // Android 12+ doesn't allow starting foreground work while the app is in the background; the run
+            // then stays within its regular time budget and the backlog is continued by the next run
+            Log.v(null, "[SyncWorker] Couldn't move to the foreground: " + e.getMessage());
+            return false;
+        }
+    }
 }
@@ -1,22 +1,32 @@
 package id.homebase.photos.worker;
 
 import android.content.Context;
+import android.net.Uri;
 import android.util.Log;
 
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
+import androidx.work.Data;
 import androidx.work.ExistingPeriodicWorkPolicy;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.OneTimeWorkRequest;
+import androidx.work.OutOfQuotaPolicy;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 
 public class WorkerScheduler extends ReactContextBaseJavaModule {
+    // Unique work names. The runs for the user and for media changes each have their own, so KEEP on the
+    // periodic work doesn't swallow them; MediaSync has them take turns.
+    private static final String PERIODIC_WORK = "SyncWorker";
+    private static final String SYNC_NOW_WORK = "SyncNow";
+    private static final String MEDIA_CHANGE_WORK = "MediaChangeSync";
+    private static final String BACKLOG_WORK = "SyncBacklog";
 
     public WorkerScheduler(ReactApplicationContext reactContext) {
         super(reactContext);
@@ -36,17 +46,66 @@ public class WorkerScheduler extends ReactContextBaseJavaModule {
         Log.v(null, "[SyncWorker] Scheduled every 15min");
 
         WorkManager.getInstance(context).enqueueUniquePeriodicWork(
-           "SyncWorker",
+           PERIODIC_WORK,
            ExistingPeriodicWorkPolicy.KEEP,
            workRequest);
     }
 
     @ReactMethod
     public static void runWorker(Context context) {
-        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SyncWorker.class).build();
+        // Started by the user, so it runs right away when the expedited quota allows
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                .build();
 
         Log.v(null, "[SyncWorker] Run now");
 
-        WorkManager.getInstance(context).enqueueUniqueWork("SyncWorker", ExistingWorkPolicy.KEEP, workRequest);
+        WorkManager.getInstance(context).enqueueUniqueWork(SYNC_NOW_WORK, ExistingWorkPolicy.KEEP, workRequest);
+    }
+
+    // Stops every sync run, including the work in flight (see SyncWorker.onStopped), e.g. when sync is
+    // turned off or the user logs out. The periodic run is scheduled again, and checks the settings first.
+    public static void cancelSync(Context context) {
+        Log.v(null, "[SyncWorker] Cancel");
+
+        WorkManager workManager = WorkManager.getInstance(context);
+        workManager.cancelUniqueWork(PERIODIC_WORK);
+        workManager.cancelUniqueWork(SYNC_NOW_WORK);
+        workManager.cancelUniqueWork(MEDIA_CHANGE_WORK);
+        workManager.cancelUniqueWork(BACKLOG_WORK);
+        scheduleWorker(context);
+    }
+
+    // Runs a sync for a burst of media changes. A burst that comes in while a sync is running is appended
+    // to it, so the changes are always picked up by a run that starts after them. Expedited, as a fresh
+    // capture should reach the server while the user is still around.
+    public static void runWorkerForChanges(Context context, List<Uri> changedUris) {
+        String[] uris = new String[changedUris.size()];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = changedUris.get(i).toString();
+        }
+
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setInputData(new Data.Builder().putStringArray(SyncWorker.CHANGED_URIS_KEY, uris).build())
+                .setExpedited(OutOfQuotaPolicy.RUN_AS_NON_EXPEDITED_WORK_REQUEST)
+                .build();
+
+        Log.v(null, "[SyncWorker] Run for " + uris.length + " changes");
+
+        WorkManager.getInstance(context).enqueueUniqueWork(MEDIA_CHANGE_WORK, ExistingWorkPolicy.APPEND_OR_REPLACE, workRequest);
+    }
+
+    // Queues a follow-up run while the sync has a backlog left. A continuation appends its successor to the
+    // chain, so it starts once the current run is done; any other run only starts a chain if there is none yet.
+    public static void continueBacklog(Context context, boolean fromContinuation) {
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setInputData(new Data.Builder().putBoolean(SyncWorker.CONTINUATION_KEY, true).build())
+                .build();
+
+        Log.v(null, "[SyncWorker] Backlog remaining, continuing");
+
+        WorkManager.getInstance(context).enqueueUniqueWork(BACKLOG_WORK,
+                fromContinuation ? ExistingWorkPolicy.APPEND_OR_REPLACE : ExistingWorkPolicy.KEEP,
+                workRequest);
     }
 }
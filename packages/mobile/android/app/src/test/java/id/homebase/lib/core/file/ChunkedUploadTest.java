@@ -0,0 +1,266 @@
+package id.homebase.lib.core.file;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import id.homebase.lib.core.ApiType;
+import id.homebase.lib.core.DotYouClient;
+import id.homebase.lib.core.file.types.ChunkedUploadSession;
+import id.homebase.lib.core.file.types.FailedUploadResult;
+import id.homebase.lib.core.file.types.SuccessfullUploadResult;
+import id.homebase.lib.core.file.types.UploadBundle;
+import id.homebase.lib.core.file.types.UploadResult;
+import okhttp3.MultipartReader;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+public class ChunkedUploadTest {
+    private static final int CHUNK_SIZE = 1024;
+    private static final String API = "/api/apps/v1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private ChunkServer chunkServer;
+    private DotYouClient dotYouClient;
+    private UploadBundle bundle;
+    private byte[] payload;
+
+    @Before
+    public void setUp() throws Exception {
+        chunkServer = new ChunkServer();
+        server = new MockWebServer();
+        server.setDispatcher(chunkServer);
+        server.start();
+
+        dotYouClient = new DotYouClient(ApiType.App, new byte[16], "localhost", null) {
+            @Override
+            public String getEndpoint() {
+                return server.url(API).toString();
+            }
+        };
+
+        File directory = folder.newFolder("bundle");
+        payload = new byte[10 * CHUNK_SIZE + 123];
+        new Random(42).nextBytes(payload);
+        Files.write(new File(directory, "descriptor").toPath(), new byte[]{1, 2, 3, 4});
+        Files.write(new File(directory, "payload-0").toPath(), payload);
+        bundle = new UploadBundle(directory, "{\"storageOptions\":{}}", List.of(
+                new UploadBundle.Part("metaData", null, "application/octet-stream", "descriptor"),
+                new UploadBundle.Part("payload", "pst_mdi0", "image/jpeg", "payload-0")));
+        bundle.write();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void sendsTheBodyInChunks() throws Exception {
+        UploadResult result = DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+
+        assertTrue(result instanceof SuccessfullUploadResult);
+        long totalBytes = chunkServer.completedBody.length;
+        assertEquals((totalBytes + CHUNK_SIZE - 1) / CHUNK_SIZE, chunkServer.chunkRequests);
+        assertEquals(totalBytes, chunkServer.chunkBytesSent);
+        assertCompletedBodyMatchesBundle();
+        assertNull(ChunkedUploadSession.read(bundle.getDirectory()));
+    }
+
+    @Test
+    public void resumesFromTheLastAcknowledgedChunkAfterAFailure() throws Exception {
+        chunkServer.failChunkRequest = 4;
+
+        UploadResult failed = DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+
+        assertTrue(failed instanceof FailedUploadResult);
+        assertEquals(FailedUploadResult.Reason.SERVER_ERROR, ((FailedUploadResult) failed).getReason());
+        ChunkedUploadSession session = ChunkedUploadSession.read(bundle.getDirectory());
+        assertNotNull(session);
+        assertEquals(4L * CHUNK_SIZE, session.acknowledgedBytes());
+
+        // Everything the next attempt needs is on disk, as it would be in a new process
+        UploadResult result = DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+
+        assertTrue(result instanceof SuccessfullUploadResult);
+        assertEquals(1, chunkServer.sessionsStarted);
+        long totalBytes = session.totalBytes();
+        assertTrue(chunkServer.chunkBytesSent - totalBytes <= CHUNK_SIZE);
+        assertCompletedBodyMatchesBundle();
+    }
+
+    @Test
+    public void sendsNothingAgainWhenOnlyTheAcknowledgementWasLost() throws Exception {
+        chunkServer.dropAcknowledgementOf = 2;
+
+        UploadResult failed = DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+        assertTrue(failed instanceof FailedUploadResult);
+
+        UploadResult result = DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+
+        assertTrue(result instanceof SuccessfullUploadResult);
+        long totalBytes = chunkServer.completedBody.length;
+        assertEquals(totalBytes, chunkServer.chunkBytesSent);
+        assertCompletedBodyMatchesBundle();
+    }
+
+    @Test
+    public void startsOverWhenTheServerDroppedTheSession() throws Exception {
+        chunkServer.failChunkRequest = 3;
+        DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+        chunkServer.sessions.clear();
+
+        UploadResult result = DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+
+        assertTrue(result instanceof SuccessfullUploadResult);
+        assertEquals(2, chunkServer.sessionsStarted);
+        assertCompletedBodyMatchesBundle();
+    }
+
+    @Test
+    public void uploadsAtOnceWhenTheHostHasNoChunkedUploads() throws Exception {
+        chunkServer.chunkedUploadSupported = false;
+
+        UploadResult result = DriveFileUploadProvider.uploadBundleChunked(dotYouClient, bundle, CHUNK_SIZE);
+
+        assertTrue(result instanceof SuccessfullUploadResult);
+        assertEquals(0, chunkServer.chunkRequests);
+        assertNotNull(chunkServer.uploadedAtOnce);
+        assertFalse(new File(bundle.getDirectory(), ChunkedUploadSession.FILE_NAME).exists());
+    }
+
+    // The server hands the reassembled body to the regular upload; it has to be the same multipart request
+    private void assertCompletedBodyMatchesBundle() throws IOException {
+        assertNotNull(chunkServer.completedBody);
+        String boundary = chunkServer.completedContentType.substring(chunkServer.completedContentType.indexOf("boundary=") + "boundary=".length());
+
+        List<String> names = new ArrayList<>();
+        byte[] uploadedPayload = null;
+        try (MultipartReader reader = new MultipartReader(new Buffer().write(chunkServer.completedBody), boundary)) {
+            MultipartReader.Part part;
+            while ((part = reader.nextPart()) != null) {
+                String disposition = part.headers().get("Content-Disposition");
+                assertNotNull(disposition);
+                String name = disposition.replaceAll("^form-data; name=\"([^\"]*)\".*", "$1");
+                names.add(name);
+                byte[] content = part.body().readByteArray();
+                if (name.equals("payload")) {
+                    uploadedPayload = content;
+                }
+            }
+        }
+        assertEquals(List.of("instructions", "metaData", "payload"), names);
+        assertArrayEquals(payload, uploadedPayload);
+    }
+
+    // Keeps chunked uploads the way the server does: per session the bytes received so far
+    private static class ChunkServer extends Dispatcher {
+        final Map<String, Buffer> sessions = new HashMap<>();
+        final Map<String, String> contentTypes = new HashMap<>();
+        boolean chunkedUploadSupported = true;
+        // The chunk request (by its index) that gets a 500 instead of being stored; a 503 would pause the limiter
+        int failChunkRequest = -1;
+        // The chunk request that is stored, but whose connection drops before the acknowledgement
+        int dropAcknowledgementOf = -1;
+        int sessionsStarted;
+        int chunkRequests;
+        long chunkBytesSent;
+        byte[] uploadedAtOnce;
+        byte[] completedBody;
+        String completedContentType;
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            String path = request.getPath().substring(API.length());
+            try {
+                if (path.equals("/drive/files/upload")) {
+                    uploadedAtOnce = request.getBody().readByteArray();
+                    return uploadResult();
+                }
+                if (!path.startsWith("/drive/files/upload/chunked") || !chunkedUploadSupported) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                if (path.equals("/drive/files/upload/chunked")) {
+                    JSONObject start = new JSONObject(request.getBody().readUtf8());
+                    String sessionId = "session-" + ++sessionsStarted;
+                    sessions.put(sessionId, new Buffer());
+                    contentTypes.put(sessionId, start.getString("contentType"));
+                    return json(200, new JSONObject().put("sessionId", sessionId));
+                }
+
+                String sessionId = path.substring("/drive/files/upload/chunked/".length()).replace("/complete", "");
+                Buffer received = sessions.get(sessionId);
+                if (received == null) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                if (path.endsWith("/complete")) {
+                    completedBody = received.clone().readByteArray();
+                    completedContentType = contentTypes.get(sessionId);
+                    sessions.remove(sessionId);
+                    return uploadResult();
+                }
+                if (request.getMethod().equals("GET")) {
+                    return json(200, new JSONObject().put("receivedBytes", received.size()));
+                }
+
+                int index = chunkRequests++;
+                byte[] chunk = request.getBody().readByteArray();
+                chunkBytesSent += chunk.length;
+                if (index == failChunkRequest) {
+                    return new MockResponse().setResponseCode(500);
+                }
+                String range = request.getHeader("Content-Range");
+                long first = Long.parseLong(range.substring("bytes ".length(), range.indexOf('-')));
+                if (first != received.size()) {
+                    return json(409, new JSONObject().put("receivedBytes", received.size()));
+                }
+                received.write(chunk);
+                if (index == dropAcknowledgementOf) {
+                    return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                }
+                return json(200, new JSONObject().put("receivedBytes", received.size()));
+            } catch (JSONException e) {
+                return new MockResponse().setResponseCode(500);
+            }
+        }
+
+        private static MockResponse uploadResult() throws JSONException {
+            JSONObject targetDrive = new JSONObject().put("alias", "alias").put("type", "type");
+            return json(200, new JSONObject()
+                    .put("file", new JSONObject().put("fileId", "file-id").put("targetDrive", targetDrive))
+                    .put("globalTransitIdFileIdentifier", new JSONObject().put("globalTransitId", "transit-id").put("targetDrive", targetDrive))
+                    .put("newVersionTag", "version"));
+        }
+
+        private static MockResponse json(int code, JSONObject body) {
+            return new MockResponse().setResponseCode(code).setHeader("Content-Type", "application/json").setBody(body.toString());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package id.homebase.photos.mediasync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.PowerManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import id.homebase.photos.mediasync.types.SyncBudget;
+
+public class SyncGovernorTest {
+    private static final int FFMPEG_THREADS = 8;
+
+    private FakeDeviceSignals signals;
+    private SyncGovernor governor;
+
+    @Before
+    public void setUp() {
+        signals = new FakeDeviceSignals();
+        governor = new SyncGovernor(signals, FFMPEG_THREADS);
+    }
+
+    @Test
+    public void runsAtFullSpeedOnAHealthyDevice() {
+        SyncBudget budget = governor.evaluate();
+
+        assertEquals(4, budget.prepareAhead());
+        assertEquals(FFMPEG_THREADS, budget.ffmpegThreads());
+        assertEquals(SyncGovernor.DEFAULT_X264_PRESET, budget.x264Preset());
+        assertTrue(budget.videoAllowed());
+        assertEquals("normal", budget.reason());
+    }
+
+    @Test
+    public void stopsVideoUnderSevereThermalStatus() {
+        signals.thermalStatus = PowerManager.THERMAL_STATUS_SEVERE;
+        signals.charging = true;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertFalse(budget.videoAllowed());
+        assertEquals(1, budget.prepareAhead());
+        assertEquals(1, budget.ffmpegThreads());
+        assertEquals("ultrafast", budget.x264Preset());
+    }
+
+    @Test
+    public void backsOffUnderModerateThermalStatus() {
+        signals.thermalStatus = PowerManager.THERMAL_STATUS_MODERATE;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertTrue(budget.videoAllowed());
+        assertEquals(2, budget.prepareAhead());
+        assertEquals(FFMPEG_THREADS / 2, budget.ffmpegThreads());
+        assertEquals("veryfast", budget.x264Preset());
+    }
+
+    @Test
+    public void stopsVideoOnACriticalBatteryWhileUnplugged() {
+        signals.batteryPercent = 10;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertFalse(budget.videoAllowed());
+        assertEquals(1, budget.ffmpegThreads());
+        assertEquals("battery at 10%", budget.reason());
+    }
+
+    @Test
+    public void backsOffOnALowBatteryWhileUnplugged() {
+        signals.batteryPercent = 20;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertTrue(budget.videoAllowed());
+        assertEquals(2, budget.prepareAhead());
+        assertEquals(FFMPEG_THREADS / 2, budget.ffmpegThreads());
+        assertEquals("veryfast", budget.x264Preset());
+    }
+
+    @Test
+    public void ignoresTheBatteryLevelWhileCharging() {
+        signals.batteryPercent = 5;
+        signals.charging = true;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertTrue(budget.videoAllowed());
+        assertEquals(FFMPEG_THREADS, budget.ffmpegThreads());
+        assertEquals("normal", budget.reason());
+    }
+
+    @Test
+    public void treatsAnUnknownBatteryLevelAsFull() {
+        signals.batteryPercent = -1;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertTrue(budget.videoAllowed());
+        assertEquals(FFMPEG_THREADS, budget.ffmpegThreads());
+        assertEquals("normal", budget.reason());
+    }
+
+    @Test
+    public void holdsBackVideoWithDataSaver() {
+        signals.dataSaver = true;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertFalse(budget.videoAllowed());
+        // Images still go at full speed
+        assertEquals(4, budget.prepareAhead());
+        assertEquals("data saver", budget.reason());
+    }
+
+    @Test
+    public void holdsBackVideoWithDataSaverOnALowBattery() {
+        signals.dataSaver = true;
+        signals.batteryPercent = 15;
+
+        SyncBudget budget = governor.evaluate();
+
+        assertFalse(budget.videoAllowed());
+        assertEquals(2, budget.prepareAhead());
+        assertEquals("battery at 15%, data saver", budget.reason());
+    }
+
+    @Test
+    public void neverDropsBelowOneFFmpegThread() {
+        governor = new SyncGovernor(signals, 1);
+        signals.batteryPercent = 20;
+
+        assertEquals(1, governor.evaluate().ffmpegThreads());
+    }
+
+    private static class FakeDeviceSignals implements DeviceSignals {
+        int batteryPercent = 100;
+        boolean charging = false;
+        int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+        boolean dataSaver = false;
+
+        @Override
+        public int getBatteryPercent() {
+            return batteryPercent;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+
+        @Override
+        public int getThermalStatus() {
+            return thermalStatus;
+        }
+
+        @Override
+        public boolean isDataSaverOn() {
+            return dataSaver;
+        }
+    }
+}
@@ -9,7 +9,7 @@ import { Container } from '../../ui/Container/Container';
 import { VideoWithLoader } from '../PhotoPreview/VideoWithLoader';
 import { Colors } from '../../../app/Colors';
 import { useDarkMode } from '../../../hooks/useDarkMode';
-import { LibraryType } from 'photo-app-common';
+import { isVideoContentType, LibraryType } from 'photo-app-common';
 
 const mobileDateFormat: Intl.DateTimeFormatOptions = {
   month: 'short',
@@ -164,9 +164,10 @@ export const PhotoItem = memo(
           }}
         >
           <View>
-            {photoDsr.fileMetadata.payloads
-              .find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
-              ?.contentType.startsWith('video/') ? (
+            {isVideoContentType(
+              photoDsr.fileMetadata.payloads.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
+                ?.contentType
+            ) ? (
               <VideoWithLoader
                 fileId={photoDsr.fileId}
                 targetDrive={targetDrive}
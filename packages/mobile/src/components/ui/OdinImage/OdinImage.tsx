@@ -11,6 +11,7 @@ import {
 import useImage from './hooks/useImage';
 import { SvgUri } from 'react-native-svg';
 import { ImageZoom } from '@likashefqet/react-native-image-zoom';
+import { isThumbHash, thumbHashToDataUrl } from 'photo-app-common';
 
 export interface OdinImageProps {
   odinId?: string;
@@ -70,6 +71,15 @@ export const OdinImage = memo(
 
     const embeddedThumbUrl = useMemo(() => {
       if (!previewThumbnail) return;
+      // A ThumbHash isn't an image by itself, it's decoded to one
+      if (isThumbHash(previewThumbnail)) {
+        try {
+          return thumbHashToDataUrl(previewThumbnail.content);
+        } catch (e) {
+          console.warn('[OdinImage] Failed to decode thumbhash preview', e);
+          return;
+        }
+      }
       return `data:${previewThumbnail.contentType};base64,${previewThumbnail.content}`;
     }, [previewThumbnail]);
 
@@ -14,7 +14,7 @@ import {
 } from '../../provider/auth/RNAuthenticationProvider';
 import { logout as logoutYouauth } from '@homebase-id/js-lib/auth';
 import { useEncrtypedStorage } from './useEncryptedStorage';
-import { Platform } from 'react-native';
+import { NativeModules, Platform } from 'react-native';
 import { DrivePermissionType } from '@homebase-id/js-lib/core';
 import { useQueryClient } from '@tanstack/react-query';
 
@@ -90,6 +90,9 @@ export const useAuth = () => {
 
   const queryClient = useQueryClient();
   const logout = useCallback(async (): Promise<void> => {
+    // Stop any sync in progress, before its credentials are gone
+    if (Platform.OS === 'android') NativeModules.SyncTrigger.cancelSync();
+
     await logoutYouauth(getDotYouClient());
 
     // Store last logged out identity
@@ -11,6 +11,8 @@ export const LAST_SYNC_TIME = 'lastSyncTimeAsNumber';
 export const SYNC_FROM_CAMERA_ROLL = 'syncFromCameraRollAsBoolean';
 export const EARLIER_SYNC_ENABLED = 'earlierSyncEnabled';
 export const FORCE_LOWER_QUALITY = 'forceLowerQualityAsBoolean';
+export const THUMBHASH_PREVIEW = 'thumbHashPreviewAsBoolean';
+export const PIPELINED_VIDEO_UPLOAD = 'pipelinedVideoUploadAsBoolean';
 export const MIN_CONNECTION_TYPE = 'minConnectionType';
 const LAST_LOGGED_OUT_IDENTITY = 'lastLoggedOutIdentity';
 
@@ -98,6 +100,20 @@ export const useKeyValueStorage = () => {
     false
   );
 
+  // Android only: the sync stores a ThumbHash instead of a tiny jpeg as preview
+  const [thumbHashPreview, setThumbHashPreview] = useMMKVStorage<boolean>(
+    THUMBHASH_PREVIEW,
+    storage,
+    false
+  );
+
+  // Android only: videos are uploaded segment by segment while they're being transcoded
+  const [pipelinedVideoUpload, setPipelinedVideoUpload] = useMMKVStorage<boolean>(
+    PIPELINED_VIDEO_UPLOAD,
+    storage,
+    false
+  );
+
   const [earlierSyncEnabled, setEarlierSyncEnabled] = useMMKVStorage<boolean>(
     EARLIER_SYNC_ENABLED,
     storage,
@@ -114,6 +130,12 @@ export const useKeyValueStorage = () => {
     forceLowerQuality,
     setForceLowerQuality,
 
+    thumbHashPreview,
+    setThumbHashPreview,
+
+    pipelinedVideoUpload,
+    setPipelinedVideoUpload,
+
     earlierSyncEnabled,
     setEarlierSyncEnabled,
   };
@@ -10,7 +10,7 @@ import {
 import { getNewId, stringifyToQueryParams, uint8ArrayToBase64 } from '@homebase-id/js-lib/helpers';
 import { getAnonymousDirectImageUrl } from '@homebase-id/js-lib/media';
 import { useVideoMetadata } from './useVideoMetadata';
-import { useDotYouClientContext } from 'photo-app-common';
+import { getSegmentPayloadKey, useDotYouClientContext } from 'photo-app-common';
 import { CachesDirectoryPath, writeFile } from 'react-native-fs';
 import { useLocalWebServer } from './useLocalWebServer';
 import { Platform } from 'react-native';
@@ -64,7 +64,8 @@ export const useHlsManifest = (
             odinId,
             videoDrive,
             videoFile.fileId,
-            videoFileKey,
+            // Segments that were uploaded separately are payloads of their own
+            getSegmentPayloadKey(videoFile, url, videoFileKey),
             videoFileData?.fileHeader.fileMetadata.isEncrypted || false
           )) || url
         );
@@ -22,7 +22,13 @@ import { VideoWithLoader } from '../components/Photos/PhotoPreview/VideoWithLoad
 
 import { useDarkMode } from '../hooks/useDarkMode';
 import { InfoIcon } from '../components/ui/Icons/icons';
-import { PhotoConfig, useAlbum, useFileHeader, usePhotosInfinte } from 'photo-app-common';
+import {
+  isVideoContentType,
+  PhotoConfig,
+  useAlbum,
+  useFileHeader,
+  usePhotosInfinte,
+} from 'photo-app-common';
 import { stringGuidsEqual } from '@homebase-id/js-lib/helpers';
 
 type PhotoProps = NativeStackScreenProps<RootStackParamList, 'PhotoPreview'>;
@@ -211,9 +217,10 @@ const InnerFlatListSlider = memo(
               height: windowSize.height,
             }}
           >
-            {item.item.fileMetadata.payloads
-              .find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
-              ?.contentType.startsWith('video/') ? (
+            {isVideoContentType(
+              item.item.fileMetadata.payloads.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
+                ?.contentType
+            ) ? (
               <VideoWithLoader
                 fileId={item.item.fileId}
                 targetDrive={targetDrive}
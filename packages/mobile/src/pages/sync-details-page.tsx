@@ -290,6 +290,12 @@ const SettingsModal = memo(({ onClose }: { onClose: () => void }) => {
     setForceLowerQuality,
     forceLowerQuality,
 
+    thumbHashPreview,
+    setThumbHashPreview,
+
+    pipelinedVideoUpload,
+    setPipelinedVideoUpload,
+
     setLastCameraRollSyncTime,
 
     earlierSyncEnabled,
@@ -335,6 +341,70 @@ const SettingsModal = memo(({ onClose }: { onClose: () => void }) => {
           </Text>
         </TouchableOpacity>
 
+        {Platform.OS === 'android' ? (
+          <TouchableOpacity
+            onPress={() => {
+              Alert.alert(
+                'Preview style',
+                `(currently: ${thumbHashPreview ? 'Compact' : 'Thumbnail'})`,
+                [
+                  {
+                    text: 'Thumbnail',
+                    onPress: () => setThumbHashPreview(false),
+                    style: 'default',
+                  },
+                  {
+                    text: 'Compact (blurred placeholder)',
+                    onPress: () => setThumbHashPreview(true),
+                    style: 'default',
+                  },
+                  {
+                    text: 'Cancel',
+                    style: 'cancel',
+                  },
+                ]
+              );
+            }}
+          >
+            <Text>Preview style</Text>
+            <Text style={{ color: Colors.slate[400], marginTop: 3 }}>
+              {thumbHashPreview ? 'Compact' : 'Thumbnail'}
+            </Text>
+          </TouchableOpacity>
+        ) : null}
+
+        {Platform.OS === 'android' ? (
+          <TouchableOpacity
+            onPress={() => {
+              Alert.alert(
+                'Video upload',
+                `(currently: ${pipelinedVideoUpload ? 'While transcoding' : 'After transcoding'})`,
+                [
+                  {
+                    text: 'After transcoding',
+                    onPress: () => setPipelinedVideoUpload(false),
+                    style: 'default',
+                  },
+                  {
+                    text: 'While transcoding (resumable)',
+                    onPress: () => setPipelinedVideoUpload(true),
+                    style: 'default',
+                  },
+                  {
+                    text: 'Cancel',
+                    style: 'cancel',
+                  },
+                ]
+              );
+            }}
+          >
+            <Text>Video upload</Text>
+            <Text style={{ color: Colors.slate[400], marginTop: 3 }}>
+              {pipelinedVideoUpload ? 'While transcoding' : 'After transcoding'}
+            </Text>
+          </TouchableOpacity>
+        ) : null}
+
         <TouchableOpacity
           onPress={() => {
             Alert.alert(
@@ -390,7 +460,11 @@ const SettingsModal = memo(({ onClose }: { onClose: () => void }) => {
               Alert.alert('Disable sync?', 'Your existing photos will not be removed', [
                 {
                   text: 'Disable',
-                  onPress: () => setSyncFromCameraRoll(false),
+                  onPress: () => {
+                    setSyncFromCameraRoll(false);
+                    // Stops the uploads in progress as well
+                    if (Platform.OS === 'android') SyncTrigger.cancelSync();
+                  },
                 },
                 {
                   text: 'Cancel',
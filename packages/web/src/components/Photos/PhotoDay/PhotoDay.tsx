@@ -12,6 +12,7 @@ import { VideoWithLoader } from '../PhotoPreview/VideoWithLoader';
 import { PhotoWithLoader } from '../PhotoPreview/PhotoWithLoader';
 import Triangle from '../../ui/Icons/Triangle/Triangle';
 import { useLongPress } from '../../../hooks/longPress/useLongPress';
+import { isVideoContentType } from 'photo-app-common';
 
 // Input on the "scaled" layout: https://github.com/xieranmaya/blog/issues/6
 const gridClasses = `grid grid-cols-4 gap-[0.1rem] md:gap-1 md:grid-cols-6 lg:flex lg:flex-row lg:flex-wrap`;
@@ -234,9 +235,10 @@ export const PhotoItem = ({
           ref={wrapperRef}
         >
           {isInView ? (
-            photoDsr.fileMetadata.payloads
-              ?.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
-              ?.contentType.startsWith('video/') ? (
+            isVideoContentType(
+              photoDsr.fileMetadata.payloads?.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
+                ?.contentType
+            ) ? (
               <>
                 <VideoWithLoader
                   fileId={photoDsr.fileId}
@@ -1,8 +1,14 @@
 import { DEFAULT_PAYLOAD_KEY, HomebaseFile } from '@homebase-id/js-lib/core';
 import { OdinVideoWrapper } from './VideoWithLoader';
-import { PhotoConfig, t, useDotYouClientContext } from 'photo-app-common';
+import {
+  isVideoContentType,
+  PhotoConfig,
+  t,
+  toRenderablePreviewThumbnail,
+  useDotYouClientContext,
+} from 'photo-app-common';
 import { OdinPayloadImage, OdinPreviewImage, OdinThumbnailImage } from '@homebase-id/ui-lib';
-import { useState } from 'react';
+import { useMemo, useState } from 'react';
 
 const targetDrive = PhotoConfig.PhotoDrive;
 
@@ -19,9 +25,10 @@ const MediaWithLoader = ({
 }) => {
   if (!media || !fileId) return <div className="relative h-full w-[100vw]"></div>;
 
-  return media?.fileMetadata.payloads
-    ?.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
-    ?.contentType.startsWith('video/') ? (
+  return isVideoContentType(
+    media?.fileMetadata.payloads?.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
+      ?.contentType
+  ) ? (
     <OdinVideoWrapper
       fileId={fileId}
       fileKey={DEFAULT_PAYLOAD_KEY}
@@ -60,6 +67,10 @@ const CustomOdinImage = ({
   const dotYouClient = useDotYouClientContext();
   const [tinyLoaded, setTinyLoaded] = useState(false);
   const [finalLoaded, setFinalLoaded] = useState(false);
+  const previewThumbnail = useMemo(
+    () => toRenderablePreviewThumbnail(media.fileMetadata.appData.previewThumbnail),
+    [media.fileMetadata.appData.previewThumbnail]
+  );
 
   if (
     original &&
@@ -81,7 +92,7 @@ const CustomOdinImage = ({
         fileId={fileId}
         targetDrive={targetDrive}
         lastModified={lastModified}
-        previewThumbnail={media.fileMetadata.appData.previewThumbnail}
+        previewThumbnail={previewThumbnail}
         fileKey={fileKey}
         blur="auto"
         onLoad={() => setTinyLoaded(true)}
@@ -6,7 +6,7 @@ import ActionButton from '../../../ui/Buttons/ActionButton';
 import EditDateDialog from '../../../Dialog/EditDateDialog/EditDateDialog';
 import { DEFAULT_PAYLOAD_KEY, HomebaseFile } from '@homebase-id/js-lib/core';
 import { ImageMetadata } from '@homebase-id/js-lib/media';
-import { PhotoConfig, usePhotoMetadata } from 'photo-app-common';
+import { isVideoContentType, PhotoConfig, usePhotoMetadata } from 'photo-app-common';
 
 const targetDrive = PhotoConfig.PhotoDrive;
 
@@ -39,9 +39,10 @@ export const PhotoInfo = ({
     updateMeta: { mutate: updatePhotoMeta },
   } = usePhotoMetadata(targetDrive, current?.fileId);
 
-  const isVideo = current?.fileMetadata.payloads
-    ?.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
-    ?.contentType.startsWith('video/');
+  const isVideo = isVideoContentType(
+    current?.fileMetadata.payloads?.find((payload) => payload.key === DEFAULT_PAYLOAD_KEY)
+      ?.contentType
+  );
 
   const date = useMemo(() => {
     if (current?.fileMetadata.appData.userDate)
@@ -1,6 +1,7 @@
 import { DEFAULT_PAYLOAD_KEY, EmbeddedThumb, TargetDrive } from '@homebase-id/js-lib/core';
 import { OdinImage } from '@homebase-id/ui-lib';
-import { useDotYouClientContext } from 'photo-app-common';
+import { toRenderablePreviewThumbnail, useDotYouClientContext } from 'photo-app-common';
+import { useMemo } from 'react';
 
 export const PhotoWithLoader = ({
   fileId,
@@ -18,6 +19,11 @@ export const PhotoWithLoader = ({
   className?: string;
 }) => {
   const dotYouClient = useDotYouClientContext();
+  // ui-lib renders the preview as an image data url, so a ThumbHash is decoded first
+  const renderablePreviewThumbnail = useMemo(
+    () => toRenderablePreviewThumbnail(previewThumbnail),
+    [previewThumbnail]
+  );
 
   return (
     <OdinImage
@@ -26,7 +32,7 @@ export const PhotoWithLoader = ({
       fileId={fileId}
       fileKey={DEFAULT_PAYLOAD_KEY}
       lastModified={lastModified}
-      previewThumbnail={previewThumbnail}
+      previewThumbnail={renderablePreviewThumbnail}
       fit={fit}
       className={className}
       preferObjectUrl={true}
@@ -0,0 +1,137 @@
+import Hls from 'hls.js';
+import { useEffect, useRef } from 'react';
+import {
+  DotYouClient,
+  HomebaseFile,
+  InterceptionEncryptionUtil,
+  TargetDrive,
+  decryptKeyHeader,
+} from '@homebase-id/js-lib/core';
+import { stringifyToQueryParams, uint8ArrayToBase64 } from '@homebase-id/js-lib/helpers';
+import { getSegmentPayloadKey, useDotYouClientContext } from 'photo-app-common';
+
+// Plays an HLS video whose segments are payloads of their own (see hasPayloadSegments). The ui-lib player
+// expects every segment in the payload with the playlist, so it can't play these.
+export const SegmentedHlsVideo = ({
+  targetDrive,
+  file,
+  fileKey,
+  playlist,
+  poster,
+  autoPlay,
+  className,
+}: {
+  targetDrive: TargetDrive;
+  file: HomebaseFile;
+  fileKey: string;
+  playlist: string;
+  poster?: string;
+  autoPlay?: boolean;
+  className?: string;
+}) => {
+  const dotYouClient = useDotYouClientContext();
+  const videoRef = useRef<HTMLVideoElement>(null);
+
+  useEffect(() => {
+    const video = videoRef.current;
+    if (!video) return;
+
+    let cancelled = false;
+    let hls: Hls | undefined;
+    let manifestUrl: string | undefined;
+
+    (async () => {
+      const manifest = await buildManifest(dotYouClient, targetDrive, file, fileKey, playlist);
+      if (cancelled) return;
+
+      manifestUrl = URL.createObjectURL(
+        new Blob([manifest], { type: 'application/vnd.apple.mpegurl' })
+      );
+      if (Hls.isSupported()) {
+        const headers = dotYouClient.getHeaders();
+        hls = new Hls({
+          xhrSetup: (xhr, url) => {
+            if (!url.startsWith(dotYouClient.getEndpoint())) return;
+            xhr.withCredentials = true;
+            Object.entries(headers).forEach(([name, value]) => xhr.setRequestHeader(name, value));
+          },
+        });
+        hls.loadSource(manifestUrl);
+        hls.attachMedia(video);
+      } else {
+        // Safari plays HLS natively; the segment urls carry their authorization in the encrypted query
+        video.src = manifestUrl;
+      }
+    })().catch((e) => console.error('[SegmentedHlsVideo] Failed to load the playlist', e));
+
+    return () => {
+      cancelled = true;
+      hls?.destroy();
+      if (manifestUrl) URL.revokeObjectURL(manifestUrl);
+    };
+  }, [dotYouClient, targetDrive, file, fileKey, playlist]);
+
+  return (
+    <video
+      ref={videoRef}
+      className={className}
+      poster={poster}
+      autoPlay={autoPlay}
+      controls={true}
+      playsInline={true}
+    />
+  );
+};
+
+// Points every segment line at its payload, and the key line at the decrypted HLS key
+const buildManifest = async (
+  dotYouClient: DotYouClient,
+  targetDrive: TargetDrive,
+  file: HomebaseFile,
+  fileKey: string,
+  playlist: string
+) => {
+  const lines: string[] = [];
+  for (const line of playlist.split('\n')) {
+    const trimmed = line.trim();
+    if (trimmed.startsWith('#EXT-X-KEY:METHOD=AES-128')) {
+      const keyUri = trimmed.match(/URI="([^"]+)"/)?.[1];
+      const encryptedKeyHeader = file.sharedSecretEncryptedKeyHeader;
+      if (keyUri && encryptedKeyHeader) {
+        const keyHeader = await decryptKeyHeader(dotYouClient, encryptedKeyHeader);
+        const keyUrl = `data:application/octet-stream;base64,${uint8ArrayToBase64(keyHeader.aesKey)}`;
+        lines.push(line.replace(keyUri, keyUrl));
+        continue;
+      }
+      lines.push(line);
+    } else if (trimmed !== '' && !trimmed.startsWith('#')) {
+      lines.push(
+        await getPayloadUrl(
+          dotYouClient,
+          targetDrive,
+          file.fileId,
+          getSegmentPayloadKey(file, trimmed, fileKey),
+          file.fileMetadata.isEncrypted
+        )
+      );
+    } else {
+      lines.push(line);
+    }
+  }
+  return lines.join('\n');
+};
+
+const getPayloadUrl = async (
+  dotYouClient: DotYouClient,
+  targetDrive: TargetDrive,
+  fileId: string,
+  payloadKey: string,
+  isEncrypted: boolean
+) => {
+  const params = { ...targetDrive, fileId, key: payloadKey, xfst: 'Standard' };
+  const url = `${dotYouClient.getEndpoint()}/drive/files/payload?${stringifyToQueryParams(params)}`;
+
+  const sharedSecret = dotYouClient.getSharedSecret();
+  if (!isEncrypted || !sharedSecret) return url;
+  return await InterceptionEncryptionUtil.encryptUrl(url, sharedSecret);
+};
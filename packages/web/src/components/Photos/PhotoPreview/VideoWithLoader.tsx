@@ -5,7 +5,15 @@ import {
   ImageSize,
   TargetDrive,
 } from '@homebase-id/js-lib/core';
-import { useDotYouClientContext } from 'photo-app-common';
+import {
+  getHlsPlaylist,
+  hasPayloadSegments,
+  toRenderablePreviewThumbnail,
+  useDotYouClientContext,
+  useFileHeader,
+} from 'photo-app-common';
+import { useMemo } from 'react';
+import { SegmentedHlsVideo } from './SegmentedHlsVideo';
 
 export const VideoWithLoader = ({
   fileId,
@@ -28,15 +36,20 @@ export const VideoWithLoader = ({
   className?: string;
 }) => {
   const dotYouClient = useDotYouClientContext();
+  // ui-lib renders the preview as an image data url, so a ThumbHash is decoded first
+  const renderablePreviewThumbnail = useMemo(
+    () => toRenderablePreviewThumbnail(previewThumbnail),
+    [previewThumbnail]
+  );
 
   return (
     <div className={className || 'relative h-full w-full'} data-file={fileId}>
       {preview ? (
-        previewThumbnail ? (
+        renderablePreviewThumbnail ? (
           <OdinImage
             dotYouClient={dotYouClient}
             targetDrive={targetDrive}
-            previewThumbnail={previewThumbnail}
+            previewThumbnail={renderablePreviewThumbnail}
             fileKey={DEFAULT_PAYLOAD_KEY}
             lastModified={lastModified}
             fileId={fileId}
@@ -81,6 +94,26 @@ export const OdinVideoWrapper = ({ ...props }: OdinVideoWrapperProps) => {
     size: { pixelWidth: 100, pixelHeight: 100 },
   }).fetch;
 
+  // Videos whose segments were uploaded as separate payloads need their own player
+  const { data: fileHeader } = useFileHeader({
+    targetDrive: props.targetDrive,
+    photoFileId: props.odinId ? undefined : props.fileId,
+  });
+  const playlist = getHlsPlaylist(fileHeader, props.fileKey);
+  if (fileHeader && props.fileKey && playlist && hasPayloadSegments(fileHeader, playlist)) {
+    return (
+      <SegmentedHlsVideo
+        targetDrive={props.targetDrive}
+        file={fileHeader}
+        fileKey={props.fileKey}
+        playlist={playlist}
+        poster={image ? image.url : props.poster}
+        autoPlay={props.autoPlay}
+        className={props.className}
+      />
+    );
+  }
+
   return (
     <OdinVideo dotYouClient={dotYouClient} {...props} poster={image ? image.url : props.poster} />
   );
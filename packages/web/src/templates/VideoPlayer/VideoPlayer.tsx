@@ -1,21 +1,19 @@
 import { useParams } from 'react-router-dom';
 import useAuth from '../../hooks/auth/useAuth';
-import { OdinVideo } from '@homebase-id/ui-lib';
 import { ErrorBoundary } from '../../components/ui/Layout/ErrorBoundary/ErrorBoundary';
 import { DEFAULT_PAYLOAD_KEY } from '@homebase-id/js-lib/core';
-import { PhotoConfig, useDotYouClientContext } from 'photo-app-common';
+import { PhotoConfig } from 'photo-app-common';
+import { OdinVideoWrapper } from '../../components/Photos/PhotoPreview/VideoWithLoader';
 
 const targetDrive = PhotoConfig.PhotoDrive;
 const VideoPlayer = () => {
   const { getIdentity } = useAuth();
-  const dotYouClient = useDotYouClientContext();
   const { photoKey } = useParams();
 
   return (
     <>
       <ErrorBoundary>
-        <OdinVideo
-          dotYouClient={dotYouClient}
+        <OdinVideoWrapper
           targetDrive={targetDrive}
           fileId={photoKey}
           fileKey={DEFAULT_PAYLOAD_KEY}